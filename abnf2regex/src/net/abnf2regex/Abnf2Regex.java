@@ -2,14 +2,26 @@ package net.abnf2regex;
 
 //~--- JDK imports ------------------------------------------------------------
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
 import java.io.PrintWriter;
 import java.net.URL;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ForkJoinPool;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -27,6 +39,10 @@ public class Abnf2Regex
 
     /** A pattern that matches the scheme on a URI, identifying as such. */
     private static final String URI_PATTERN = "^[a-zA-Z](?:(?:[\\+\\-\\.]|[a-zA-Z]|\\d))*:"; // $NON-NLS-1$ //$NON-NLS-1$
+    /** Matches URIs. */
+    private static final Pattern URL_SCHEME = Pattern.compile(Abnf2Regex.URI_PATTERN);
+    /** The encoding of input files. ABNF is ASCII, and UTF-8 is a superset. */
+    private static final Charset INPUT_CHARSET = StandardCharsets.UTF_8;
 
     /**
      * The main program that turns ABNF into regular expressions.
@@ -39,6 +55,13 @@ public class Abnf2Regex
         RuleDictionary dict = new RuleDictionary();
         String targetRule = null;
         String testString = null;
+        RegexSyntax syntax = RegexSyntax.getCurrent();
+        ForkJoinPool pool = null;
+        String loadFrom = null;
+        String saveTo = null;
+        String validateFrom = null;
+        String searchIn = null;
+        CompilationStats stats = null;
         int print = 1;
 
         while (args.length > 0 && args[0].charAt(0) == '-')
@@ -54,6 +77,18 @@ public class Abnf2Regex
                 args = Arrays.copyOfRange(args, 2, args.length);
                 print &= 2;
             }
+            else if ((args.length >= 2) && args[0].equals("-v")) //$NON-NLS-1$
+            {
+                validateFrom = args[1];
+                args = Arrays.copyOfRange(args, 2, args.length);
+                print &= 2;
+            }
+            else if ((args.length >= 2) && args[0].equals("-g")) //$NON-NLS-1$
+            {
+                searchIn = args[1];
+                args = Arrays.copyOfRange(args, 2, args.length);
+                print &= 2;
+            }
             else if ((args.length >= 1) && args[0].equals("-p")) //$NON-NLS-1$
             {
                 print |= 2;
@@ -63,7 +98,7 @@ public class Abnf2Regex
             {
                 try
                 {
-                    RegexSyntax.setCurrent(args[1]);
+                    syntax = RegexSyntax.getSyntax(args[1]);
                 }
                 catch (RegexSyntaxNotFoundException ex)
                 {
@@ -71,52 +106,258 @@ public class Abnf2Regex
                 }
                 args = Arrays.copyOfRange(args, 2, args.length);
             }
-            else
+            else if ((args.length >= 2) && args[0].equals("-j")) //$NON-NLS-1$
             {
-                System.err.println("Usage: abnf2regex [-r <rule>] [-t <test>] [-p] [-s <syntax>] [file ...]");
-                System.err.println("\t-r <rule>\tSelect a specific rule");
-                System.err.println("\t-t <test>\tTest a string against a rule (requires -r)");
-                System.err.println("\t-p\t\tPrints the dictionary (without -r), or the rule (with -r)");
-                StringBuilder bld = new StringBuilder();
-                for (String name : RegexSyntax.getSyntaxNames())
+                try
+                {
+                    pool = new ForkJoinPool(Integer.parseInt(args[1]));
+                }
+                catch (IllegalArgumentException ex)
                 {
-                    bld.append(',').append(name);
+                    System.err.println("Invalid thread count: " + args[1]); //$NON-NLS-1$
+                    Abnf2Regex.usage();
+                    return;
                 }
-                System.err.println("\t-s <syntax>\tSelect regex syntax [" + bld.substring(1) + "]");
+                args = Arrays.copyOfRange(args, 2, args.length);
+            }
+            else if ((args.length >= 2) && args[0].equals("-i")) //$NON-NLS-1$
+            {
+                loadFrom = args[1];
+                args = Arrays.copyOfRange(args, 2, args.length);
+            }
+            else if ((args.length >= 2) && args[0].equals("-o")) //$NON-NLS-1$
+            {
+                saveTo = args[1];
+                args = Arrays.copyOfRange(args, 2, args.length);
+                print &= 2;
+            }
+            else if ((args.length >= 1) && args[0].equals("-c")) //$NON-NLS-1$
+            {
+                stats = new CompilationStats();
+                args = Arrays.copyOfRange(args, 1, args.length);
+            }
+            else
+            {
+                Abnf2Regex.usage();
                 return;
             }
         }
 
+        if (validateFrom != null && targetRule == null)
+        {
+            System.err.println("-v needs a rule to test against, given with -r"); //$NON-NLS-1$
+            Abnf2Regex.usage();
+            return;
+        }
+        if (searchIn != null && targetRule == null)
+        {
+            System.err.println("-g needs a rule to search for, given with -r"); //$NON-NLS-1$
+            Abnf2Regex.usage();
+            return;
+        }
+
+        if (loadFrom != null)
+        {
+            InputStream in = new BufferedInputStream(new FileInputStream(loadFrom));
+            try
+            {
+                dict = RuleDictionary.load(in);
+            }
+            finally
+            {
+                in.close();
+            }
+        }
+        dict.setStats(stats);
+
         if (args.length == 0)
         {
-            dict.parse(System.in, "<stdin>"); // $NON-NLS-1$ //$NON-NLS-1$
+            if (loadFrom == null)
+            {
+                if ("-".equals(validateFrom)) //$NON-NLS-1$
+                {
+                    System.err.println("Can't read both the grammar and the lines to test from stdin"); //$NON-NLS-1$
+                    return;
+                }
+                dict.parse(System.in, "<stdin>"); // $NON-NLS-1$ //$NON-NLS-1$
+            }
         }
         else
         {
-            Abnf2Regex.parseInputs(dict, args);
+            Abnf2Regex.parseInputs(dict, pool, args);
         }
 
         dict.resolve();
 
+        if (saveTo != null)
+        {
+            OutputStream out = new BufferedOutputStream(new FileOutputStream(saveTo));
+            try
+            {
+                dict.save(out);
+            }
+            finally
+            {
+                out.close();
+            }
+        }
+
         if (print != 0)
         {
             PrintWriter output = new PrintWriter(System.out);
             if (targetRule != null)
             {
                 Rule rule = dict.getRule(targetRule);
-                Abnf2Regex.printRule(targetRule, rule, output);
+                Abnf2Regex.printRule(targetRule, rule, syntax, output);
             }
             else
             {
-                dict.write(output);
+                dict.write(output, syntax, pool);
             }
             output.flush();
         }
 
+        try
+        {
+            Abnf2Regex.validateLines(dict, targetRule, validateFrom, pool);
+        }
+        finally
+        {
+            if (pool != null)
+            {
+                pool.shutdown();
+            }
+        }
+
+        Abnf2Regex.searchFile(dict, targetRule, searchIn);
         Abnf2Regex.testRule(dict, targetRule, testString);
+
+        if (stats != null)
+        {
+            stats.print(new PrintWriter(System.err));
+        }
+    }
+
+    /**
+     * Print the command line options.
+     */
+    private static void usage()
+    {
+        System.err.println("Usage: abnf2regex [-r <rule>] [-t <test>] [-v <file>] [-g <file>] [-p] [-s <syntax>] [-j <threads>] [-i <snapshot>] [-o <snapshot>] [-c] [file ...]");
+        System.err.println("\t-r <rule>\tSelect a specific rule");
+        System.err.println("\t-t <test>\tTest a string against a rule (requires -r)");
+        System.err.println("\t-v <file>\tTest each line of a file, or - for stdin, against a rule (requires -r)");
+        System.err.println("\t-g <file>\tPrint the start and end byte offsets of each occurrence of a rule in a file (requires -r)");
+        System.err.println("\t-p\t\tPrints the dictionary (without -r), or the rule (with -r)");
+        StringBuilder bld = new StringBuilder();
+        for (String name : RegexSyntax.getSyntaxNames())
+        {
+            bld.append(',').append(name);
+        }
+        System.err.println("\t-s <syntax>\tSelect regex syntax [" + bld.substring(1) + "]");
+        System.err.println("\t-j <threads>\tUse several threads to parse files, print the dictionary and test lines");
+        System.err.println("\t-i <snapshot>\tLoad a saved dictionary before reading files");
+        System.err.println("\t-o <snapshot>\tSave the dictionary for use with -i");
+        System.err.println("\t-c\t\tPrint the time spent in each phase, and what was done, at the end");
+    }
+
+    /**
+     * Find each occurrence of the named rule in a file, printing the start
+     * and end byte offsets of each, then the totals and throughput on stderr.
+     *
+     * @param dict the dictionary
+     * @param testRule the rule
+     * @param fname the file to search
+     * @throws IOException if the file can't be read
+     */
+    private static void searchFile(RuleDictionary dict, String testRule, String fname) throws IOException
+    {
+        if (testRule == null || fname == null)
+        {
+            return;
+        }
+        RuleSearcher searcher;
+        try
+        {
+            searcher = dict.searcher(testRule);
+        }
+        catch (RuleResolutionException ex)
+        {
+            System.err.println("Error in rule '" + testRule + "' : " + ex.getMessage()); //$NON-NLS-1$//$NON-NLS-2$
+            return;
+        }
+        catch (IllegalArgumentException ex)
+        {
+            // searching needs an automaton, which recursive rules don't have
+            System.err.println("Error in rule '" + testRule + "' : " + ex.getMessage()); //$NON-NLS-1$//$NON-NLS-2$
+            return;
+        }
+        File f = new File(fname);
+        final PrintWriter output = new PrintWriter(new BufferedOutputStream(System.out, 1 << 16));
+        long started = System.nanoTime();
+        long found = searcher.search(f, new RuleSearcher.Handler()
+        {
+            @Override
+            public boolean found(long start, long end)
+            {
+                output.print(start);
+                output.print('\t');
+                output.println(end);
+                return true;
+            }
+        });
+        output.flush();
+        double seconds = Math.max(System.nanoTime() - started, 1) / 1e9;
+        System.err.println(String.format(Locale.ROOT, "Occurrences: %d, %.1f MB/s in %.3f s", //$NON-NLS-1$
+                Long.valueOf(found), Double.valueOf(f.length() / seconds / 1e6), Double.valueOf(seconds)));
+    }
+
+    /**
+     * Test each line of an input against the named rule, printing a result
+     * for each line, then the totals, throughput and latency on stderr.
+     *
+     * @param dict the dictionary
+     * @param testRule the rule
+     * @param fname the file to read, or - for stdin
+     * @param pool threads to test lines with, or null to test them in turn
+     * @throws IOException if the input can't be read
+     */
+    private static void validateLines(RuleDictionary dict, String testRule, String fname, ForkJoinPool pool)
+            throws IOException
+    {
+        if (testRule == null || fname == null)
+        {
+            return;
+        }
+        RuleMatcher matcher;
+        try
+        {
+            matcher = dict.matcher(testRule);
+        }
+        catch (RuleResolutionException ex)
+        {
+            System.err.println("Error in rule '" + testRule + "' : " + ex.getMessage()); //$NON-NLS-1$//$NON-NLS-2$
+            return;
+        }
+        boolean stdin = "-".equals(fname); //$NON-NLS-1$
+        InputStream in = stdin ? System.in : new FileInputStream(fname);
+        BulkValidator.Summary summary;
+        try
+        {
+            PrintWriter output = new PrintWriter(new BufferedOutputStream(System.out, 1 << 16));
+            summary = new BulkValidator(matcher, pool).validate(in, output);
+        }
+        finally
+        {
+            if (!stdin)
+            {
+                in.close();
+            }
+        }
+        summary.print(new PrintWriter(System.err));
     }
 
-    private static void printRule(String ruleName, Rule rule, PrintWriter output)
+    private static void printRule(String ruleName, Rule rule, RegexSyntax syntax, PrintWriter output)
     {
         if (rule == null)
         {
@@ -127,7 +368,7 @@ public class Abnf2Regex
         {
             output.print(ruleName);
             output.print(": ");
-            rule.writeRegex(output, new HashSet<String>());
+            rule.writeRegex(output, syntax, new HashSet<String>());
         }
         catch (RuleResolutionException e)
         {
@@ -150,8 +391,7 @@ public class Abnf2Regex
         }
         try
         {
-            RegexSyntax.setCurrent(RegexSyntax.SYNTAX_JAVA);
-            String regex = dict.ruleToRegex(testRule);
+            String regex = dict.ruleToRegex(testRule, RegexSyntax.getSyntax(RegexSyntax.SYNTAX_JAVA));
             Pattern p = Pattern.compile(regex);
             Matcher m = p.matcher(testString);
             String matches = m.matches() ? "matches" : "does not match"; //$NON-NLS-1$ //$NON-NLS-2$
@@ -175,33 +415,61 @@ public class Abnf2Regex
      * Parses inputs and creates a rule dictionary.
      *
      * @param dict the rule dictionary to build.
+     * @param pool threads to parse with, or null to parse each input in turn.
      * @param inputs a list of file names or URIs to load.
      * @throws IOException when there are IO errors
      */
-    private static void parseInputs(RuleDictionary dict, String... inputs) throws IOException, AbnfParseException
+    private static void parseInputs(RuleDictionary dict, ForkJoinPool pool, String... inputs) throws IOException,
+            AbnfParseException
     {
-        Pattern urlScheme = Pattern.compile(Abnf2Regex.URI_PATTERN);
+        if (pool == null)
+        {
+            for (String fname : inputs)
+            {
+                dict.parse(Abnf2Regex.readInput(fname));
+            }
+            return;
+        }
 
+        List<AbnfReader> readers = new ArrayList<AbnfReader>();
         for (String fname : inputs)
         {
-            Matcher isUrl = urlScheme.matcher(fname);
+            readers.add(Abnf2Regex.readInput(fname));
+        }
+        dict.parse(readers, pool);
+    }
 
-            if (isUrl.matches())
-            {
-                URL f = new URL(fname);
+    /**
+     * Read all of an input into memory.
+     *
+     * @param fname a file name or URI.
+     * @return a reader over the contents of the input.
+     * @throws IOException when there are IO errors
+     */
+    private static AbnfReader readInput(String fname) throws IOException
+    {
+        Matcher isUrl = Abnf2Regex.URL_SCHEME.matcher(fname);
+
+        if (isUrl.matches())
+        {
+            URL f = new URL(fname);
 
-                dict.parse(f.openStream(), f.toString());
+            InputStream in = f.openStream();
+            try
+            {
+                return AbnfReader.readFully(new InputStreamReader(in, Abnf2Regex.INPUT_CHARSET), f.toString());
             }
-            else
+            finally
             {
-                File f = new File(fname);
-                if (!f.exists())
-                {
-                    throw new FileNotFoundException(f.getName());
-                }
-
-                dict.parse(new FileInputStream(f), f.toString());
+                in.close();
             }
         }
+
+        File f = new File(fname);
+        if (!f.exists())
+        {
+            throw new FileNotFoundException(f.getName());
+        }
+        return AbnfReader.readFile(f, Abnf2Regex.INPUT_CHARSET);
     }
 }
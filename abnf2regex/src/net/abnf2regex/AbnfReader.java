@@ -1,12 +1,26 @@
 package net.abnf2regex;
 
+import java.io.CharArrayReader;
+import java.io.EOFException;
+import java.io.File;
 import java.io.FilterReader;
 import java.io.IOException;
 import java.io.Reader;
+import java.nio.CharBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
 
 /**
  * A class that adds a few helpful functions to the standard reader class, such
  * as the ability to peek ahead at the next character.
+ * <p>
+ * A reader can either wrap another {@link Reader}, which is read one character
+ * at a time, or it can work directly over an array of characters. The array
+ * form is much faster, because names, numbers and whitespace are scanned
+ * without a call for each character.
  */
 public class AbnfReader extends FilterReader
 {
@@ -24,6 +38,13 @@ public class AbnfReader extends FilterReader
     /** used by the character counter */
     private int column = 1;
 
+    /** The characters to read, or null if reading from the wrapped reader. */
+    private final char[] buffer;
+    /** The position of the next character in {@link #buffer}. */
+    private int pos;
+    /** The end of the characters in {@link #buffer}. */
+    private final int limit;
+
     /**
      * Gets the line number of the next character to be read.
      *
@@ -64,6 +85,107 @@ public class AbnfReader extends FilterReader
     {
         super(r);
         this.filename = _filename;
+        this.buffer = null;
+        this.limit = 0;
+    }
+
+    /**
+     * Create a new reader over an array of characters. The array is used
+     * directly, so it must not be changed while it is being read.
+     *
+     * @param _buffer the characters to read.
+     * @param _length the number of characters in the buffer.
+     * @param _filename the name of the file/stream that is being read.
+     */
+    public AbnfReader(char[] _buffer, int _length, String _filename)
+    {
+        super(new CharArrayReader(_buffer, 0, _length));
+        this.filename = _filename;
+        this.buffer = _buffer;
+        this.limit = _length;
+    }
+
+    /**
+     * Read everything from a reader into a new {@link AbnfReader} that works
+     * over an array of characters.
+     *
+     * @param r the reader to read from; it is not closed.
+     * @param _filename the name of the file/stream that is being read.
+     * @return a reader over the characters that were read.
+     * @throws IOException if the read fails
+     */
+    public static AbnfReader readFully(Reader r, String _filename) throws IOException
+    {
+        char[] buf = new char[8192];
+        int len = 0;
+        int n;
+        while ((n = r.read(buf, len, buf.length - len)) >= 0)
+        {
+            len += n;
+            if (len == buf.length)
+            {
+                buf = Arrays.copyOf(buf, buf.length * 2);
+            }
+        }
+        return new AbnfReader(buf, len, _filename);
+    }
+
+    /**
+     * Read a file into a new {@link AbnfReader}. The file is memory mapped and
+     * decoded in one step, and the file is closed before this returns.
+     *
+     * @param f the file to read.
+     * @param charset the encoding of the file.
+     * @return a reader over the characters in the file.
+     * @throws IOException if the file can't be read
+     */
+    public static AbnfReader readFile(File f, Charset charset) throws IOException
+    {
+        CharBuffer chars;
+        FileChannel channel = FileChannel.open(f.toPath(), StandardOpenOption.READ);
+        try
+        {
+            MappedByteBuffer bytes = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            chars = charset.decode(bytes);
+        }
+        finally
+        {
+            channel.close();
+        }
+        if (chars.hasArray() && chars.arrayOffset() == 0 && chars.position() == 0)
+        {
+            return new AbnfReader(chars.array(), chars.limit(), f.toString());
+        }
+        char[] buf = new char[chars.remaining()];
+        chars.get(buf);
+        return new AbnfReader(buf, buf.length, f.toString());
+    }
+
+    /**
+     * Create a new reader over the same characters as this one, starting from
+     * the beginning. Only works for readers over an array of characters.
+     *
+     * @return a new reader
+     * @throws IllegalStateException if this reader wraps another reader
+     */
+    /* package private */AbnfReader restart()
+    {
+        if (this.buffer == null)
+        {
+            throw new IllegalStateException("Can't restart " + this.filename); //$NON-NLS-1$
+        }
+        return new AbnfReader(this.buffer, this.limit, this.filename);
+    }
+
+    /**
+     * Get the number of characters that this reader reads in all.
+     *
+     * @return the number of characters, or -1 if this reader wraps another
+     *         reader
+     */
+    /* package private */int getLength()
+    {
+        return (this.buffer == null) ? -1 : this.limit;
     }
 
     /**
@@ -74,6 +196,10 @@ public class AbnfReader extends FilterReader
      */
     public int peek() throws IOException
     {
+        if (this.buffer != null)
+        {
+            return (this.pos < this.limit) ? this.buffer[this.pos] : -1;
+        }
         if (this.peeked == NO_PEEK)
         {
             this.peeked = super.read();
@@ -83,6 +209,10 @@ public class AbnfReader extends FilterReader
 
     private int reallyRead() throws IOException
     {
+        if (this.buffer != null)
+        {
+            return (this.pos < this.limit) ? this.buffer[this.pos++] : -1;
+        }
         if (this.peeked != NO_PEEK)
         {
             int r = this.peeked;
@@ -109,6 +239,40 @@ public class AbnfReader extends FilterReader
         return c;
     }
 
+    @Override
+    public int read(char[] cbuf, int off, int len) throws IOException
+    {
+        if (this.buffer == null)
+        {
+            return super.read(cbuf, off, len);
+        }
+        if (len > 0 && this.pos >= this.limit)
+        {
+            return -1;
+        }
+        int count = 0;
+        while (count < len && this.pos < this.limit)
+        {
+            cbuf[off + count++] = (char) this.read();
+        }
+        return count;
+    }
+
+    /**
+     * Account for characters that were skipped over in {@link #buffer}. The
+     * characters must not include any end-of-line characters.
+     *
+     * @param start the position of the first skipped character
+     */
+    private void skipped(int start)
+    {
+        if (this.pos > start)
+        {
+            this.column += this.pos - start;
+            this.lastEof = this.buffer[this.pos - 1];
+        }
+    }
+
     /**
      * Determine whether the end of file has arrived. It does this by
      * {@link #peek()}ing.
@@ -131,6 +295,17 @@ public class AbnfReader extends FilterReader
      */
     public int gobbleWhitespace() throws IOException
     {
+        if (this.buffer != null)
+        {
+            // like the wrapped reader case, this doesn't count columns
+            int start = this.pos;
+            while (this.pos < this.limit && this.buffer[this.pos] != '\n' && this.buffer[this.pos] != '\r'
+                    && Character.isWhitespace(this.buffer[this.pos]))
+            {
+                ++this.pos;
+            }
+            return this.pos - start;
+        }
         // prime this.peeked for the looping part, which uses none of the
         // facilities provided by this class and
         // maintains this.peeked for itself
@@ -152,6 +327,15 @@ public class AbnfReader extends FilterReader
      */
     public void findNextLine() throws IOException
     {
+        if (this.buffer != null)
+        {
+            int start = this.pos;
+            while (this.pos < this.limit && this.buffer[this.pos] != '\n' && this.buffer[this.pos] != '\r')
+            {
+                ++this.pos;
+            }
+            this.skipped(start);
+        }
         while (!this.eof() && this.peek() != '\r' && this.peek() != '\n')
         {
             this.read();
@@ -175,9 +359,71 @@ public class AbnfReader extends FilterReader
      */
     public String parseName() throws IOException
     {
+        if (this.buffer != null)
+        {
+            int start = this.pos;
+            while (this.pos < this.limit && AbnfReader.isNameChar(this.buffer[this.pos]))
+            {
+                ++this.pos;
+            }
+            this.skipped(start);
+            return new String(this.buffer, start, this.pos - start);
+        }
+        StringBuilder bld = new StringBuilder();
+        while (!this.eof() && AbnfReader.isNameChar(this.peek()))
+        {
+            bld.append((char) this.read());
+        }
+        return bld.toString();
+    }
+
+    private static boolean isNameChar(int c)
+    {
+        return Character.isLetterOrDigit(c) || c == '-' || c == '_';
+    }
+
+    /**
+     * Parses out a string that runs up to, but doesn't include, the given
+     * character.
+     *
+     * @param end the character that ends the string.
+     * @return the string, which might be empty.
+     * @throws IOException if a read fails, {@link EOFException} if the end of
+     *             the file occurs before the end of the string.
+     */
+    public String parseString(char end) throws IOException
+    {
+        if (this.buffer != null)
+        {
+            int start = this.pos;
+            while (this.pos < this.limit && this.buffer[this.pos] != end)
+            {
+                int c = this.buffer[this.pos];
+                if (c == '\n' || c == '\r')
+                {
+                    this.read(); // let read() count the line
+                }
+                else
+                {
+                    ++this.pos;
+                    ++this.column;
+                    this.lastEof = c;
+                }
+            }
+            if (this.pos >= this.limit)
+            {
+                throw new EOFException();
+            }
+            return new String(this.buffer, start, this.pos - start);
+        }
+
         StringBuilder bld = new StringBuilder();
-        while (!this.eof() && (Character.isLetterOrDigit(this.peek()) || this.peek() == '-' || this.peek() == '_'))
+        while (this.peek() != end)
         {
+            if (this.eof())
+            {
+                throw new EOFException();
+            }
             bld.append((char) this.read());
         }
         return bld.toString();
@@ -194,6 +440,18 @@ public class AbnfReader extends FilterReader
     public int parseNumber(int radix) throws IOException
     {
         int num = 0;
+        if (this.buffer != null)
+        {
+            int start = this.pos;
+            int dig;
+            while (this.pos < this.limit && (dig = Character.digit(this.buffer[this.pos], radix)) >= 0)
+            {
+                num = num * radix + dig;
+                ++this.pos;
+            }
+            this.skipped(start);
+            return num;
+        }
         while (!this.eof() && Character.digit((char) this.peek(), radix) >= 0)
         {
             num = num * radix + Character.digit((char) this.read(), radix);
@@ -0,0 +1,361 @@
+package net.abnf2regex;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintWriter;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.Locale;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+/**
+ * Validates a stream of newline-delimited inputs against a rule, writing a
+ * result for each line and keeping totals and a histogram of how long each
+ * line took to match. Lines are matched as octets, the way that ABNF treats
+ * them, so the input is never decoded; a carriage return at the end of a line
+ * is not part of it.
+ * <p>
+ * The input is read in batches of whole lines, which are matched on the
+ * threads of a pool if one is given. Results are always written in the order
+ * of the input, and only a few batches are held in memory at once, so inputs
+ * of any size can be screened.
+ */
+final class BulkValidator
+{
+    /** The size of a batch of input, unless a single line is longer. */
+    private static final int BATCH_BYTES = 1 << 20;
+    /** The number of batches to have in flight for each thread in the pool. */
+    private static final int BATCHES_PER_THREAD = 2;
+
+    /** The rule to match. */
+    private final RuleMatcher matcher;
+    /** The threads to match on, or null to match on the calling thread. */
+    private final ForkJoinPool pool;
+
+    /**
+     * Create a validator.
+     *
+     * @param _matcher the rule to match
+     * @param _pool the threads to match on, or null to match each batch on the
+     *            calling thread
+     */
+    BulkValidator(RuleMatcher _matcher, ForkJoinPool _pool)
+    {
+        this.matcher = _matcher;
+        this.pool = _pool;
+    }
+
+    /**
+     * Validate every line of an input.
+     *
+     * @param in the input, which is read to the end but not closed
+     * @param out receives a line for each input line: its number, a tab, and
+     *            either <code>match</code> or <code>no match</code>
+     * @return the totals
+     * @throws IOException if the input can't be read
+     */
+    Summary validate(InputStream in, PrintWriter out) throws IOException
+    {
+        Summary total = new Summary();
+        long started = System.nanoTime();
+        int inFlight = (this.pool == null) ? 1 : this.pool.getParallelism() * BulkValidator.BATCHES_PER_THREAD;
+        Deque<Future<Batch>> pending = new ArrayDeque<Future<Batch>>();
+        byte[] buf = new byte[BulkValidator.BATCH_BYTES];
+        int fill = 0;
+        boolean eof = false;
+        while (!eof)
+        {
+            int n = in.read(buf, fill, buf.length - fill);
+            if (n < 0)
+            {
+                eof = true;
+            }
+            else
+            {
+                fill += n;
+                if (fill < buf.length)
+                {
+                    continue;
+                }
+            }
+            int end = fill;
+            if (!eof)
+            {
+                while (end > 0 && buf[end - 1] != '\n')
+                {
+                    --end;
+                }
+                if (end == 0)
+                {
+                    // a line longer than the buffer
+                    buf = Arrays.copyOf(buf, buf.length * 2);
+                    continue;
+                }
+            }
+            if (end > 0)
+            {
+                Batch batch = new Batch(Arrays.copyOf(buf, end));
+                if (this.pool == null)
+                {
+                    batch.call();
+                    this.write(batch, total, out);
+                }
+                else
+                {
+                    if (pending.size() >= inFlight)
+                    {
+                        this.write(BulkValidator.await(pending.removeFirst()), total, out);
+                    }
+                    pending.addLast(this.pool.submit(batch));
+                }
+            }
+            System.arraycopy(buf, end, buf, 0, fill - end);
+            fill -= end;
+        }
+        while (!pending.isEmpty())
+        {
+            this.write(BulkValidator.await(pending.removeFirst()), total, out);
+        }
+        out.flush();
+        total.nanos = System.nanoTime() - started;
+        return total;
+    }
+
+    private static Batch await(Future<Batch> future)
+    {
+        try
+        {
+            return future.get();
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException(e);
+        }
+        catch (ExecutionException e)
+        {
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+
+    private void write(Batch batch, Summary total, PrintWriter out)
+    {
+        for (int i = 0; i < batch.lines; ++i)
+        {
+            out.print(++total.lines);
+            out.println(batch.results[i] ? "\tmatch" : "\tno match"); //$NON-NLS-1$ //$NON-NLS-2$
+        }
+        total.matched += batch.matched;
+        total.bytes += batch.data.length;
+        total.latency.add(batch.latency);
+    }
+
+    /**
+     * Some whole lines of input, and the results of matching them.
+     */
+    private final class Batch implements Callable<Batch>
+    {
+        /** The input, where every line but the last ends with a newline. */
+        final byte[] data;
+        /** Whether each line matched. */
+        boolean[] results = new boolean[64];
+        /** The number of lines. */
+        int lines;
+        /** The number of lines that matched. */
+        long matched;
+        /** How long each line took to match. */
+        final Histogram latency = new Histogram();
+
+        Batch(byte[] _data)
+        {
+            this.data = _data;
+        }
+
+        @Override
+        public Batch call()
+        {
+            RuleMatcher m = BulkValidator.this.matcher;
+            byte[] d = this.data;
+            int start = 0;
+            while (start < d.length)
+            {
+                int end = start;
+                while (end < d.length && d[end] != '\n')
+                {
+                    ++end;
+                }
+                int next = end + 1;
+                if (end > start && d[end - 1] == '\r')
+                {
+                    --end;
+                }
+                long before = System.nanoTime();
+                boolean ok = m.matches(d, start, end - start);
+                this.latency.record(System.nanoTime() - before);
+                if (this.lines == this.results.length)
+                {
+                    this.results = Arrays.copyOf(this.results, this.lines * 2);
+                }
+                this.results[this.lines++] = ok;
+                if (ok)
+                {
+                    ++this.matched;
+                }
+                start = next;
+            }
+            return this;
+        }
+    }
+
+    /**
+     * The totals for an input.
+     */
+    static final class Summary
+    {
+        /** The number of lines. */
+        long lines;
+        /** The number of lines that matched. */
+        long matched;
+        /** The number of bytes read, including line ends. */
+        long bytes;
+        /** The time that validation took, in nanoseconds. */
+        long nanos;
+        /** How long each line took to match, in nanoseconds. */
+        final Histogram latency = new Histogram();
+
+        /**
+         * Write the totals, the throughput and the latency percentiles.
+         *
+         * @param out where to write
+         */
+        void print(PrintWriter out)
+        {
+            double seconds = Math.max(this.nanos, 1) / 1e9;
+            out.println(String.format(Locale.ROOT, "Lines: %d, matched: %d, not matched: %d", //$NON-NLS-1$
+                    Long.valueOf(this.lines), Long.valueOf(this.matched), Long.valueOf(this.lines - this.matched)));
+            out.println(String.format(Locale.ROOT, "Throughput: %.1f MB/s, %.0f lines/s in %.3f s", //$NON-NLS-1$
+                    Double.valueOf(this.bytes / seconds / 1e6), Double.valueOf(this.lines / seconds),
+                    Double.valueOf(seconds)));
+            out.println(String.format(Locale.ROOT, "Latency (ns): p50=%d p90=%d p99=%d p99.9=%d max=%d", //$NON-NLS-1$
+                    Long.valueOf(this.latency.percentile(50)), Long.valueOf(this.latency.percentile(90)),
+                    Long.valueOf(this.latency.percentile(99)), Long.valueOf(this.latency.percentile(99.9)),
+                    Long.valueOf(this.latency.getMax())));
+            out.flush();
+        }
+    }
+
+    /**
+     * Counts of non-negative values, in buckets that are exact below 16 and
+     * otherwise have 16 to each power of two, so percentiles are reported
+     * within about 6%.
+     */
+    static final class Histogram
+    {
+        /** The number of buckets for the values below each power of two. */
+        private static final int SUB_BUCKETS = 16;
+
+        /** The count in each bucket. */
+        private final long[] counts = new long[64 * Histogram.SUB_BUCKETS];
+        /** The number of values. */
+        private long total;
+        /** The largest value. */
+        private long max;
+
+        /**
+         * Count a value.
+         *
+         * @param value the value, where a negative value counts as zero
+         */
+        void record(long value)
+        {
+            long v = Math.max(value, 0);
+            ++this.counts[Histogram.bucket(v)];
+            ++this.total;
+            this.max = Math.max(this.max, v);
+        }
+
+        /**
+         * Add the counts from another histogram.
+         *
+         * @param other the other histogram
+         */
+        void add(Histogram other)
+        {
+            for (int i = 0; i < this.counts.length; ++i)
+            {
+                this.counts[i] += other.counts[i];
+            }
+            this.total += other.total;
+            this.max = Math.max(this.max, other.max);
+        }
+
+        /**
+         * Get the number of values.
+         *
+         * @return the count
+         */
+        long getCount()
+        {
+            return this.total;
+        }
+
+        /**
+         * Get the largest value.
+         *
+         * @return the largest value, or 0 if there are none
+         */
+        long getMax()
+        {
+            return this.max;
+        }
+
+        /**
+         * Get a value that at least the given percentage of values are no
+         * bigger than.
+         *
+         * @param percent from 0 to 100
+         * @return the largest value in the bucket that holds the percentile,
+         *         but no more than the largest value; 0 if there are no values
+         */
+        long percentile(double percent)
+        {
+            long rank = (long) Math.ceil(this.total * percent / 100);
+            long seen = 0;
+            for (int i = 0; i < this.counts.length; ++i)
+            {
+                seen += this.counts[i];
+                if (seen >= rank && seen > 0)
+                {
+                    return Math.min(Histogram.highest(i), this.max);
+                }
+            }
+            return this.max;
+        }
+
+        private static int bucket(long v)
+        {
+            if (v < Histogram.SUB_BUCKETS)
+            {
+                return (int) v;
+            }
+            int exp = 63 - Long.numberOfLeadingZeros(v);
+            int sub = (int) (v >>> (exp - 4)) & (Histogram.SUB_BUCKETS - 1);
+            return (exp - 3) * Histogram.SUB_BUCKETS + sub;
+        }
+
+        private static long highest(int bucket)
+        {
+            if (bucket < Histogram.SUB_BUCKETS)
+            {
+                return bucket;
+            }
+            int exp = bucket / Histogram.SUB_BUCKETS + 3;
+            int sub = bucket % Histogram.SUB_BUCKETS;
+            return ((long) (Histogram.SUB_BUCKETS + sub + 1) << (exp - 4)) - 1;
+        }
+    }
+}
@@ -0,0 +1,363 @@
+package net.abnf2regex;
+
+import java.util.Arrays;
+
+/**
+ * Matches input against a rule, and reports where some of the rules that it
+ * references matched, as spans of offsets into the input. For example, a
+ * matcher for <code>authority</code> that captures <code>host</code> and
+ * <code>port</code> pulls both fields out of <code>example.com:8080</code> in a
+ * single pass.
+ * <p>
+ * The spans are written into an array that the caller provides, two numbers
+ * for each captured rule: the offset where it starts, then the offset just
+ * after it ends. A rule that didn't take part in the match gets -1 for both.
+ * Where a rule matches more than once, the last match is the one reported.
+ * Where the input can be matched in more than one way, earlier alternatives
+ * and longer repetitions are preferred, as a backtracking regular expression
+ * engine would.
+ * <p>
+ * The input is run through the automaton once, tracking the states it could
+ * be in and the spans each of them has seen, so matching takes time
+ * proportional to the length of the input multiplied by the size of the rule.
+ * The working storage is kept for each thread and reused, so matching doesn't
+ * allocate anything once a thread has matched once.
+ * <p>
+ * Instances can be used from any number of threads at once. Only regular rules
+ * can be matched with captures.
+ *
+ * @see RuleDictionary#captureMatcher(String, String...)
+ */
+public final class CaptureMatcher
+{
+    /** The name of the rule. */
+    private final String name;
+    /** The names of the captured rules. */
+    private final String[] captureNames;
+    /** The compiled rule, with {@link Nfa#SAVE} states around the captures. */
+    private final Nfa nfa;
+    /** The number of capture slots, two for each captured rule. */
+    private final int slots;
+
+    /** Working storage for each thread. */
+    private final ThreadLocal<Threads> threads = new ThreadLocal<Threads>()
+    {
+        @Override
+        protected Threads initialValue()
+        {
+            return new Threads();
+        }
+    };
+
+    private CaptureMatcher(String _name, String[] _captureNames, Nfa _nfa)
+    {
+        this.name = _name;
+        this.captureNames = _captureNames;
+        this.nfa = _nfa;
+        this.slots = _captureNames.length * 2;
+    }
+
+    /**
+     * Compile a rule with captures. The rule, and every rule it references,
+     * must already be resolved.
+     *
+     * @param rule the rule to compile
+     * @param captures the rules to capture, which are numbered in this order
+     * @return a matcher for the rule
+     * @throws RuleResolutionException if the rule references rules that aren't
+     *             resolved
+     * @throws IllegalArgumentException if the rule reaches a recursive rule
+     * @see RuleDictionary#captureMatcher(String, String...)
+     */
+    public static CaptureMatcher compile(Rule rule, Rule... captures) throws RuleResolutionException
+    {
+        if (!rule.isRegular())
+        {
+            throw new IllegalArgumentException("Can't capture within recursive rule '" //$NON-NLS-1$
+                    + rule.getName() + "'"); //$NON-NLS-1$
+        }
+        String[] names = new String[captures.length];
+        int[] symbols = new int[captures.length];
+        for (int k = 0; k < captures.length; ++k)
+        {
+            names[k] = captures[k].getName();
+            symbols[k] = captures[k].getSymbol();
+        }
+        return new CaptureMatcher(rule.getName(), names, Nfa.compile(rule, symbols));
+    }
+
+    /**
+     * Get the name of the rule.
+     *
+     * @return the rule name
+     */
+    public String getRuleName()
+    {
+        return this.name;
+    }
+
+    /**
+     * Get the number of captured rules.
+     *
+     * @return the number of captures; spans need twice as many numbers
+     */
+    public int getCaptureCount()
+    {
+        return this.captureNames.length;
+    }
+
+    /**
+     * Get the name of a captured rule.
+     *
+     * @param index the number of the capture
+     * @return the rule name
+     */
+    public String getCaptureName(int index)
+    {
+        return this.captureNames[index];
+    }
+
+    /**
+     * Create an array that is big enough to hold the spans.
+     *
+     * @return a new array, with two numbers for each capture
+     */
+    public int[] newSpans()
+    {
+        return new int[this.slots];
+    }
+
+    /**
+     * Match the entire input, and find the spans of the captures. Offsets
+     * count chars from the start of the input.
+     *
+     * @param input the input to test
+     * @param spans receives the start and end of capture k at 2k and 2k+1; it
+     *            is left unchanged if the input doesn't match
+     * @return true if the input matches
+     * @throws IllegalArgumentException if spans is too short
+     */
+    public boolean match(CharSequence input, int[] spans)
+    {
+        this.checkSpans(spans);
+        OperationListener listener = OperationListener.get();
+        Object op = OperationListener.begin(listener, OperationListener.MATCH);
+        Threads t = this.threads.get();
+        t.begin(0);
+        int len = input.length();
+        int i = 0;
+        while (i < len && t.current.size > 0)
+        {
+            char c = input.charAt(i++);
+            int cp = c;
+            if (Character.isHighSurrogate(c) && i < len && Character.isLowSurrogate(input.charAt(i)))
+            {
+                cp = Character.toCodePoint(c, input.charAt(i++));
+            }
+            t.step(cp, i);
+        }
+        boolean matched = t.finish(spans);
+        if (op != null)
+        {
+            listener.end(op, this.name, null, len, matched ? 1 : 0);
+        }
+        return matched;
+    }
+
+    /**
+     * Match a range of bytes, and find the spans of the captures. Each byte is
+     * taken as a code point from 0 to 255, the way that ABNF treats octets.
+     * Offsets are indexes into the array, so fields can be decoded straight
+     * from it.
+     *
+     * @param input the bytes
+     * @param offset the index of the first byte to test
+     * @param length the number of bytes to test
+     * @param spans receives the start and end of capture k at 2k and 2k+1; it
+     *            is left unchanged if the bytes don't match
+     * @return true if the bytes match
+     * @throws IndexOutOfBoundsException if the range isn't within the array
+     * @throws IllegalArgumentException if spans is too short
+     */
+    public boolean match(byte[] input, int offset, int length, int[] spans)
+    {
+        if (offset < 0 || length < 0 || offset > input.length - length)
+        {
+            throw new IndexOutOfBoundsException();
+        }
+        this.checkSpans(spans);
+        OperationListener listener = OperationListener.get();
+        Object op = OperationListener.begin(listener, OperationListener.MATCH);
+        Threads t = this.threads.get();
+        t.begin(offset);
+        int end = offset + length;
+        for (int i = offset; i < end && t.current.size > 0; ++i)
+        {
+            t.step(input[i] & 0xFF, i + 1);
+        }
+        boolean matched = t.finish(spans);
+        if (op != null)
+        {
+            listener.end(op, this.name, null, length, matched ? 1 : 0);
+        }
+        return matched;
+    }
+
+    private void checkSpans(int[] spans)
+    {
+        if (spans.length < this.slots)
+        {
+            throw new IllegalArgumentException("Spans need " + this.slots + " elements"); //$NON-NLS-1$ //$NON-NLS-2$
+        }
+    }
+
+    @Override
+    public String toString()
+    {
+        return "CaptureMatcher[" + this.name + Arrays.toString(this.captureNames) + "]"; //$NON-NLS-1$ //$NON-NLS-2$
+    }
+
+    /**
+     * The states that matching could be in, each with the spans it has seen,
+     * in order of preference.
+     */
+    private final class Threads
+    {
+        /** The states before the next code point. */
+        Nfa.StateSet current;
+        /** The states after the next code point. */
+        private Nfa.StateSet following;
+        /** The slots for each state in {@link #current}, indexed by state. */
+        private int[] currentSlots;
+        /** The slots for each state in {@link #following}, indexed by state. */
+        private int[] followingSlots;
+        /** The slots of the path being followed. */
+        private final int[] path;
+        /**
+         * Pairs of numbers: a state to visit, or the complement of a slot and
+         * the value to restore it to.
+         */
+        private final int[] stack;
+
+        Threads()
+        {
+            int n = CaptureMatcher.this.nfa.size;
+            int k = CaptureMatcher.this.slots;
+            this.current = new Nfa.StateSet(n);
+            this.following = new Nfa.StateSet(n);
+            this.currentSlots = new int[n * k];
+            this.followingSlots = new int[n * k];
+            this.path = new int[k];
+            // each state is visited once, and pushes at most two pairs
+            this.stack = new int[(n * 2 + 1) * 2];
+        }
+
+        void begin(int offset)
+        {
+            Arrays.fill(this.path, -1);
+            this.current.clear();
+            this.add(this.current, this.currentSlots, CaptureMatcher.this.nfa.start, offset);
+        }
+
+        /**
+         * Move every state that accepts a code point along.
+         *
+         * @param cp the code point
+         * @param pos the offset just after the code point
+         */
+        void step(int cp, int pos)
+        {
+            Nfa n = CaptureMatcher.this.nfa;
+            int k = CaptureMatcher.this.slots;
+            this.following.clear();
+            for (int j = 0; j < this.current.size; ++j)
+            {
+                int s = this.current.dense[j];
+                if (n.op[s] == Nfa.CHAR && n.accepts(s, cp))
+                {
+                    System.arraycopy(this.currentSlots, s * k, this.path, 0, k);
+                    this.add(this.following, this.followingSlots, n.next[s], pos);
+                }
+            }
+            Nfa.StateSet swap = this.current;
+            this.current = this.following;
+            this.following = swap;
+            int[] swapSlots = this.currentSlots;
+            this.currentSlots = this.followingSlots;
+            this.followingSlots = swapSlots;
+        }
+
+        /**
+         * Report the spans of the most preferred state that accepts.
+         *
+         * @param spans receives the spans
+         * @return true if a state accepts
+         */
+        boolean finish(int[] spans)
+        {
+            Nfa n = CaptureMatcher.this.nfa;
+            int k = CaptureMatcher.this.slots;
+            for (int j = 0; j < this.current.size; ++j)
+            {
+                int s = this.current.dense[j];
+                if (n.op[s] == Nfa.MATCH)
+                {
+                    System.arraycopy(this.currentSlots, s * k, spans, 0, k);
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        /**
+         * Add a state, and the states that can be reached from it without
+         * consuming input, in order of preference. Each state that is added
+         * for the first time gets a copy of the slots of the path that
+         * reached it.
+         */
+        private void add(Nfa.StateSet set, int[] setSlots, int state, int pos)
+        {
+            Nfa n = CaptureMatcher.this.nfa;
+            int k = CaptureMatcher.this.slots;
+            int[] st = this.stack;
+            int top = 0;
+            st[top++] = state;
+            st[top++] = 0;
+            while (top > 0)
+            {
+                int value = st[--top];
+                int s = st[--top];
+                if (s < 0)
+                {
+                    this.path[~s] = value;
+                    continue;
+                }
+                if (!set.add(s))
+                {
+                    continue;
+                }
+                switch (n.op[s])
+                {
+                    case Nfa.SPLIT:
+                        // push alt first so that next is preferred
+                        st[top++] = n.alt[s];
+                        st[top++] = 0;
+                        st[top++] = n.next[s];
+                        st[top++] = 0;
+                        break;
+                    case Nfa.SAVE:
+                        int slot = n.alt[s];
+                        st[top++] = ~slot;
+                        st[top++] = this.path[slot];
+                        this.path[slot] = pos;
+                        st[top++] = n.next[s];
+                        st[top++] = 0;
+                        break;
+                    default:
+                        System.arraycopy(this.path, 0, setSlots, s * k, k);
+                        break;
+                }
+            }
+        }
+    }
+}
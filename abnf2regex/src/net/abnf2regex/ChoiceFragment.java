@@ -71,11 +71,12 @@ public class ChoiceFragment extends GroupFragment
     }
 
     @Override
-    protected void buildRegex(PrintWriter pw, Set<String> usedNames) throws RuleResolutionException
+    protected void buildRegex(PrintWriter pw, RegexSyntax syntax, Set<String> usedNames)
+            throws RuleResolutionException
     {
         Deque<RuleFragment> copy = new ArrayDeque<RuleFragment>(this.fragments);
         boolean started = false;
-        String singles = getSingleCharacterList(copy);
+        String singles = getSingleCharacterList(copy, syntax);
         if (singles.length() > 0)
         {
             started = true;
@@ -86,10 +87,10 @@ public class ChoiceFragment extends GroupFragment
         {
             if (started)
             {
-                pw.print(RegexSyntax.getCurrent().getChoiceSeparator());
+                pw.print(syntax.getChoiceSeparator());
             }
             started = true;
-            rf.writeRegex(pw, usedNames);
+            rf.writeRegex(pw, syntax, usedNames);
         }
     }
 
@@ -99,15 +100,15 @@ public class ChoiceFragment extends GroupFragment
      *
      * @param copy a copy of the fragments in this choice, which can (and will)
      *            have any used elements removed.
+     * @param syntax the regular expression syntax to use
      */
-    private String getSingleCharacterList(Collection<RuleFragment> copy)
+    private String getSingleCharacterList(Collection<RuleFragment> copy, RegexSyntax syntax)
     {
         List<CharRange> singles = extractSingles(copy);
         if (singles.size() > 0)
         {
             mergeRanges(singles);
 
-            RegexSyntax syntax = RegexSyntax.getCurrent();
             StringBuilder bld = new StringBuilder();
             for (CharRange cr : singles)
             {
@@ -0,0 +1,289 @@
+package net.abnf2regex;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Records the time that a {@link RuleDictionary} spends in each phase of
+ * turning ABNF into regular expressions, and counts what happens along the
+ * way. Attach an instance with {@link RuleDictionary#setStats(CompilationStats)}
+ * and read it at any time; dictionaries that share an instance add to the
+ * same totals.
+ * <p>
+ * Times are summed over all of the threads that do the work, so they can add
+ * up to more than the time that passed. Simplifying is done while parsing and
+ * while expanding, so its time is also part of the time for those phases.
+ * Expanding is done on demand, so rules that are expanded as they are written
+ * count towards {@link #EXPAND}, not {@link #EMIT}.
+ * <p>
+ * Counting only costs a read of a shared variable on threads that aren't
+ * recording, so dictionaries without statistics aren't slowed down.
+ */
+public final class CompilationStats
+{
+    /** Parsing ABNF, including simplifying each new rule. */
+    public static final int PARSE = 0;
+    /** Resolving references between rules. */
+    public static final int RESOLVE = 1;
+    /** Expanding rules, including simplifying the expansions. */
+    public static final int EXPAND = 2;
+    /** Simplifying rules, while parsing or expanding. */
+    public static final int SIMPLIFY = 3;
+    /** Writing regular expressions. */
+    public static final int EMIT = 4;
+    /** The number of phases. */
+    public static final int PHASE_COUNT = 5;
+
+    /** The number of rule fragments created, including copies. */
+    public static final int FRAGMENTS = 0;
+    /** The number of times a rule fragment was cloned. */
+    public static final int CLONES = 1;
+    /** The number of groups that were created by reflection. */
+    public static final int REFLECTIVE_INSTANCES = 2;
+    /** The number of rules that were expanded. */
+    public static final int EXPANSIONS = 3;
+    /** The number of expansions that were found in the cache instead. */
+    public static final int CACHE_HITS = 4;
+    /** The number of bytes of regular expressions written, as UTF-8. */
+    public static final int OUTPUT_BYTES = 5;
+    /** The number of counters. */
+    public static final int COUNTER_COUNT = 6;
+
+    /** The names of the phases. */
+    private static final String[] PHASE_NAMES = { "parse", "resolve", //$NON-NLS-1$ //$NON-NLS-2$
+            "expand", "simplify", "emit" }; //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+    /** The names of the counters. */
+    private static final String[] COUNTER_NAMES = { "fragments", "clones", //$NON-NLS-1$ //$NON-NLS-2$
+            "reflective instances", "expansions", //$NON-NLS-1$ //$NON-NLS-2$
+            "cache hits", "output bytes" }; //$NON-NLS-1$ //$NON-NLS-2$
+
+    /** The number of threads that are recording. */
+    private static final AtomicInteger recording = new AtomicInteger();
+    /** Where each thread that is recording records to. */
+    private static final ThreadLocal<CompilationStats> current = new ThreadLocal<CompilationStats>();
+
+    /** The time spent in each phase, in nanoseconds. */
+    private final LongAdder[] nanos = new LongAdder[CompilationStats.PHASE_COUNT];
+    /** The value of each counter. */
+    private final LongAdder[] counts = new LongAdder[CompilationStats.COUNTER_COUNT];
+
+    /**
+     * Create statistics that are all zero.
+     */
+    public CompilationStats()
+    {
+        for (int i = 0; i < this.nanos.length; ++i)
+        {
+            this.nanos[i] = new LongAdder();
+        }
+        for (int i = 0; i < this.counts.length; ++i)
+        {
+            this.counts[i] = new LongAdder();
+        }
+    }
+
+    /**
+     * Get the time spent in a phase.
+     *
+     * @param phase a phase, such as {@link #PARSE}
+     * @return the time in nanoseconds
+     */
+    public long getNanos(int phase)
+    {
+        return this.nanos[phase].sum();
+    }
+
+    /**
+     * Get the value of a counter.
+     *
+     * @param counter a counter, such as {@link #FRAGMENTS}
+     * @return the count
+     */
+    public long getCount(int counter)
+    {
+        return this.counts[counter].sum();
+    }
+
+    /**
+     * Get the name of a phase.
+     *
+     * @param phase a phase, such as {@link #PARSE}
+     * @return the name
+     */
+    public static String getPhaseName(int phase)
+    {
+        return CompilationStats.PHASE_NAMES[phase];
+    }
+
+    /**
+     * Get the name of a counter.
+     *
+     * @param counter a counter, such as {@link #FRAGMENTS}
+     * @return the name
+     */
+    public static String getCounterName(int counter)
+    {
+        return CompilationStats.COUNTER_NAMES[counter];
+    }
+
+    /**
+     * Set all times and counts back to zero. Anything recorded at the same
+     * time might be lost.
+     */
+    public void reset()
+    {
+        for (LongAdder a : this.nanos)
+        {
+            a.reset();
+        }
+        for (LongAdder a : this.counts)
+        {
+            a.reset();
+        }
+    }
+
+    /**
+     * Write the times, in milliseconds, and the counts.
+     *
+     * @param out where to write
+     */
+    public void print(PrintWriter out)
+    {
+        StringBuilder times = new StringBuilder("Time (ms):"); //$NON-NLS-1$
+        for (int i = 0; i < CompilationStats.PHASE_COUNT; ++i)
+        {
+            times.append(String.format(Locale.ROOT, " %s=%.3f", CompilationStats.PHASE_NAMES[i], //$NON-NLS-1$
+                    Double.valueOf(this.getNanos(i) / 1e6)));
+        }
+        out.println(times);
+        StringBuilder counters = new StringBuilder("Counts:"); //$NON-NLS-1$
+        for (int i = 0; i < CompilationStats.COUNTER_COUNT; ++i)
+        {
+            String separator = (i == 0) ? " " : ", "; //$NON-NLS-1$ //$NON-NLS-2$
+            counters.append(separator).append(CompilationStats.COUNTER_NAMES[i]).append('=').append(this.getCount(i));
+        }
+        out.println(counters);
+        out.flush();
+    }
+
+    @Override
+    public String toString()
+    {
+        StringWriter sw = new StringWriter();
+        this.print(new PrintWriter(sw));
+        return sw.toString();
+    }
+
+    /**
+     * Start recording a phase on this thread. Every call must be paired with
+     * a call to {@link #end(CompilationStats, CompilationStats, int, long)}.
+     *
+     * @param stats where to record, or null to record nothing
+     * @return what this thread was recording to before, which is passed to
+     *         {@link #end(CompilationStats, CompilationStats, int, long)}
+     */
+    static CompilationStats begin(CompilationStats stats)
+    {
+        if (stats == null)
+        {
+            return null;
+        }
+        CompilationStats outer = CompilationStats.current.get();
+        if (outer == null)
+        {
+            CompilationStats.recording.incrementAndGet();
+        }
+        CompilationStats.current.set(stats);
+        return outer;
+    }
+
+    /**
+     * Finish recording a phase on this thread.
+     *
+     * @param stats where to record, as passed to {@link #begin(CompilationStats)}
+     * @param outer what {@link #begin(CompilationStats)} returned
+     * @param phase the phase
+     * @param started when the phase started, from {@link System#nanoTime()}
+     */
+    static void end(CompilationStats stats, CompilationStats outer, int phase, long started)
+    {
+        if (stats == null)
+        {
+            return;
+        }
+        stats.nanos[phase].add(System.nanoTime() - started);
+        if (outer == null)
+        {
+            CompilationStats.current.remove();
+            CompilationStats.recording.decrementAndGet();
+        }
+        else
+        {
+            CompilationStats.current.set(outer);
+        }
+    }
+
+    /**
+     * Count something, if this thread is recording.
+     *
+     * @param counter the counter, such as {@link #FRAGMENTS}
+     */
+    static void count(int counter)
+    {
+        if (CompilationStats.recording.get() != 0)
+        {
+            CompilationStats stats = CompilationStats.current.get();
+            if (stats != null)
+            {
+                stats.counts[counter].increment();
+            }
+        }
+    }
+
+    /**
+     * Count the bytes of a regular expression, if this thread is recording.
+     *
+     * @param regex the regular expression
+     */
+    static void countOutput(CharSequence regex)
+    {
+        if (CompilationStats.recording.get() != 0)
+        {
+            CompilationStats stats = CompilationStats.current.get();
+            if (stats != null)
+            {
+                stats.counts[CompilationStats.OUTPUT_BYTES].add(CompilationStats.utf8Length(regex));
+            }
+        }
+    }
+
+    private static long utf8Length(CharSequence s)
+    {
+        long length = 0;
+        for (int i = 0; i < s.length(); ++i)
+        {
+            char c = s.charAt(i);
+            if (c < 0x80)
+            {
+                ++length;
+            }
+            else if (c < 0x800)
+            {
+                length += 2;
+            }
+            else if (Character.isHighSurrogate(c) && i + 1 < s.length() && Character.isLowSurrogate(s.charAt(i + 1)))
+            {
+                length += 4;
+                ++i;
+            }
+            else
+            {
+                length += 3;
+            }
+        }
+        return length;
+    }
+}
@@ -0,0 +1,62 @@
+package net.abnf2regex;
+
+/**
+ * A position part way through matching, which input is fed to one code point
+ * at a time. Each kind of compiled rule has its own kind of cursor.
+ *
+ * @see MatchState
+ */
+abstract class Cursor
+{
+    /**
+     * Called before a run of calls to {@link #step(int)}, on the thread that
+     * will make them.
+     */
+    void begin()
+    {
+        // nothing to prepare by default
+    }
+
+    /**
+     * Consume a code point.
+     *
+     * @param cp the code point
+     * @return false if no input starting this way can match
+     */
+    abstract boolean step(int cp);
+
+    /**
+     * Called after a run of calls to {@link #step(int)}.
+     */
+    void end()
+    {
+        // nothing to tidy up by default
+    }
+
+    /**
+     * Determine whether the input so far matches. This can be called during a
+     * run of steps, as well as between them.
+     *
+     * @return true if the input matches
+     */
+    abstract boolean isAccepting();
+
+    /**
+     * Determine whether the input so far can never match.
+     *
+     * @return true if no input starting this way can match
+     */
+    abstract boolean isDead();
+
+    /**
+     * Go back to the start of the input.
+     */
+    abstract void reset();
+
+    /**
+     * Make an independent copy of this cursor.
+     *
+     * @return the copy
+     */
+    abstract Cursor copy();
+}
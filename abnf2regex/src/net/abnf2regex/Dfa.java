@@ -0,0 +1,853 @@
+package net.abnf2regex;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A minimal deterministic finite automaton, built from an {@link Nfa} by subset
+ * construction and then minimized using Hopcroft's algorithm. Code points are
+ * first mapped to character classes, where every code point in a class is
+ * treated the same by every state. Transitions are kept in a single table,
+ * indexed by state and class, so matching is a table lookup per character.
+ */
+final class Dfa
+{
+    /** The number of code points that have their class in a lookup table. */
+    static final int LATIN = 256;
+    /**
+     * The most NFA states to hold in all DFA states together while building,
+     * which stops hopeless builds quickly when the NFA is large.
+     */
+    private static final int MAX_SUBSET_TOTAL = 1 << 20;
+
+    /** The classes of code points. */
+    private final CharClasses classes;
+    /** The number of classes. */
+    final int classCount;
+
+    /**
+     * The transition table. Each state has a row of {@link #classCount}
+     * entries, and states are identified by the offset of their row, so the
+     * next state is <code>table[state + class]</code>.
+     */
+    final int[] table;
+    /** Whether each state accepts, indexed by state number (not offset). */
+    final boolean[] accepting;
+    /** The rules that each state accepts, indexed by state number. */
+    private final int[][] matched;
+    /** The offset of the start state. */
+    final int start;
+    /** The offset of the state that can never accept, or -1 if none. */
+    final int dead;
+
+    private Dfa(CharClasses _classes, int[] _table, int[][] _matched, int _start, int _dead)
+    {
+        this.classes = _classes;
+        this.classCount = _classes.size();
+        this.table = _table;
+        this.matched = _matched;
+        this.accepting = new boolean[_matched.length];
+        for (int i = 0; i < _matched.length; ++i)
+        {
+            this.accepting[i] = _matched[i].length > 0;
+        }
+        this.start = _start;
+        this.dead = _dead;
+    }
+
+    /**
+     * Build an automaton.
+     *
+     * @param nfa the automaton to convert
+     * @param maxStates the most states to create before giving up
+     * @return a minimal automaton, or null if there would be too many states,
+     *         or building them would take too much memory
+     */
+    static Dfa build(Nfa nfa, int maxStates)
+    {
+        return Dfa.build(nfa, new CharClasses(nfa), maxStates);
+    }
+
+    /**
+     * Build an automaton, using classes that have already been found.
+     *
+     * @param nfa the automaton to convert
+     * @param classes the classes of code points for the automaton
+     * @param maxStates the most states to create before giving up
+     * @return a minimal automaton, or null if there would be too many states,
+     *         or building them would take too much memory
+     */
+    static Dfa build(Nfa nfa, CharClasses classes, int maxStates)
+    {
+        Subsets subsets = new Subsets(nfa, classes, maxStates);
+        if (!subsets.run())
+        {
+            return null;
+        }
+        return Dfa.minimize(classes, subsets, subsets.count);
+    }
+
+    /**
+     * Get the number of states.
+     *
+     * @return the number of states
+     */
+    int getStateCount()
+    {
+        return this.accepting.length;
+    }
+
+    /**
+     * Determine whether a state accepts.
+     *
+     * @param state the offset of the state
+     * @return true if the state accepts
+     */
+    boolean isAccepting(int state)
+    {
+        return this.accepting[state / this.classCount];
+    }
+
+    /**
+     * Run the automaton over input.
+     *
+     * @param input the input
+     * @return true if the whole input is accepted
+     */
+    boolean matches(CharSequence input)
+    {
+        int[] latin = this.classes.latin;
+        int s = this.start;
+        int len = input.length();
+        int i = 0;
+        while (i < len)
+        {
+            char c = input.charAt(i++);
+            int cls;
+            if (c < Dfa.LATIN)
+            {
+                cls = latin[c];
+            }
+            else
+            {
+                int cp = c;
+                if (Character.isHighSurrogate(c) && i < len && Character.isLowSurrogate(input.charAt(i)))
+                {
+                    cp = Character.toCodePoint(c, input.charAt(i++));
+                }
+                cls = this.classes.lookupClass(cp);
+            }
+            s = this.table[s + cls];
+            if (s == this.dead)
+            {
+                return false;
+            }
+        }
+        return this.accepting[s / this.classCount];
+    }
+
+    /**
+     * Run the automaton over input, and find which rules accept it.
+     *
+     * @param input the input
+     * @return the numbers of the rules that accept the whole input, as given
+     *         to {@link Nfa#compile(java.util.List)}; the array is shared, so
+     *         it mustn't be changed
+     */
+    int[] matchedRules(CharSequence input)
+    {
+        int s = this.start;
+        int len = input.length();
+        int i = 0;
+        while (i < len && s != this.dead)
+        {
+            char c = input.charAt(i++);
+            int cp = c;
+            if (Character.isHighSurrogate(c) && i < len && Character.isLowSurrogate(input.charAt(i)))
+            {
+                cp = Character.toCodePoint(c, input.charAt(i++));
+            }
+            s = this.table[s + this.classes.classOf(cp)];
+        }
+        return this.matched[s / this.classCount];
+    }
+
+    /**
+     * Create a cursor at the start state.
+     *
+     * @return a new cursor
+     */
+    Cursor newCursor()
+    {
+        return new Walker(this.start);
+    }
+
+    /**
+     * A cursor, which only needs to know the current state.
+     */
+    private final class Walker extends Cursor
+    {
+        /** The offset of the current state. */
+        private int state;
+
+        Walker(int _state)
+        {
+            this.state = _state;
+        }
+
+        @Override
+        boolean step(int cp)
+        {
+            this.state = Dfa.this.table[this.state + Dfa.this.classes.classOf(cp)];
+            return this.state != Dfa.this.dead;
+        }
+
+        @Override
+        boolean isAccepting()
+        {
+            return Dfa.this.isAccepting(this.state);
+        }
+
+        @Override
+        boolean isDead()
+        {
+            return this.state == Dfa.this.dead;
+        }
+
+        @Override
+        void reset()
+        {
+            this.state = Dfa.this.start;
+        }
+
+        @Override
+        Cursor copy()
+        {
+            return new Walker(this.state);
+        }
+    }
+
+    /**
+     * Run the automaton over bytes, where each byte is a code point from 0 to
+     * 255, as octets are in ABNF.
+     *
+     * @param input the bytes from the position to the limit; the position
+     *            isn't changed
+     * @return true if all the bytes are accepted
+     */
+    boolean matches(ByteBuffer input)
+    {
+        if (input.hasArray())
+        {
+            int off = input.arrayOffset() + input.position();
+            return this.matches(input.array(), off, off + input.remaining());
+        }
+        int[] latin = this.classes.latin;
+        int s = this.start;
+        for (int i = input.position(); i < input.limit(); ++i)
+        {
+            s = this.table[s + latin[input.get(i) & 0xFF]];
+            if (s == this.dead)
+            {
+                return false;
+            }
+        }
+        return this.accepting[s / this.classCount];
+    }
+
+    private boolean matches(byte[] input, int from, int to)
+    {
+        int[] latin = this.classes.latin;
+        int s = this.start;
+        for (int i = from; i < to; ++i)
+        {
+            s = this.table[s + latin[input[i] & 0xFF]];
+            if (s == this.dead)
+            {
+                return false;
+            }
+        }
+        return this.accepting[s / this.classCount];
+    }
+
+    /**
+     * Divides code points into classes, where two code points are in the same
+     * class if every state of the NFA either accepts both or neither.
+     */
+    static final class CharClasses
+    {
+        /** The start of each interval of code points. */
+        final int[] intervalStarts;
+        /** The class of each interval. */
+        final int[] intervalClass;
+        /** A code point from each class. */
+        final int[] representative;
+        /** The class of each code point below {@link Dfa#LATIN}. */
+        final int[] latin = new int[Dfa.LATIN];
+        /**
+         * The index of the ranges of each state into {@link #member}, or -1 for
+         * states that don't consume input. Many states share the same ranges.
+         */
+        private final int[] rangeSet;
+        /** Whether each distinct set of ranges accepts each class. */
+        private final boolean[] member;
+
+        /**
+         * Find the classes for an automaton.
+         *
+         * @param nfa the automaton
+         */
+        CharClasses(Nfa nfa)
+        {
+            this.rangeSet = new int[nfa.size];
+            Map<IntArrayKey, Integer> distinct = new HashMap<IntArrayKey, Integer>();
+            List<int[]> sets = new ArrayList<int[]>();
+            for (int s = 0; s < nfa.size; ++s)
+            {
+                if (nfa.op[s] != Nfa.CHAR)
+                {
+                    this.rangeSet[s] = -1;
+                    continue;
+                }
+                IntArrayKey key = new IntArrayKey(nfa.ranges[s]);
+                Integer index = distinct.get(key);
+                if (index == null)
+                {
+                    index = Integer.valueOf(sets.size());
+                    distinct.put(key, index);
+                    sets.add(nfa.ranges[s]);
+                }
+                this.rangeSet[s] = index.intValue();
+            }
+
+            // every range boundary starts a new interval
+            int[] bounds = new int[16];
+            int count = 0;
+            bounds[count++] = 0;
+            for (int[] r : sets)
+            {
+                for (int i = 0; i < r.length; i += 2)
+                {
+                    if (count + 2 > bounds.length)
+                    {
+                        bounds = Arrays.copyOf(bounds, bounds.length * 2);
+                    }
+                    bounds[count++] = r[i];
+                    if (r[i + 1] < Nfa.MAX_CODE_POINT)
+                    {
+                        bounds[count++] = r[i + 1] + 1;
+                    }
+                }
+            }
+            Arrays.sort(bounds, 0, count);
+            int intervals = 0;
+            for (int i = 0; i < count; ++i)
+            {
+                if (intervals == 0 || bounds[intervals - 1] != bounds[i])
+                {
+                    bounds[intervals++] = bounds[i];
+                }
+            }
+            this.intervalStarts = Arrays.copyOf(bounds, intervals);
+
+            // intervals that every set of ranges treats the same way share a class
+            this.intervalClass = new int[intervals];
+            Map<IntArrayKey, Integer> signatures = new HashMap<IntArrayKey, Integer>();
+            List<int[]> classSignatures = new ArrayList<int[]>();
+            List<Integer> reps = new ArrayList<Integer>();
+            int[] signature = new int[sets.size()];
+            for (int i = 0; i < intervals; ++i)
+            {
+                int cp = this.intervalStarts[i];
+                int n = 0;
+                for (int j = 0; j < sets.size(); ++j)
+                {
+                    if (CharClasses.contains(sets.get(j), cp))
+                    {
+                        signature[n++] = j;
+                    }
+                }
+                IntArrayKey key = new IntArrayKey(Arrays.copyOf(signature, n));
+                Integer cls = signatures.get(key);
+                if (cls == null)
+                {
+                    cls = Integer.valueOf(reps.size());
+                    signatures.put(key, cls);
+                    classSignatures.add(key.values);
+                    reps.add(Integer.valueOf(cp));
+                }
+                this.intervalClass[i] = cls.intValue();
+            }
+            int k = reps.size();
+            this.representative = new int[k];
+            this.member = new boolean[sets.size() * k];
+            for (int c = 0; c < k; ++c)
+            {
+                this.representative[c] = reps.get(c).intValue();
+                for (int j : classSignatures.get(c))
+                {
+                    this.member[j * k + c] = true;
+                }
+            }
+            for (int cp = 0; cp < Dfa.LATIN; ++cp)
+            {
+                this.latin[cp] = this.lookupClass(cp);
+            }
+        }
+
+        /**
+         * Get the class of a code point by searching the intervals.
+         *
+         * @param cp the code point
+         * @return the class
+         */
+        int lookupClass(int cp)
+        {
+            int i = Arrays.binarySearch(this.intervalStarts, cp);
+            if (i < 0)
+            {
+                i = -i - 2;
+            }
+            return this.intervalClass[i];
+        }
+
+        /**
+         * Get the class of a code point.
+         *
+         * @param cp the code point
+         * @return the class
+         */
+        int classOf(int cp)
+        {
+            return (cp < Dfa.LATIN) ? this.latin[cp] : this.lookupClass(cp);
+        }
+
+        private static boolean contains(int[] r, int cp)
+        {
+            for (int i = 0; i < r.length; i += 2)
+            {
+                if (cp >= r[i] && cp <= r[i + 1])
+                {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        /**
+         * Get the number of classes.
+         *
+         * @return the number of classes
+         */
+        int size()
+        {
+            return this.representative.length;
+        }
+
+        /**
+         * Determine whether an NFA state consumes the code points in a class.
+         *
+         * @param state the NFA state
+         * @param cls the class
+         * @return true if the state is a {@link Nfa#CHAR} state that accepts
+         *         the class
+         */
+        boolean accepts(int state, int cls)
+        {
+            int set = this.rangeSet[state];
+            return set >= 0 && this.member[set * this.representative.length + cls];
+        }
+    }
+
+    /**
+     * The subset construction. Each state of the DFA is a set of NFA states,
+     * keeping only those that consume input or accept. State 0 is the empty
+     * set, which is the dead state.
+     */
+    private static final class Subsets
+    {
+        private final Nfa nfa;
+        private final CharClasses classes;
+        private final int maxStates;
+        /** The NFA states in each DFA state. */
+        private final List<int[]> sets = new ArrayList<int[]>();
+        /** The number of each DFA state. */
+        private final Map<IntArrayKey, Integer> numbers = new HashMap<IntArrayKey, Integer>();
+        /** The transitions, indexed by state number times class count. */
+        int[] transitions;
+        /** The number of the set of rules that each state accepts. */
+        int[] acceptIds;
+        /** The distinct sets of rules that states accept, the first empty. */
+        final List<int[]> acceptSets = new ArrayList<int[]>();
+        /** The number of each distinct set of rules. */
+        private final Map<IntArrayKey, Integer> acceptNumbers = new HashMap<IntArrayKey, Integer>();
+        /** The number of states. */
+        int count;
+        /** The start state. */
+        int start;
+        /** The total number of NFA states in all the DFA states. */
+        private int total;
+
+        private final Nfa.StateSet scratch;
+        private final int[] stack;
+
+        Subsets(Nfa _nfa, CharClasses _classes, int _maxStates)
+        {
+            this.nfa = _nfa;
+            this.classes = _classes;
+            this.maxStates = _maxStates;
+            this.scratch = new Nfa.StateSet(_nfa.size);
+            this.stack = new int[_nfa.size * 2 + 1];
+            this.transitions = new int[16 * _classes.size()];
+            this.acceptIds = new int[16];
+            this.acceptSet(new int[0]);
+        }
+
+        private int acceptSet(int[] rules)
+        {
+            IntArrayKey key = new IntArrayKey(rules);
+            Integer id = this.acceptNumbers.get(key);
+            if (id == null)
+            {
+                id = Integer.valueOf(this.acceptSets.size());
+                this.acceptNumbers.put(key, id);
+                this.acceptSets.add(rules);
+            }
+            return id.intValue();
+        }
+
+        /**
+         * Build every state.
+         *
+         * @return false if there are too many states
+         */
+        boolean run()
+        {
+            this.scratch.clear();
+            this.addState(this.scratch); // dead
+            this.nfa.addClosure(this.scratch, this.nfa.start, this.stack);
+            this.start = this.addState(this.scratch);
+            int k = this.classes.size();
+            for (int d = 0; d < this.sets.size(); ++d)
+            {
+                int[] set = this.sets.get(d);
+                for (int c = 0; c < k; ++c)
+                {
+                    this.scratch.clear();
+                    for (int s : set)
+                    {
+                        if (this.classes.accepts(s, c))
+                        {
+                            this.nfa.addClosure(this.scratch, this.nfa.next[s], this.stack);
+                        }
+                    }
+                    int target = this.addState(this.scratch);
+                    if (target < 0)
+                    {
+                        return false;
+                    }
+                    this.transitions[d * k + c] = target;
+                }
+            }
+            return true;
+        }
+
+        private int addState(Nfa.StateSet closure)
+        {
+            int[] set = Dfa.subset(this.nfa, closure);
+            int n = set.length;
+            IntArrayKey key = new IntArrayKey(set);
+            Integer existing = this.numbers.get(key);
+            if (existing != null)
+            {
+                return existing.intValue();
+            }
+            this.total += n;
+            if (this.count >= this.maxStates || this.total > Dfa.MAX_SUBSET_TOTAL)
+            {
+                return -1;
+            }
+            int id = this.count++;
+            this.numbers.put(key, Integer.valueOf(id));
+            this.sets.add(set);
+            int k = this.classes.size();
+            if (this.count > this.acceptIds.length)
+            {
+                this.acceptIds = Arrays.copyOf(this.acceptIds, this.acceptIds.length * 2);
+                this.transitions = Arrays.copyOf(this.transitions, this.acceptIds.length * k);
+            }
+            this.acceptIds[id] = this.acceptSet(Dfa.matchedRules(this.nfa, set));
+            return id;
+        }
+    }
+
+    /**
+     * Get the states that identify a DFA state: the states of a closure that
+     * consume input or accept, in order.
+     *
+     * @param nfa the automaton
+     * @param closure a closure in the automaton
+     * @return the sorted states
+     */
+    static int[] subset(Nfa nfa, Nfa.StateSet closure)
+    {
+        int[] set = new int[closure.size];
+        int n = 0;
+        for (int j = 0; j < closure.size; ++j)
+        {
+            int s = closure.dense[j];
+            if (nfa.op[s] == Nfa.CHAR || nfa.op[s] == Nfa.MATCH)
+            {
+                set[n++] = s;
+            }
+        }
+        set = Arrays.copyOf(set, n);
+        Arrays.sort(set);
+        return set;
+    }
+
+    /**
+     * Get the rules that a set of NFA states accepts.
+     *
+     * @param nfa the automaton
+     * @param set some states of the automaton, in order
+     * @return the sorted, distinct numbers of the rules
+     */
+    static int[] matchedRules(Nfa nfa, int[] set)
+    {
+        int[] rules = new int[set.length];
+        int n = 0;
+        for (int s : set)
+        {
+            if (nfa.op[s] == Nfa.MATCH)
+            {
+                rules[n++] = nfa.next[s];
+            }
+        }
+        rules = Arrays.copyOf(rules, n);
+        Arrays.sort(rules);
+        return rules;
+    }
+
+    /**
+     * An array of numbers that can be used as a map key, such as the sorted
+     * NFA states that identify a DFA state.
+     */
+    static final class IntArrayKey
+    {
+        /** The numbers. */
+        final int[] values;
+        private final int hash;
+
+        IntArrayKey(int[] _values)
+        {
+            this.values = _values;
+            this.hash = Arrays.hashCode(_values);
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return this.hash;
+        }
+
+        @Override
+        public boolean equals(Object obj)
+        {
+            return (obj instanceof IntArrayKey) && Arrays.equals(this.values, ((IntArrayKey) obj).values);
+        }
+    }
+
+    /**
+     * Merge equivalent states with Hopcroft's algorithm, then build the final
+     * table. States start out partitioned by the rules that they accept, and
+     * blocks are split until every state in a block goes to the same block for
+     * every class.
+     */
+    private static Dfa minimize(CharClasses classes, Subsets subsets, int n)
+    {
+        int k = classes.size();
+        int[] delta = subsets.transitions;
+        int[] acceptIds = subsets.acceptIds;
+
+        // the states that reach each state on each class, by class then state
+        int[] invStart = new int[k * n + 1];
+        for (int q = 0; q < n; ++q)
+        {
+            for (int c = 0; c < k; ++c)
+            {
+                ++invStart[c * n + delta[q * k + c] + 1];
+            }
+        }
+        for (int i = 1; i < invStart.length; ++i)
+        {
+            invStart[i] += invStart[i - 1];
+        }
+        int[] inv = new int[k * n];
+        int[] fill = Arrays.copyOf(invStart, invStart.length - 1);
+        for (int q = 0; q < n; ++q)
+        {
+            for (int c = 0; c < k; ++c)
+            {
+                inv[fill[c * n + delta[q * k + c]]++] = q;
+            }
+        }
+
+        // blocks are contiguous ranges of elements
+        int[] elements = new int[n];
+        int[] location = new int[n];
+        int[] blockOf = new int[n];
+        int[] first = new int[n];
+        int[] end = new int[n];
+        int[] marked = new int[n];
+        int blocks = 0;
+        int pos = 0;
+        for (int id = 0; id < subsets.acceptSets.size(); ++id)
+        {
+            int begin = pos;
+            for (int q = 0; q < n; ++q)
+            {
+                if (acceptIds[q] == id)
+                {
+                    elements[pos] = q;
+                    location[q] = pos++;
+                    blockOf[q] = blocks;
+                }
+            }
+            if (pos > begin)
+            {
+                first[blocks] = begin;
+                end[blocks] = pos;
+                ++blocks;
+            }
+        }
+
+        List<boolean[]> pending = new ArrayList<boolean[]>();
+        int[] work = new int[16];
+        int workSize = 0;
+        for (int b = 0; b < blocks; ++b)
+        {
+            pending.add(new boolean[k]);
+        }
+        // every block but the largest needs to be used to split others
+        int largest = 0;
+        for (int b = 1; b < blocks; ++b)
+        {
+            if (end[b] - first[b] > end[largest] - first[largest])
+            {
+                largest = b;
+            }
+        }
+        for (int b = 0; b < blocks; ++b)
+        {
+            for (int c = 0; c < k && b != largest; ++c)
+            {
+                if (workSize + 2 > work.length)
+                {
+                    work = Arrays.copyOf(work, work.length * 2);
+                }
+                work[workSize++] = b;
+                work[workSize++] = c;
+                pending.get(b)[c] = true;
+            }
+        }
+
+        int[] touched = new int[n];
+        int[] splitter = new int[n];
+        while (workSize > 0)
+        {
+            int c = work[--workSize];
+            int a = work[--workSize];
+            pending.get(a)[c] = false;
+
+            // collect and mark the states that go into block a on class c
+            int splitterSize = 0;
+            for (int i = first[a]; i < end[a]; ++i)
+            {
+                int q = elements[i];
+                for (int j = invStart[c * n + q]; j < invStart[c * n + q + 1]; ++j)
+                {
+                    splitter[splitterSize++] = inv[j];
+                }
+            }
+            int touchedCount = 0;
+            for (int i = 0; i < splitterSize; ++i)
+            {
+                int p = splitter[i];
+                int b = blockOf[p];
+                int at = location[p];
+                int markEnd = first[b] + marked[b];
+                if (at < markEnd)
+                {
+                    continue; // already marked
+                }
+                if (marked[b] == 0)
+                {
+                    touched[touchedCount++] = b;
+                }
+                // move p to the end of the marked part of its block
+                int other = elements[markEnd];
+                elements[markEnd] = p;
+                location[p] = markEnd;
+                elements[at] = other;
+                location[other] = at;
+                ++marked[b];
+            }
+
+            for (int t = 0; t < touchedCount; ++t)
+            {
+                int b = touched[t];
+                int split = first[b] + marked[b];
+                marked[b] = 0;
+                if (split == end[b])
+                {
+                    continue; // every state was marked
+                }
+                int nb = blocks++;
+                first[nb] = split;
+                end[nb] = end[b];
+                end[b] = split;
+                for (int i = first[nb]; i < end[nb]; ++i)
+                {
+                    blockOf[elements[i]] = nb;
+                }
+                boolean[] bPending = pending.get(b);
+                boolean[] nbPending = new boolean[k];
+                pending.add(nbPending);
+                int smaller = (end[b] - first[b] <= end[nb] - first[nb]) ? b : nb;
+                for (int d = 0; d < k; ++d)
+                {
+                    int add = bPending[d] ? nb : smaller;
+                    if (!pending.get(add)[d])
+                    {
+                        if (workSize + 2 > work.length)
+                        {
+                            work = Arrays.copyOf(work, work.length * 2);
+                        }
+                        work[workSize++] = add;
+                        work[workSize++] = d;
+                        pending.get(add)[d] = true;
+                    }
+                }
+            }
+        }
+
+        // each block becomes a state
+        int[] table = new int[blocks * k];
+        int[][] matched = new int[blocks][];
+        for (int b = 0; b < blocks; ++b)
+        {
+            int q = elements[first[b]];
+            matched[b] = subsets.acceptSets.get(acceptIds[q]);
+            for (int c = 0; c < k; ++c)
+            {
+                table[b * k + c] = blockOf[delta[q * k + c]] * k;
+            }
+        }
+        return new Dfa(classes, table, matched, blockOf[subsets.start] * k, blockOf[0] * k);
+    }
+}
@@ -0,0 +1,284 @@
+package net.abnf2regex;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+/**
+ * Reads and writes a binary form of the rules in a {@link RuleDictionary}. Rules
+ * are written after parsing, so they are already simplified; reading them back
+ * reproduces exactly the same fragments without using the ABNF parser.
+ * References to other rules are stored by name and resolved as usual once the
+ * rules are loaded.
+ * <p>
+ * The core rules are written after the other rules, so that a process that
+ * starts from a snapshot doesn't need to parse them either. Strings are
+ * written as a length and then UTF-8, so they can be any length.
+ */
+final class DictionarySnapshot
+{
+    /** Identifies a snapshot, "ABNF" in ASCII. */
+    private static final int MAGIC = 0x41424e46;
+    /** The version of the format. */
+    private static final int VERSION = 2;
+    /**
+     * The most bytes of a string that are read at once, so that a corrupt
+     * length fails at the end of the input instead of running out of memory.
+     */
+    private static final int STRING_CHUNK = 8192;
+
+    /** Tag for a {@link SequenceFragment}. */
+    private static final byte SEQUENCE = 'S';
+    /** Tag for a {@link ChoiceFragment}. */
+    private static final byte CHOICE = 'C';
+    /** Tag for a {@link LiteralFragment}. */
+    private static final byte LITERAL = 'L';
+    /** Tag for a {@link StringFragment}. */
+    private static final byte STRING = 'T';
+    /** Tag for a {@link WildcardFragment}. */
+    private static final byte WILDCARD = 'W';
+    /** Tag for a {@link NamedFragment}. */
+    private static final byte NAMED = 'N';
+
+    private DictionarySnapshot()
+    {
+        // static methods only
+    }
+
+    /**
+     * Write rules.
+     *
+     * @param rules the rules to write, in dictionary order
+     * @param core the core rules, which might be empty
+     * @param out where to write to
+     * @throws IOException if writing fails
+     */
+    static void write(List<Rule> rules, List<Rule> core, DataOutputStream out) throws IOException
+    {
+        out.writeInt(DictionarySnapshot.MAGIC);
+        out.writeInt(DictionarySnapshot.VERSION);
+        DictionarySnapshot.writeRules(rules, out);
+        DictionarySnapshot.writeRules(core, out);
+        out.flush();
+    }
+
+    private static void writeRules(List<Rule> rules, DataOutputStream out) throws IOException
+    {
+        out.writeInt(rules.size());
+        for (Rule r : rules)
+        {
+            DictionarySnapshot.writeString(r.getName(), out);
+            out.writeBoolean(r.isInlineRule());
+            DictionarySnapshot.writeFragment(r.getMainFragment(), out);
+        }
+    }
+
+    /**
+     * Write a string as its length in bytes, then UTF-8. Unlike
+     * {@link DataOutputStream#writeUTF(String)}, this has no limit of 64KB.
+     */
+    private static void writeString(String str, DataOutputStream out) throws IOException
+    {
+        byte[] utf8 = str.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(utf8.length);
+        out.write(utf8);
+    }
+
+    private static void writeFragment(RuleFragment rf, DataOutputStream out) throws IOException
+    {
+        if (rf instanceof GroupFragment)
+        {
+            out.writeByte((rf instanceof ChoiceFragment) ? DictionarySnapshot.CHOICE : DictionarySnapshot.SEQUENCE);
+            DictionarySnapshot.writeOccurrences(rf.getOccurences(), out);
+            GroupFragment group = (GroupFragment) rf;
+            out.writeInt(group.length());
+            for (RuleFragment child : group.getFragments())
+            {
+                DictionarySnapshot.writeFragment(child, out);
+            }
+        }
+        else if (rf instanceof LiteralFragment)
+        {
+            out.writeByte(DictionarySnapshot.LITERAL);
+            DictionarySnapshot.writeOccurrences(rf.getOccurences(), out);
+            LiteralFragment lit = (LiteralFragment) rf;
+            out.writeInt(lit.ranges.size());
+            for (CharRange cr : lit.ranges)
+            {
+                out.writeInt(cr.getStart());
+                out.writeInt(cr.getEnd());
+            }
+        }
+        else if (rf instanceof StringFragment)
+        {
+            out.writeByte(DictionarySnapshot.STRING);
+            DictionarySnapshot.writeOccurrences(rf.getOccurences(), out);
+            DictionarySnapshot.writeString(((StringFragment) rf).getText(), out);
+        }
+        else if (rf instanceof WildcardFragment)
+        {
+            out.writeByte(DictionarySnapshot.WILDCARD);
+            DictionarySnapshot.writeString(((WildcardFragment) rf).getText(), out);
+        }
+        else if (rf instanceof NamedFragment)
+        {
+            out.writeByte(DictionarySnapshot.NAMED);
+            DictionarySnapshot.writeOccurrences(rf.getOccurences(), out);
+            DictionarySnapshot.writeString(((NamedFragment) rf).getName(), out);
+        }
+        else
+        {
+            throw new IllegalArgumentException("Unknown fragment type: " + rf.getClass()); //$NON-NLS-1$
+        }
+    }
+
+    private static void writeOccurrences(OccurrenceRange range, DataOutputStream out) throws IOException
+    {
+        out.writeInt(range.getMin());
+        out.writeInt(range.getMax());
+    }
+
+    /**
+     * Read rules.
+     *
+     * @param in where to read from
+     * @param rules receives the rules, in the order they were written
+     * @param core receives the core rules, if they were written
+     * @throws IOException if reading fails, {@link StreamCorruptedException} if
+     *             the input isn't a snapshot or has values that no rule can
+     *             have
+     */
+    static void read(DataInputStream in, List<Rule> rules, List<Rule> core) throws IOException
+    {
+        if (in.readInt() != DictionarySnapshot.MAGIC)
+        {
+            throw new StreamCorruptedException("Not a dictionary snapshot"); //$NON-NLS-1$
+        }
+        int version = in.readInt();
+        if (version != DictionarySnapshot.VERSION)
+        {
+            throw new StreamCorruptedException("Unsupported dictionary snapshot version: " + version); //$NON-NLS-1$
+        }
+        DictionarySnapshot.readRules(in, rules);
+        DictionarySnapshot.readRules(in, core);
+    }
+
+    private static void readRules(DataInputStream in, List<Rule> rules) throws IOException
+    {
+        int count = in.readInt();
+        for (int i = 0; i < count; ++i)
+        {
+            Rule r = new Rule(DictionarySnapshot.readString(in));
+            r.setInlineRule(in.readBoolean());
+            if (in.readByte() != DictionarySnapshot.SEQUENCE)
+            {
+                throw new StreamCorruptedException("Rule doesn't start with a sequence: " + r.getName()); //$NON-NLS-1$
+            }
+            DictionarySnapshot.readGroup(r.getMainFragment(), in);
+            rules.add(r);
+        }
+    }
+
+    private static String readString(DataInputStream in) throws IOException
+    {
+        int length = in.readInt();
+        if (length < 0)
+        {
+            throw new StreamCorruptedException("Bad string length: " + length); //$NON-NLS-1$
+        }
+        byte[] chunk = new byte[Math.min(length, DictionarySnapshot.STRING_CHUNK)];
+        if (length == chunk.length)
+        {
+            in.readFully(chunk);
+            return new String(chunk, StandardCharsets.UTF_8);
+        }
+        ByteArrayOutputStream utf8 = new ByteArrayOutputStream(chunk.length);
+        for (int left = length; left > 0; left -= chunk.length)
+        {
+            int n = Math.min(left, chunk.length);
+            in.readFully(chunk, 0, n);
+            utf8.write(chunk, 0, n);
+        }
+        return new String(utf8.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    private static RuleFragment readFragment(DataInputStream in) throws IOException
+    {
+        byte tag = in.readByte();
+        switch (tag)
+        {
+            case SEQUENCE:
+                return DictionarySnapshot.readGroup(new SequenceFragment(), in);
+            case CHOICE:
+                return DictionarySnapshot.readGroup(new ChoiceFragment(), in);
+            case LITERAL:
+            {
+                LiteralFragment lit = new LiteralFragment();
+                lit.setOccurences(DictionarySnapshot.readOccurrences(in));
+                int count = in.readInt();
+                for (int i = 0; i < count; ++i)
+                {
+                    int start = in.readInt();
+                    int end = in.readInt();
+                    if (start < 0 || start > end || end > Character.MAX_CODE_POINT)
+                    {
+                        throw new StreamCorruptedException("Bad character range: " + start //$NON-NLS-1$
+                                + "-" + end); //$NON-NLS-1$
+                    }
+                    lit.ranges.add(new CharRange(start, end));
+                }
+                return lit;
+            }
+            case STRING:
+            {
+                OccurrenceRange range = DictionarySnapshot.readOccurrences(in);
+                StringFragment str = new StringFragment(DictionarySnapshot.readString(in));
+                str.setOccurences(range);
+                return str;
+            }
+            case WILDCARD:
+                return new WildcardFragment(DictionarySnapshot.readString(in));
+            case NAMED:
+            {
+                OccurrenceRange range = DictionarySnapshot.readOccurrences(in);
+                NamedFragment named = new NamedFragment(DictionarySnapshot.readString(in));
+                named.setOccurences(range);
+                return named;
+            }
+            default:
+                throw new StreamCorruptedException("Unknown fragment type: " + tag); //$NON-NLS-1$
+        }
+    }
+
+    private static GroupFragment readGroup(GroupFragment group, DataInputStream in) throws IOException
+    {
+        group.setOccurences(DictionarySnapshot.readOccurrences(in));
+        int count = in.readInt();
+        for (int i = 0; i < count; ++i)
+        {
+            // fragments were simplified before they were written, so they are
+            // added as they are rather than through append()
+            group.fragments.addLast(DictionarySnapshot.readFragment(in));
+        }
+        return group;
+    }
+
+    private static OccurrenceRange readOccurrences(DataInputStream in) throws IOException
+    {
+        int min = in.readInt();
+        int max = in.readInt();
+        if (min < 0 || (max < min && max != OccurrenceRange.UNBOUNDED))
+        {
+            throw new StreamCorruptedException("Bad occurrences: " + min + "*" + max); //$NON-NLS-1$ //$NON-NLS-2$
+        }
+        if (min == 1 && max == 1)
+        {
+            return OccurrenceRange.ONCE;
+        }
+        return new OccurrenceRange(min, max);
+    }
+}
@@ -0,0 +1,813 @@
+package net.abnf2regex;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * An Earley recognizer, which matches input exactly against any rule,
+ * including rules that reference themselves. The fragments of the rule, and of
+ * every rule it references, are turned into a plain context-free grammar in
+ * which each rule is a single nonterminal, so recursion costs nothing extra.
+ * Repetition is expressed with left recursion, which Earley recognizers handle
+ * in linear time.
+ * <p>
+ * Input is fed one code point at a time, so the recognizer can also be used on
+ * input that arrives in pieces. Each {@link Run} keeps its own state, so
+ * instances can be used from any number of threads at once.
+ */
+final class Earley
+{
+    /** The symbol at the end of every production. */
+    private static final int END = -1;
+
+    /**
+     * The symbols of every production, one after the other, each followed by
+     * {@link #END}. Nonterminals are zero or more, and terminal <i>t</i> is
+     * stored as <code>-2 - t</code>. An item in the recognizer is the index of
+     * the symbol after its dot, along with the position where it started.
+     */
+    private final int[] symbols;
+    /** The nonterminal that each production belongs to, by symbol index. */
+    private final int[] lhs;
+    /** The first symbol index of each production of each nonterminal. */
+    private final int[] productions;
+    /** Where the productions of each nonterminal start in {@link #productions}. */
+    private final int[] productionStart;
+    /** Whether each nonterminal can match nothing. */
+    private final boolean[] nullable;
+    /** The code points that each terminal accepts, as in {@link Nfa#ranges}. */
+    private final int[][] terminals;
+    /**
+     * The index of the end of the start production for each rule, which
+     * accepts the rule.
+     */
+    private final int[] accept;
+
+    private Earley(Builder b)
+    {
+        this.symbols = Arrays.copyOf(b.symbols, b.symbolCount);
+        this.lhs = Arrays.copyOf(b.lhs, b.symbolCount);
+        this.terminals = b.terminalList.toArray(new int[b.terminalList.size()][]);
+        int nonterminals = b.nonterminals;
+
+        // group the productions by nonterminal
+        this.productionStart = new int[nonterminals + 1];
+        int count = 0;
+        for (int i = 0; i < b.symbolCount; ++i)
+        {
+            if (i == 0 || this.symbols[i - 1] == Earley.END)
+            {
+                ++this.productionStart[this.lhs[i] + 1];
+                ++count;
+            }
+        }
+        for (int n = 0; n < nonterminals; ++n)
+        {
+            this.productionStart[n + 1] += this.productionStart[n];
+        }
+        this.productions = new int[count];
+        int[] fill = Arrays.copyOf(this.productionStart, nonterminals);
+        for (int i = 0; i < b.symbolCount; ++i)
+        {
+            if (i == 0 || this.symbols[i - 1] == Earley.END)
+            {
+                this.productions[fill[this.lhs[i]]++] = i;
+            }
+        }
+
+        // a nonterminal is nullable if any production has only nullable symbols
+        this.nullable = new boolean[nonterminals];
+        boolean changed = true;
+        while (changed)
+        {
+            changed = false;
+            for (int p : this.productions)
+            {
+                int n = this.lhs[p];
+                if (this.nullable[n])
+                {
+                    continue;
+                }
+                int i = p;
+                while (this.symbols[i] >= 0 && this.nullable[this.symbols[i]])
+                {
+                    ++i;
+                }
+                if (this.symbols[i] == Earley.END)
+                {
+                    this.nullable[n] = true;
+                    changed = true;
+                }
+            }
+        }
+        this.accept = b.accept;
+    }
+
+    /**
+     * Compile a rule.
+     *
+     * @param rule a rule, which must be resolved
+     * @return a recognizer for the rule
+     * @throws RuleResolutionException if the rule references a rule that isn't
+     *             resolved
+     */
+    static Earley compile(Rule rule) throws RuleResolutionException
+    {
+        return Earley.compile(Collections.singletonList(rule));
+    }
+
+    /**
+     * Compile several rules into one recognizer, which tells which of them
+     * match the input.
+     *
+     * @param rules the rules, which must be resolved
+     * @return a recognizer for the rules
+     * @throws RuleResolutionException if a rule references a rule that isn't
+     *             resolved
+     * @see Run#isAccepting(int)
+     */
+    static Earley compile(List<Rule> rules) throws RuleResolutionException
+    {
+        Builder b = new Builder();
+        b.build(rules);
+        return new Earley(b);
+    }
+
+    /**
+     * Get the number of nonterminals in the grammar.
+     *
+     * @return the number of nonterminals
+     */
+    int getNonterminalCount()
+    {
+        return this.nullable.length;
+    }
+
+    /**
+     * Determine whether the entire input matches.
+     *
+     * @param input the input
+     * @return true if the input matches
+     */
+    boolean matches(CharSequence input)
+    {
+        return this.run(input).isAccepting();
+    }
+
+    /**
+     * Feed all of the input to a new {@link Run}, stopping early if it can't
+     * match.
+     *
+     * @param input the input
+     * @return the run, which might be dead
+     */
+    Run run(CharSequence input)
+    {
+        Run run = new Run();
+        int len = input.length();
+        int i = 0;
+        while (i < len)
+        {
+            char c = input.charAt(i++);
+            int cp = c;
+            if (Character.isHighSurrogate(c) && i < len && Character.isLowSurrogate(input.charAt(i)))
+            {
+                cp = Character.toCodePoint(c, input.charAt(i++));
+            }
+            if (!run.feed(cp))
+            {
+                break;
+            }
+        }
+        return run;
+    }
+
+    /**
+     * Determine whether all the bytes match, where each byte is a code point
+     * from 0 to 255, as octets are in ABNF.
+     *
+     * @param input the bytes from the position to the limit; the position
+     *            isn't changed
+     * @return true if the input matches
+     */
+    boolean matches(ByteBuffer input)
+    {
+        Run run = new Run();
+        for (int i = input.position(); i < input.limit(); ++i)
+        {
+            if (!run.feed(input.get(i) & 0xFF))
+            {
+                return false;
+            }
+        }
+        return run.isAccepting();
+    }
+
+    /**
+     * Create a cursor at the start of the input.
+     *
+     * @return a new cursor
+     */
+    Cursor newCursor()
+    {
+        return new Walker(new Run());
+    }
+
+    /**
+     * A cursor that feeds a {@link Run}.
+     */
+    private final class Walker extends Cursor
+    {
+        private final Run run;
+
+        Walker(Run _run)
+        {
+            this.run = _run;
+        }
+
+        @Override
+        boolean step(int cp)
+        {
+            return this.run.feed(cp);
+        }
+
+        @Override
+        boolean isAccepting()
+        {
+            return this.run.isAccepting();
+        }
+
+        @Override
+        boolean isDead()
+        {
+            return this.run.isDead();
+        }
+
+        @Override
+        void reset()
+        {
+            this.run.reset();
+        }
+
+        @Override
+        Cursor copy()
+        {
+            return new Walker(this.run.copy());
+        }
+    }
+
+    /**
+     * Turns rule fragments into productions.
+     */
+    private static final class Builder
+    {
+        int[] symbols = new int[64];
+        int[] lhs = new int[64];
+        int symbolCount;
+        int nonterminals;
+        int[] accept;
+        /** The code points for each terminal. */
+        final List<int[]> terminalList = new ArrayList<int[]>();
+        /** The number of each distinct terminal. */
+        private final Map<Dfa.IntArrayKey, Integer> terminalNumbers = new HashMap<Dfa.IntArrayKey, Integer>();
+        /** The nonterminal for each rule. */
+        private final Map<Rule, Integer> ruleSymbols = new IdentityHashMap<Rule, Integer>();
+        /** Rules that have a nonterminal but no productions yet. */
+        private final Deque<Rule> pending = new ArrayDeque<Rule>();
+
+        Builder()
+        {
+            // nothing to do
+        }
+
+        void build(List<Rule> rules) throws RuleResolutionException
+        {
+            // the start symbol has a production for each rule
+            int start = this.nonterminals++;
+            this.accept = new int[rules.size()];
+            for (int i = 0; i < this.accept.length; ++i)
+            {
+                int[] body = { this.ruleSymbol(rules.get(i)) };
+                this.accept[i] = this.addProduction(start, body, 1) + 1;
+            }
+            while (!this.pending.isEmpty())
+            {
+                Rule r = this.pending.removeFirst();
+                Sequence seq = new Sequence();
+                this.appendFragment(r.getMainFragment(), seq);
+                this.addProduction(this.ruleSymbols.get(r).intValue(), seq.values, seq.size);
+            }
+        }
+
+        /**
+         * Add a production.
+         *
+         * @return the index of its first symbol
+         */
+        private int addProduction(int nonterminal, int[] body, int length)
+        {
+            if (this.symbolCount + length + 1 > this.symbols.length)
+            {
+                int capacity = Math.max(this.symbols.length * 2, this.symbolCount + length + 1);
+                this.symbols = Arrays.copyOf(this.symbols, capacity);
+                this.lhs = Arrays.copyOf(this.lhs, capacity);
+            }
+            int first = this.symbolCount;
+            System.arraycopy(body, 0, this.symbols, first, length);
+            this.symbols[first + length] = Earley.END;
+            Arrays.fill(this.lhs, first, first + length + 1, nonterminal);
+            this.symbolCount += length + 1;
+            return first;
+        }
+
+        private int ruleSymbol(Rule rule)
+        {
+            Integer n = this.ruleSymbols.get(rule);
+            if (n == null)
+            {
+                n = Integer.valueOf(this.nonterminals++);
+                this.ruleSymbols.put(rule, n);
+                this.pending.addLast(rule);
+            }
+            return n.intValue();
+        }
+
+        private int terminal(int[] ranges)
+        {
+            Dfa.IntArrayKey key = new Dfa.IntArrayKey(ranges);
+            Integer t = this.terminalNumbers.get(key);
+            if (t == null)
+            {
+                t = Integer.valueOf(this.terminalList.size());
+                this.terminalNumbers.put(key, t);
+                this.terminalList.add(ranges);
+            }
+            return -2 - t.intValue();
+        }
+
+        /** Add a nonterminal that matches any number of a symbol. */
+        private int star(int symbol)
+        {
+            int n = this.nonterminals++;
+            this.addProduction(n, new int[0], 0);
+            this.addProduction(n, new int[] { n, symbol }, 2);
+            return n;
+        }
+
+        private void appendFragment(RuleFragment rf, Sequence seq) throws RuleResolutionException
+        {
+            OccurrenceRange range = rf.getOccurences();
+            if (range.getMin() == 1 && range.getMax() == 1)
+            {
+                this.appendOnce(rf, seq);
+                return;
+            }
+            int x = this.symbolOnce(rf);
+            for (int i = 0; i < range.getMin(); ++i)
+            {
+                seq.add(x);
+            }
+            if (range.getMax() < 0)
+            {
+                seq.add(this.star(x));
+            }
+            else if (range.getMax() > range.getMin())
+            {
+                // nested, so that each count has only one derivation
+                int optional = this.nonterminals++;
+                this.addProduction(optional, new int[0], 0);
+                this.addProduction(optional, new int[] { x }, 1);
+                for (int i = range.getMin() + 1; i < range.getMax(); ++i)
+                {
+                    int outer = this.nonterminals++;
+                    this.addProduction(outer, new int[0], 0);
+                    this.addProduction(outer, new int[] { x, optional }, 2);
+                    optional = outer;
+                }
+                seq.add(optional);
+            }
+        }
+
+        /** Get a single symbol for one occurrence of a fragment. */
+        private int symbolOnce(RuleFragment rf) throws RuleResolutionException
+        {
+            if (rf instanceof NamedFragment)
+            {
+                return this.namedSymbol((NamedFragment) rf);
+            }
+            Sequence seq = new Sequence();
+            this.appendOnce(rf, seq);
+            if (seq.size == 1)
+            {
+                return seq.values[0];
+            }
+            int n = this.nonterminals++;
+            this.addProduction(n, seq.values, seq.size);
+            return n;
+        }
+
+        private int namedSymbol(NamedFragment named) throws RuleResolutionException
+        {
+            if (named.getResolvedRule() == null)
+            {
+                throw new RuleResolutionException("Unresolved fragment: " + named.getName()); //$NON-NLS-1$
+            }
+            return this.ruleSymbol(named.getResolvedRule());
+        }
+
+        private void appendOnce(RuleFragment rf, Sequence seq) throws RuleResolutionException
+        {
+            if (rf instanceof SequenceFragment)
+            {
+                for (RuleFragment child : ((SequenceFragment) rf).fragments)
+                {
+                    this.appendFragment(child, seq);
+                }
+            }
+            else if (rf instanceof ChoiceFragment)
+            {
+                int n = this.nonterminals++;
+                for (RuleFragment option : ((ChoiceFragment) rf).fragments)
+                {
+                    Sequence alt = new Sequence();
+                    this.appendFragment(option, alt);
+                    this.addProduction(n, alt.values, alt.size);
+                }
+                seq.add(n);
+            }
+            else if (rf instanceof StringFragment)
+            {
+                String str = ((StringFragment) rf).getText();
+                int i = 0;
+                while (i < str.length())
+                {
+                    int cp = str.codePointAt(i);
+                    i += Character.charCount(cp);
+                    seq.add(this.terminal(Nfa.caseInsensitive(cp)));
+                }
+            }
+            else if (rf instanceof LiteralFragment)
+            {
+                for (CharRange cr : ((LiteralFragment) rf).ranges)
+                {
+                    seq.add(this.terminal(new int[] { cr.getStart(), cr.getEnd() }));
+                }
+            }
+            else if (rf instanceof WildcardFragment)
+            {
+                seq.add(this.star(this.terminal(Nfa.ANY)));
+            }
+            else if (rf instanceof NamedFragment)
+            {
+                seq.add(this.namedSymbol((NamedFragment) rf));
+            }
+            else
+            {
+                throw new IllegalArgumentException("Unknown fragment type: " + rf.getClass()); //$NON-NLS-1$
+            }
+        }
+    }
+
+    /**
+     * A growable list of symbols.
+     */
+    private static final class Sequence
+    {
+        int[] values = new int[8];
+        int size;
+
+        Sequence()
+        {
+            // empty
+        }
+
+        void add(int value)
+        {
+            if (this.size == this.values.length)
+            {
+                this.values = Arrays.copyOf(this.values, this.size * 2);
+            }
+            this.values[this.size++] = value;
+        }
+    }
+
+    /**
+     * The state of the recognizer part way through some input. The Earley sets
+     * for every position are kept, since completing an item needs the set
+     * where it started.
+     */
+    final class Run
+    {
+        /** The symbol index of each item. */
+        private int[] dots = new int[64];
+        /** The position where each item started. */
+        private int[] origins = new int[64];
+        /** The number of items. */
+        private int count;
+        /** The first item of each set. */
+        private int[] setStart = new int[16];
+        /** The number of the current set. */
+        private int position;
+        /**
+         * The items in each set that wait for each nonterminal, keyed by set
+         * and nonterminal, chained through {@link #waitNext}.
+         */
+        private final LongIntMap waiting = new LongIntMap();
+        /** The next item waiting for the same nonterminal in the same set. */
+        private int[] waitNext = new int[64];
+        /** The items in the current set, keyed by symbol index and origin. */
+        private final LongIntMap current = new LongIntMap();
+
+        /**
+         * Start at the beginning of the input.
+         */
+        Run()
+        {
+            this.reset();
+        }
+
+        private Run(Run other)
+        {
+            this.dots = other.dots.clone();
+            this.origins = other.origins.clone();
+            this.count = other.count;
+            this.setStart = other.setStart.clone();
+            this.position = other.position;
+            this.waiting.copyFrom(other.waiting);
+            this.waitNext = other.waitNext.clone();
+            this.current.copyFrom(other.current);
+        }
+
+        /**
+         * Make an independent copy of the state.
+         *
+         * @return the copy
+         */
+        Run copy()
+        {
+            return new Run(this);
+        }
+
+        /**
+         * Go back to the beginning of the input.
+         */
+        void reset()
+        {
+            this.count = 0;
+            this.position = 0;
+            this.waiting.clear();
+            this.current.clear();
+            this.setStart[0] = 0;
+            int[] start = Earley.this.productions;
+            for (int i = Earley.this.productionStart[0]; i < Earley.this.productionStart[1]; ++i)
+            {
+                this.add(start[i], 0);
+            }
+            this.close();
+        }
+
+        private void add(int dot, int origin)
+        {
+            long key = ((long) dot << 32) | origin;
+            if (this.current.get(key) >= 0)
+            {
+                return;
+            }
+            if (this.count == this.dots.length)
+            {
+                int capacity = this.count * 2;
+                this.dots = Arrays.copyOf(this.dots, capacity);
+                this.origins = Arrays.copyOf(this.origins, capacity);
+                this.waitNext = Arrays.copyOf(this.waitNext, capacity);
+            }
+            int item = this.count++;
+            this.dots[item] = dot;
+            this.origins[item] = origin;
+            this.current.put(key, item);
+            int sym = Earley.this.symbols[dot];
+            if (sym >= 0)
+            {
+                long waitKey = ((long) this.position << 32) | sym;
+                this.waitNext[item] = this.waiting.get(waitKey);
+                this.waiting.put(waitKey, item);
+            }
+        }
+
+        /**
+         * Predict and complete the items of the current set until nothing
+         * more can be added. Nullable nonterminals are stepped over as they
+         * are predicted, which is enough to complete empty matches properly.
+         */
+        private void close()
+        {
+            int[] symbols = Earley.this.symbols;
+            for (int k = this.setStart[this.position]; k < this.count; ++k)
+            {
+                int dot = this.dots[k];
+                int sym = symbols[dot];
+                if (sym == Earley.END)
+                {
+                    int origin = this.origins[k];
+                    long waitKey = ((long) origin << 32) | Earley.this.lhs[dot];
+                    for (int w = this.waiting.get(waitKey); w >= 0; w = this.waitNext[w])
+                    {
+                        this.add(this.dots[w] + 1, this.origins[w]);
+                    }
+                }
+                else if (sym >= 0)
+                {
+                    for (int p = Earley.this.productionStart[sym]; p < Earley.this.productionStart[sym + 1]; ++p)
+                    {
+                        this.add(Earley.this.productions[p], this.position);
+                    }
+                    if (Earley.this.nullable[sym])
+                    {
+                        this.add(dot + 1, this.origins[k]);
+                    }
+                }
+            }
+        }
+
+        /**
+         * Consume a code point.
+         *
+         * @param cp the code point
+         * @return false if no input starting this way can match
+         */
+        boolean feed(int cp)
+        {
+            int[] symbols = Earley.this.symbols;
+            int first = this.setStart[this.position];
+            int last = this.count;
+            if (first == last)
+            {
+                return false;
+            }
+            ++this.position;
+            if (this.position == this.setStart.length)
+            {
+                this.setStart = Arrays.copyOf(this.setStart, this.position * 2);
+            }
+            this.setStart[this.position] = last;
+            this.current.clear();
+            for (int k = first; k < last; ++k)
+            {
+                int sym = symbols[this.dots[k]];
+                if (sym < Earley.END && Earley.contains(Earley.this.terminals[-2 - sym], cp))
+                {
+                    this.add(this.dots[k] + 1, this.origins[k]);
+                }
+            }
+            this.close();
+            return this.count > this.setStart[this.position];
+        }
+
+        /**
+         * Determine whether the input so far can never match, however it
+         * continues.
+         *
+         * @return true if no input starting this way can match
+         */
+        boolean isDead()
+        {
+            return this.count == this.setStart[this.position];
+        }
+
+        /**
+         * Determine whether the input so far matches.
+         *
+         * @return true if the input matches
+         */
+        boolean isAccepting()
+        {
+            return this.isAccepting(0);
+        }
+
+        /**
+         * Determine whether the input so far matches one of the rules.
+         *
+         * @param rule the index of the rule, in the list that was compiled
+         * @return true if the input matches the rule
+         */
+        boolean isAccepting(int rule)
+        {
+            return this.current.get(((long) Earley.this.accept[rule] << 32) | 0) >= 0;
+        }
+    }
+
+    private static boolean contains(int[] r, int cp)
+    {
+        for (int i = 0; i < r.length; i += 2)
+        {
+            if (cp >= r[i] && cp <= r[i + 1])
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * A map from non-negative long keys to int values, with open addressing.
+     */
+    private static final class LongIntMap
+    {
+        private long[] keys = new long[64];
+        private int[] values = new int[64];
+        private int size;
+
+        LongIntMap()
+        {
+            Arrays.fill(this.keys, -1L);
+        }
+
+        /**
+         * Get a value.
+         *
+         * @return the value, or -1 if there is none
+         */
+        int get(long key)
+        {
+            int mask = this.keys.length - 1;
+            for (int i = LongIntMap.hash(key) & mask;; i = (i + 1) & mask)
+            {
+                long k = this.keys[i];
+                if (k == key)
+                {
+                    return this.values[i];
+                }
+                if (k < 0)
+                {
+                    return -1;
+                }
+            }
+        }
+
+        void put(long key, int value)
+        {
+            if ((this.size + 1) * 2 > this.keys.length)
+            {
+                this.grow();
+            }
+            int mask = this.keys.length - 1;
+            int i = LongIntMap.hash(key) & mask;
+            while (this.keys[i] >= 0 && this.keys[i] != key)
+            {
+                i = (i + 1) & mask;
+            }
+            if (this.keys[i] < 0)
+            {
+                ++this.size;
+            }
+            this.keys[i] = key;
+            this.values[i] = value;
+        }
+
+        void copyFrom(LongIntMap other)
+        {
+            this.keys = other.keys.clone();
+            this.values = other.values.clone();
+            this.size = other.size;
+        }
+
+        void clear()
+        {
+            if (this.size > 0)
+            {
+                Arrays.fill(this.keys, -1L);
+                this.size = 0;
+            }
+        }
+
+        private void grow()
+        {
+            long[] oldKeys = this.keys;
+            int[] oldValues = this.values;
+            this.keys = new long[oldKeys.length * 2];
+            this.values = new int[oldKeys.length * 2];
+            Arrays.fill(this.keys, -1L);
+            this.size = 0;
+            for (int i = 0; i < oldKeys.length; ++i)
+            {
+                if (oldKeys[i] >= 0)
+                {
+                    this.put(oldKeys[i], oldValues[i]);
+                }
+            }
+        }
+
+        private static int hash(long key)
+        {
+            long h = key * 0x9E3779B97F4A7C15L;
+            return (int) (h ^ (h >>> 32));
+        }
+    }
+}
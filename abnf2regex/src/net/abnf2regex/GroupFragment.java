@@ -193,9 +193,11 @@ public abstract class GroupFragment extends RuleFragment
     @Override
     public Object clone()
     {
+        CompilationStats.count(CompilationStats.CLONES);
         try
         {
             GroupFragment copy = this.getClass().newInstance();
+            CompilationStats.count(CompilationStats.REFLECTIVE_INSTANCES);
             copy.setOccurences(this.getOccurences());
             copy.fragments = new ArrayDeque<RuleFragment>(this.fragments);
             return copy;
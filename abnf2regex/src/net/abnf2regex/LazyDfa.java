@@ -0,0 +1,598 @@
+package net.abnf2regex;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A deterministic automaton that is built while matching, for rules where
+ * building every state up front would take too long or too much memory. Each
+ * state is created the first time that input reaches it, and kept in a cache
+ * of limited size, so input that only visits a few states runs as fast as a
+ * {@link Dfa}.
+ * <p>
+ * When the cache is full it is emptied and filled again. If that happens so
+ * often that few characters are matched for each state that is created,
+ * building states costs more than it saves, and matching falls back to
+ * simulating the {@link Nfa} instead.
+ * <p>
+ * Each thread has its own cache, so instances can be used from any number of
+ * threads at once.
+ */
+final class LazyDfa
+{
+    /** The least number of characters to match for each state created. */
+    private static final int MIN_CHARS_PER_STATE = 10;
+    /** The most NFA states to hold in all cached states together. */
+    private static final int MAX_CACHE_TOTAL = 1 << 18;
+    /** A transition that hasn't been built yet. */
+    private static final int UNKNOWN = -1;
+
+    /** The automaton to run. */
+    final Nfa nfa;
+    /** The classes of code points for {@link #nfa}. */
+    final Dfa.CharClasses classes;
+    /** The number of classes. */
+    final int classCount;
+    /** The most states to cache in each thread. */
+    final int capacity;
+    /** The NFA states of the start state. */
+    private final int[] startSet;
+    /** The cache for each thread. */
+    private final ThreadLocal<Cache> caches = new ThreadLocal<Cache>()
+    {
+        @Override
+        protected Cache initialValue()
+        {
+            return new Cache();
+        }
+    };
+
+    /**
+     * Create an automaton.
+     *
+     * @param _nfa the automaton to run
+     * @param _classes the classes of code points for the automaton
+     * @param _capacity the most states to cache in each thread
+     */
+    LazyDfa(Nfa _nfa, Dfa.CharClasses _classes, int _capacity)
+    {
+        this.nfa = _nfa;
+        this.classes = _classes;
+        this.classCount = _classes.size();
+        this.capacity = Math.max(_capacity, 3);
+        Nfa.StateSet closure = new Nfa.StateSet(_nfa.size);
+        _nfa.addClosure(closure, _nfa.start, new int[_nfa.size * 2 + 1]);
+        this.startSet = Dfa.subset(_nfa, closure);
+    }
+
+    /**
+     * Run the automaton over input.
+     *
+     * @param input the input
+     * @return true if the whole input is accepted
+     */
+    boolean matches(CharSequence input)
+    {
+        return this.caches.get().matches(input);
+    }
+
+    /**
+     * Run the automaton over bytes, where each byte is a code point from 0 to
+     * 255, as octets are in ABNF.
+     *
+     * @param input the bytes from the position to the limit; the position
+     *            isn't changed
+     * @return true if all the bytes are accepted
+     */
+    boolean matches(ByteBuffer input)
+    {
+        return this.caches.get().matches(input);
+    }
+
+    /**
+     * Run the automaton over input, and find which rules accept it.
+     *
+     * @param input the input
+     * @return the numbers of the rules that accept the whole input, as given
+     *         to {@link Nfa#compile(java.util.List)}
+     */
+    int[] matchedRules(CharSequence input)
+    {
+        Walker w = new Walker();
+        w.begin();
+        try
+        {
+            int len = input.length();
+            int i = 0;
+            boolean alive = !w.isDead();
+            while (i < len && alive)
+            {
+                char c = input.charAt(i++);
+                int cp = c;
+                if (Character.isHighSurrogate(c) && i < len && Character.isLowSurrogate(input.charAt(i)))
+                {
+                    cp = Character.toCodePoint(c, input.charAt(i++));
+                }
+                alive = w.step(cp);
+            }
+        }
+        finally
+        {
+            w.end();
+        }
+        return w.matchedRules();
+    }
+
+    /**
+     * Create a cursor at the start state.
+     *
+     * @return a new cursor
+     */
+    Cursor newCursor()
+    {
+        return new Walker();
+    }
+
+    /**
+     * A cursor. Between runs of input it holds the NFA states of its DFA state,
+     * since the cache that it used might be flushed, or might belong to a
+     * different thread next time. If the cache thrashes, the cursor carries on
+     * by simulating the NFA.
+     */
+    private final class Walker extends Cursor
+    {
+        /** The NFA states of the current state, between runs of input. */
+        private int[] set;
+        /** The cache in use during a run of input. */
+        private Cache cache;
+        /** The offset of the current state in {@link #cache}. */
+        private int offset;
+        /** The characters fed since the run began, or the cache was flushed. */
+        private int consumed;
+        /** The states, once the NFA is being simulated instead. */
+        private Nfa.StateSet current;
+        private Nfa.StateSet following;
+        private int[] stack;
+
+        Walker()
+        {
+            this.reset();
+        }
+
+        Walker(Walker other)
+        {
+            this.set = other.set;
+            if (other.current != null)
+            {
+                this.simulate();
+                for (int j = 0; j < other.current.size; ++j)
+                {
+                    this.current.add(other.current.dense[j]);
+                }
+            }
+        }
+
+        private void simulate()
+        {
+            Nfa n = LazyDfa.this.nfa;
+            this.current = new Nfa.StateSet(n.size);
+            this.following = new Nfa.StateSet(n.size);
+            this.stack = new int[n.size * 2 + 1];
+        }
+
+        @Override
+        void begin()
+        {
+            if (this.current == null)
+            {
+                this.cache = LazyDfa.this.caches.get();
+                this.offset = this.cache.find(this.set);
+                this.cache.created = 0;
+                this.consumed = 0;
+            }
+        }
+
+        @Override
+        boolean step(int cp)
+        {
+            if (this.current == null)
+            {
+                int cls = LazyDfa.this.classes.classOf(cp);
+                int next = this.cache.table[this.offset + cls];
+                if (next == LazyDfa.UNKNOWN)
+                {
+                    int before = this.cache.flushes;
+                    next = this.cache.build(this.offset, cls, this.consumed);
+                    if (this.cache.flushes != before)
+                    {
+                        this.consumed = 0;
+                    }
+                }
+                if (next != LazyDfa.UNKNOWN)
+                {
+                    ++this.consumed;
+                    this.offset = next;
+                    return next != 0;
+                }
+                // thrashing, so switch to the NFA from here on
+                ++this.cache.fallbacks;
+                this.simulate();
+                for (int s : this.cache.sets[this.offset / LazyDfa.this.classCount])
+                {
+                    this.current.add(s);
+                }
+                this.cache = null;
+                this.set = null;
+            }
+            LazyDfa.this.nfa.step(this.current, this.following, cp, this.stack);
+            Nfa.StateSet swap = this.current;
+            this.current = this.following;
+            this.following = swap;
+            return this.current.size > 0;
+        }
+
+        @Override
+        void end()
+        {
+            if (this.cache != null)
+            {
+                this.set = this.cache.sets[this.offset / LazyDfa.this.classCount];
+                this.cache = null;
+            }
+        }
+
+        @Override
+        boolean isAccepting()
+        {
+            if (this.current != null)
+            {
+                return LazyDfa.this.nfa.isAccepting(this.current);
+            }
+            if (this.cache != null)
+            {
+                // during a run, the set isn't up to date
+                return this.cache.accepting[this.offset / LazyDfa.this.classCount];
+            }
+            for (int s : this.set)
+            {
+                if (LazyDfa.this.nfa.op[s] == Nfa.MATCH)
+                {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        @Override
+        boolean isDead()
+        {
+            if (this.cache != null)
+            {
+                return this.offset == 0;
+            }
+            return (this.current != null) ? this.current.size == 0 : this.set.length == 0;
+        }
+
+        @Override
+        void reset()
+        {
+            this.set = LazyDfa.this.startSet;
+            this.current = null;
+            this.following = null;
+            this.stack = null;
+        }
+
+        @Override
+        Cursor copy()
+        {
+            return new Walker(this);
+        }
+
+        /**
+         * Get the rules that accept the input so far.
+         *
+         * @return the sorted numbers of the rules
+         */
+        int[] matchedRules()
+        {
+            if (this.current == null)
+            {
+                return Dfa.matchedRules(LazyDfa.this.nfa, this.set);
+            }
+            int[] states = Arrays.copyOf(this.current.dense, this.current.size);
+            Arrays.sort(states);
+            return Dfa.matchedRules(LazyDfa.this.nfa, states);
+        }
+    }
+
+    /**
+     * Get the number of states cached by the current thread.
+     *
+     * @return the number of states
+     */
+    int getCachedStates()
+    {
+        return this.caches.get().count;
+    }
+
+    /**
+     * Get the number of times the current thread has emptied its cache.
+     *
+     * @return the number of times the cache was emptied
+     */
+    int getFlushes()
+    {
+        return this.caches.get().flushes;
+    }
+
+    /**
+     * Get the number of times the current thread gave up on building states
+     * and simulated the NFA instead.
+     *
+     * @return the number of fallbacks
+     */
+    int getFallbacks()
+    {
+        return this.caches.get().fallbacks;
+    }
+
+    /**
+     * The states that one thread has built. State 0 is always the dead state
+     * and state 1 is always the start state, unless the start state is dead.
+     * As in {@link Dfa}, states are identified by the offset of their row in
+     * the table.
+     */
+    private final class Cache
+    {
+        /** The transitions, or {@link LazyDfa#UNKNOWN}. */
+        final int[] table;
+        /** The NFA states in each state. */
+        final int[][] sets;
+        /** Whether each state accepts. */
+        private final boolean[] accepting;
+        /** The number of each state. */
+        private final Map<Dfa.IntArrayKey, Integer> numbers = new HashMap<Dfa.IntArrayKey, Integer>();
+        /** The number of states. */
+        int count;
+        /** The total number of NFA states in all the cached states. */
+        private int total;
+        /** The offset of the start state. */
+        private int start;
+        /** The number of times the cache was emptied. */
+        int flushes;
+        /** The number of times matching fell back to the NFA. */
+        int fallbacks;
+        /** The number of states created since matching or flushing began. */
+        int created;
+
+        private final Nfa.StateSet scratch;
+        private final int[] stack;
+
+        Cache()
+        {
+            int n = LazyDfa.this.capacity;
+            this.table = new int[n * LazyDfa.this.classCount];
+            this.sets = new int[n][];
+            this.accepting = new boolean[n];
+            this.scratch = new Nfa.StateSet(LazyDfa.this.nfa.size);
+            this.stack = new int[LazyDfa.this.nfa.size * 2 + 1];
+            this.flush();
+            this.flushes = 0;
+        }
+
+        /**
+         * Empty the cache, leaving just the dead and start states.
+         */
+        private void flush()
+        {
+            this.numbers.clear();
+            this.count = 0;
+            this.total = 0;
+            ++this.flushes;
+            this.scratch.clear();
+            this.add(Dfa.subset(LazyDfa.this.nfa, this.scratch));
+            LazyDfa.this.nfa.addClosure(this.scratch, LazyDfa.this.nfa.start, this.stack);
+            int[] set = Dfa.subset(LazyDfa.this.nfa, this.scratch);
+            this.start = (set.length == 0) ? 0 : this.add(set);
+        }
+
+        /**
+         * Find a state, adding it if it isn't cached, and flushing the cache
+         * first if it is full.
+         *
+         * @param set the NFA states of the state
+         * @return the offset of the state
+         */
+        int find(int[] set)
+        {
+            Integer existing = this.numbers.get(new Dfa.IntArrayKey(set));
+            if (existing != null)
+            {
+                return existing.intValue() * LazyDfa.this.classCount;
+            }
+            if (this.count == LazyDfa.this.capacity || this.total + set.length > LazyDfa.MAX_CACHE_TOTAL)
+            {
+                this.flush();
+                existing = this.numbers.get(new Dfa.IntArrayKey(set));
+                if (existing != null)
+                {
+                    return existing.intValue() * LazyDfa.this.classCount;
+                }
+            }
+            return this.add(set);
+        }
+
+        /**
+         * Add a state, which mustn't already be cached, and which must fit.
+         *
+         * @return the offset of the new state
+         */
+        private int add(int[] set)
+        {
+            int id = this.count++;
+            int k = LazyDfa.this.classCount;
+            this.numbers.put(new Dfa.IntArrayKey(set), Integer.valueOf(id));
+            this.sets[id] = set;
+            this.total += set.length;
+            boolean acc = false;
+            for (int s : set)
+            {
+                acc |= LazyDfa.this.nfa.op[s] == Nfa.MATCH;
+            }
+            this.accepting[id] = acc;
+            Arrays.fill(this.table, id * k, (id + 1) * k, LazyDfa.UNKNOWN);
+            ++this.created;
+            return id * k;
+        }
+
+        /**
+         * Run the automaton over input, building states as they are needed.
+         *
+         * @param input the input
+         * @return true if the whole input is accepted
+         */
+        boolean matches(CharSequence input)
+        {
+            int k = LazyDfa.this.classCount;
+            int[] latin = LazyDfa.this.classes.latin;
+            int s = this.start;
+            int len = input.length();
+            int i = 0;
+            int windowStart = 0;
+            this.created = 0;
+            while (i < len)
+            {
+                char c = input.charAt(i++);
+                int cls;
+                if (c < Dfa.LATIN)
+                {
+                    cls = latin[c];
+                }
+                else
+                {
+                    int cp = c;
+                    if (Character.isHighSurrogate(c) && i < len && Character.isLowSurrogate(input.charAt(i)))
+                    {
+                        cp = Character.toCodePoint(c, input.charAt(i++));
+                    }
+                    cls = LazyDfa.this.classes.lookupClass(cp);
+                }
+                int next = this.table[s + cls];
+                if (next == LazyDfa.UNKNOWN)
+                {
+                    int before = this.flushes;
+                    next = this.build(s, cls, i - windowStart);
+                    if (next == LazyDfa.UNKNOWN)
+                    {
+                        ++this.fallbacks;
+                        return LazyDfa.this.nfa.matches(input);
+                    }
+                    if (this.flushes != before)
+                    {
+                        windowStart = i;
+                    }
+                }
+                s = next;
+                if (s == 0)
+                {
+                    return false;
+                }
+            }
+            return this.accepting[s / k];
+        }
+
+        /**
+         * Run the automaton over bytes, building states as they are needed.
+         *
+         * @param input the bytes from the position to the limit
+         * @return true if all the bytes are accepted
+         */
+        boolean matches(ByteBuffer input)
+        {
+            int k = LazyDfa.this.classCount;
+            int[] latin = LazyDfa.this.classes.latin;
+            int s = this.start;
+            int windowStart = input.position();
+            this.created = 0;
+            for (int i = input.position(); i < input.limit(); ++i)
+            {
+                int cls = latin[input.get(i) & 0xFF];
+                int next = this.table[s + cls];
+                if (next == LazyDfa.UNKNOWN)
+                {
+                    int before = this.flushes;
+                    next = this.build(s, cls, i - windowStart);
+                    if (next == LazyDfa.UNKNOWN)
+                    {
+                        ++this.fallbacks;
+                        return LazyDfa.this.nfa.matches(input);
+                    }
+                    if (this.flushes != before)
+                    {
+                        windowStart = i;
+                    }
+                }
+                s = next;
+                if (s == 0)
+                {
+                    return false;
+                }
+            }
+            return this.accepting[s / k];
+        }
+
+        /**
+         * Build the transition from a state on a class.
+         *
+         * @param s the offset of the state
+         * @param cls the class
+         * @param consumed the number of characters matched since matching
+         *            began, or since the cache was last flushed
+         * @return the offset of the next state, or {@link LazyDfa#UNKNOWN} if
+         *         the cache is thrashing
+         */
+        int build(int s, int cls, int consumed)
+        {
+            Nfa n = LazyDfa.this.nfa;
+            Dfa.CharClasses classes = LazyDfa.this.classes;
+            int k = LazyDfa.this.classCount;
+            this.scratch.clear();
+            for (int state : this.sets[s / k])
+            {
+                if (classes.accepts(state, cls))
+                {
+                    n.addClosure(this.scratch, n.next[state], this.stack);
+                }
+            }
+            int[] set = Dfa.subset(n, this.scratch);
+            Integer existing = this.numbers.get(new Dfa.IntArrayKey(set));
+            if (existing != null)
+            {
+                int next = existing.intValue() * k;
+                this.table[s + cls] = next;
+                return next;
+            }
+            if (this.count == LazyDfa.this.capacity || this.total + set.length > LazyDfa.MAX_CACHE_TOTAL)
+            {
+                if (consumed < LazyDfa.MIN_CHARS_PER_STATE * this.created)
+                {
+                    return LazyDfa.UNKNOWN;
+                }
+                // s is gone after this, but only the next state is needed
+                this.flush();
+                this.created = 0;
+                existing = this.numbers.get(new Dfa.IntArrayKey(set));
+                if (existing != null)
+                {
+                    return existing.intValue() * k;
+                }
+                return this.add(set);
+            }
+            int next = this.add(set);
+            this.table[s + cls] = next;
+            return next;
+        }
+    }
+}
@@ -143,11 +143,12 @@ public class LiteralFragment extends RuleFragment
     }
 
     @Override
-    protected void buildRegex(PrintWriter pw, Set<String> usedNames) throws RuleResolutionException
+    protected void buildRegex(PrintWriter pw, RegexSyntax syntax, Set<String> usedNames)
+            throws RuleResolutionException
     {
         for (CharRange cr : this.ranges)
         {
-            pw.print(RegexSyntax.getCurrent().range(cr));
+            pw.print(syntax.range(cr));
         }
     }
 
@@ -202,6 +203,7 @@ public class LiteralFragment extends RuleFragment
     @Override
     public Object clone()
     {
+        CompilationStats.count(CompilationStats.CLONES);
         LiteralFragment copy = new LiteralFragment();
         copy.setOccurences(this.getOccurences());
         copy.ranges.addAll(this.ranges);
@@ -0,0 +1,199 @@
+package net.abnf2regex;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Matches input against a rule as it arrives, a piece at a time, without
+ * keeping the input that has already been seen. Input can be fed as
+ * characters or as bytes; each byte is taken as a code point from 0 to 255,
+ * the way that ABNF treats octets.
+ * <p>
+ * As soon as no continuation of the input could match, the state is dead, and
+ * further input is ignored. A high surrogate at the end of a chunk of
+ * characters is held until the next chunk shows whether it starts a pair;
+ * while it is held, {@link #isAccepting()} treats it as unpaired, just as
+ * {@link RuleMatcher#matches(CharSequence)} would at the end of the input.
+ * <p>
+ * Instances are not thread safe, but they may be passed from one thread to
+ * another between calls. For rules that reach a recursive rule, memory grows
+ * with the length of the input.
+ *
+ * @see RuleMatcher#newState()
+ */
+public final class MatchState
+{
+    /** Where matching has got to. */
+    private final Cursor cursor;
+    /** Whether a high surrogate is being held. */
+    private boolean hasPending;
+    /** The high surrogate being held. */
+    private char pending;
+    /** Whether the input can no longer match. */
+    private boolean dead;
+
+    /**
+     * Create a state at the start of the input.
+     *
+     * @param _cursor the cursor for the compiled rule
+     */
+    /* package private */MatchState(Cursor _cursor)
+    {
+        this.cursor = _cursor;
+        this.dead = _cursor.isDead();
+    }
+
+    /**
+     * Feed characters.
+     *
+     * @param chunk the next characters of the input
+     * @return false if the input can no longer match
+     */
+    public boolean feed(CharSequence chunk)
+    {
+        int len = chunk.length();
+        if (this.dead || len == 0)
+        {
+            return !this.dead;
+        }
+        Cursor c = this.cursor;
+        c.begin();
+        try
+        {
+            int i = 0;
+            if (this.hasPending)
+            {
+                this.hasPending = false;
+                char low = chunk.charAt(0);
+                if (Character.isLowSurrogate(low))
+                {
+                    ++i;
+                    this.dead = !c.step(Character.toCodePoint(this.pending, low));
+                }
+                else
+                {
+                    this.dead = !c.step(this.pending);
+                }
+            }
+            while (i < len && !this.dead)
+            {
+                char ch = chunk.charAt(i++);
+                int cp = ch;
+                if (Character.isHighSurrogate(ch))
+                {
+                    if (i == len)
+                    {
+                        this.hasPending = true;
+                        this.pending = ch;
+                        break;
+                    }
+                    if (Character.isLowSurrogate(chunk.charAt(i)))
+                    {
+                        cp = Character.toCodePoint(ch, chunk.charAt(i++));
+                    }
+                }
+                this.dead = !c.step(cp);
+            }
+        }
+        finally
+        {
+            c.end();
+        }
+        return !this.dead;
+    }
+
+    /**
+     * Feed bytes.
+     *
+     * @param chunk the bytes
+     * @param offset the index of the first byte
+     * @param length the number of bytes
+     * @return false if the input can no longer match
+     * @throws IndexOutOfBoundsException if the range isn't within the array
+     */
+    public boolean feed(byte[] chunk, int offset, int length)
+    {
+        return this.feed(ByteBuffer.wrap(chunk, offset, length));
+    }
+
+    /**
+     * Feed the bytes between the position and the limit of a buffer. The
+     * position is not changed.
+     *
+     * @param chunk the bytes
+     * @return false if the input can no longer match
+     */
+    public boolean feed(ByteBuffer chunk)
+    {
+        if (this.dead || (!chunk.hasRemaining() && !this.hasPending))
+        {
+            return !this.dead;
+        }
+        Cursor c = this.cursor;
+        c.begin();
+        try
+        {
+            if (this.hasPending)
+            {
+                this.hasPending = false;
+                this.dead = !c.step(this.pending);
+            }
+            for (int i = chunk.position(); i < chunk.limit() && !this.dead; ++i)
+            {
+                this.dead = !c.step(chunk.get(i) & 0xFF);
+            }
+        }
+        finally
+        {
+            c.end();
+        }
+        return !this.dead;
+    }
+
+    /**
+     * Determine whether the input so far matches the rule.
+     *
+     * @return true if the input matches
+     */
+    public boolean isAccepting()
+    {
+        if (this.dead)
+        {
+            return false;
+        }
+        if (!this.hasPending)
+        {
+            return this.cursor.isAccepting();
+        }
+        Cursor c = this.cursor.copy();
+        c.begin();
+        try
+        {
+            return c.step(this.pending) && c.isAccepting();
+        }
+        finally
+        {
+            c.end();
+        }
+    }
+
+    /**
+     * Determine whether the input so far can never match, however it
+     * continues.
+     *
+     * @return true if no input starting this way can match
+     */
+    public boolean isDead()
+    {
+        return this.dead;
+    }
+
+    /**
+     * Go back to the start of the input, so the state can be used again.
+     */
+    public void reset()
+    {
+        this.cursor.reset();
+        this.hasPending = false;
+        this.dead = this.cursor.isDead();
+    }
+}
@@ -13,6 +13,8 @@ public class NamedFragment extends RuleFragment
 {
     /** The name of the referenced rule. */
     private final String name;
+    /** The number for the name of the referenced rule. */
+    private final int symbol;
     /**
      * The actual value of the referenced rule, or null if this rule is
      * unresolved.
@@ -27,6 +29,7 @@ public class NamedFragment extends RuleFragment
     public NamedFragment(String nm)
     {
         this.name = nm;
+        this.symbol = SymbolTable.intern(nm);
     }
 
     /**
@@ -39,6 +42,17 @@ public class NamedFragment extends RuleFragment
         return this.name;
     }
 
+    /**
+     * Get the number for the name of the referenced rule.
+     *
+     * @return the symbol
+     * @see SymbolTable
+     */
+    /* package private */int getSymbol()
+    {
+        return this.symbol;
+    }
+
     /**
      * Resolve this fragment, by assigning a rule to it. Note that the rule name
      * is not checked for consistency, that is the caller's responsibility.
@@ -82,13 +96,14 @@ public class NamedFragment extends RuleFragment
     }
 
     @Override
-    protected void buildRegex(PrintWriter pw, Set<String> usedNames) throws RuleResolutionException
+    protected void buildRegex(PrintWriter pw, RegexSyntax syntax, Set<String> usedNames)
+            throws RuleResolutionException
     {
         if (this.resolved == null)
         {
             throw new RuleResolutionException("Unresolved fragment: " + this.name); //$NON-NLS-1$
         }
-        this.resolved.writeRegex(pw, usedNames);
+        this.resolved.writeRegex(pw, syntax, usedNames);
     }
 
     @Override
@@ -100,6 +115,7 @@ public class NamedFragment extends RuleFragment
     @Override
     public Object clone()
     {
+        CompilationStats.count(CompilationStats.CLONES);
         NamedFragment copy = new NamedFragment(this.getName());
         copy.setOccurences(this.getOccurences());
         copy.resolve(this.resolved);
@@ -0,0 +1,651 @@
+package net.abnf2regex;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * A nondeterministic finite automaton, compiled directly from the fragments of
+ * a resolved rule. States either consume a single code point from a set of
+ * ranges, or they split into two other states without consuming anything.
+ * <p>
+ * Rules that reference themselves can't be expressed exactly; as with the
+ * regular expressions that are generated for them, a recursive reference is
+ * replaced with a wildcard that matches anything.
+ */
+final class Nfa
+{
+    /** Consume a code point that is in {@link #ranges}, then go to next. */
+    static final int CHAR = 0;
+    /** Go to next and to alt, without consuming anything. */
+    static final int SPLIT = 1;
+    /** A rule has matched; next holds the number of the rule. */
+    static final int MATCH = 2;
+    /** Record the position in capture slot alt, then go to next. */
+    static final int SAVE = 3;
+
+    /** The largest code point. */
+    static final int MAX_CODE_POINT = Character.MAX_CODE_POINT;
+    /** The most states that a rule is allowed to compile to. */
+    private static final int MAX_STATES = 1 << 20;
+    /** An empty set of ranges, which never matches. */
+    private static final int[] NO_RANGES = new int[0];
+    /** Ranges that match any code point. */
+    static final int[] ANY = { 0, Nfa.MAX_CODE_POINT };
+
+    /** The operation for each state. */
+    int[] op = new int[64];
+    /** The state that follows each state. */
+    int[] next = new int[64];
+    /** The alternative state for {@link #SPLIT} states. */
+    int[] alt = new int[64];
+    /**
+     * The code points accepted by each {@link #CHAR} state, as sorted pairs of
+     * inclusive start and end values.
+     */
+    int[][] ranges = new int[64][];
+    /** The number of states. */
+    int size;
+    /** The first state. */
+    int start;
+    /** Whether a recursive reference had to be replaced with a wildcard. */
+    boolean approximate;
+
+    /** The rules that are being compiled, used to detect recursion. */
+    private final Set<Rule> compiling = new HashSet<Rule>();
+    /** The symbols of the rules to capture, or null. */
+    private int[] captures;
+
+    private Nfa()
+    {
+        // use compile()
+    }
+
+    /**
+     * Compile a rule.
+     *
+     * @param rule a rule, which must be resolved
+     * @return an automaton that accepts exactly the input that the rule
+     *         matches, unless the rule is recursive
+     * @throws RuleResolutionException if the rule references a rule that isn't
+     *             resolved
+     * @throws IllegalArgumentException if the rule is too big to compile
+     */
+    static Nfa compile(Rule rule) throws RuleResolutionException
+    {
+        Nfa nfa = new Nfa();
+        int match = nfa.addState(Nfa.MATCH, 0, -1, null);
+        nfa.start = nfa.compileRule(rule, match);
+        return nfa;
+    }
+
+    /**
+     * Compile a rule, recording where some of the rules that it references
+     * start and end. Each match of rule number k in the captures is surrounded
+     * by {@link #SAVE} states for slots 2k and 2k+1.
+     *
+     * @param rule a rule, which must be resolved
+     * @param captureSymbols the symbols of the rules to capture
+     * @return an automaton that accepts the input that the rule matches
+     * @throws RuleResolutionException if the rule references a rule that isn't
+     *             resolved
+     * @throws IllegalArgumentException if the rule is too big to compile
+     */
+    static Nfa compile(Rule rule, int[] captureSymbols) throws RuleResolutionException
+    {
+        Nfa nfa = new Nfa();
+        nfa.captures = captureSymbols;
+        int match = nfa.addState(Nfa.MATCH, 0, -1, null);
+        nfa.start = nfa.compileRule(rule, match);
+        return nfa;
+    }
+
+    /**
+     * Compile several rules into one automaton, which has a separate
+     * {@link #MATCH} state for each rule.
+     *
+     * @param rules the rules, which must be resolved
+     * @return an automaton that accepts the input that any of the rules match,
+     *         where each {@link #MATCH} state holds the index of its rule in
+     *         the list
+     * @throws RuleResolutionException if a rule references a rule that isn't
+     *             resolved
+     * @throws IllegalArgumentException if the rules are too big to compile
+     */
+    static Nfa compile(List<Rule> rules) throws RuleResolutionException
+    {
+        Nfa nfa = new Nfa();
+        if (rules.isEmpty())
+        {
+            nfa.start = nfa.addState(Nfa.CHAR, -1, -1, Nfa.NO_RANGES);
+            return nfa;
+        }
+        int[] starts = new int[rules.size()];
+        for (int i = 0; i < starts.length; ++i)
+        {
+            int match = nfa.addState(Nfa.MATCH, i, -1, null);
+            starts[i] = nfa.compileRule(rules.get(i), match);
+        }
+        int first = starts[starts.length - 1];
+        for (int i = starts.length - 2; i >= 0; --i)
+        {
+            first = nfa.addState(Nfa.SPLIT, starts[i], first, null);
+        }
+        nfa.start = first;
+        return nfa;
+    }
+
+    /**
+     * Build an automaton that accepts the reverse of what this one accepts,
+     * for finding where a match starts by running backwards from where it
+     * ends. State s of this automaton becomes state s of the reverse, which
+     * goes to every state that went to s.
+     *
+     * @return the reverse automaton, with a single {@link #MATCH} state
+     */
+    Nfa reverse()
+    {
+        int n = this.size;
+        int[] count = new int[n + 1];
+        for (int s = 0; s < n; ++s)
+        {
+            if (this.op[s] != Nfa.MATCH && this.next[s] >= 0)
+            {
+                ++count[this.next[s]];
+            }
+            if (this.op[s] == Nfa.SPLIT)
+            {
+                ++count[this.alt[s]];
+            }
+        }
+        ++count[this.start];
+        int[] first = new int[n + 1];
+        for (int s = 0; s < n; ++s)
+        {
+            first[s + 1] = first[s] + count[s];
+        }
+        int[] from = new int[first[n]];
+        int[] fill = Arrays.copyOf(first, n);
+        for (int s = 0; s < n; ++s)
+        {
+            if (this.op[s] != Nfa.MATCH && this.next[s] >= 0)
+            {
+                from[fill[this.next[s]]++] = s;
+            }
+            if (this.op[s] == Nfa.SPLIT)
+            {
+                from[fill[this.alt[s]]++] = s;
+            }
+        }
+        // -1 marks the edge from the start state to the match state
+        from[fill[this.start]++] = -1;
+
+        Nfa r = new Nfa();
+        for (int s = 0; s < n; ++s)
+        {
+            r.addState(Nfa.SPLIT, -1, -1, null);
+        }
+        int match = r.addState(Nfa.MATCH, 0, -1, null);
+        int[] targets = new int[16];
+        for (int t = 0; t < n; ++t)
+        {
+            int k = first[t + 1] - first[t];
+            if (k > targets.length)
+            {
+                targets = new int[k];
+            }
+            for (int j = 0; j < k; ++j)
+            {
+                int p = from[first[t] + j];
+                if (p < 0)
+                {
+                    targets[j] = match;
+                }
+                else if (this.op[p] == Nfa.CHAR)
+                {
+                    targets[j] = r.addState(Nfa.CHAR, p, -1, this.ranges[p]);
+                }
+                else
+                {
+                    targets[j] = p;
+                }
+            }
+            if (k == 0)
+            {
+                r.op[t] = Nfa.CHAR;
+                r.ranges[t] = Nfa.NO_RANGES;
+                continue;
+            }
+            int rest = targets[k - 1];
+            for (int j = k - 2; j >= 1; --j)
+            {
+                rest = r.addState(Nfa.SPLIT, targets[j], rest, null);
+            }
+            // adding states might grow the arrays, so don't index them until after
+            r.next[t] = targets[0];
+            r.alt[t] = rest;
+        }
+        int[] matches = new int[n];
+        int m = 0;
+        for (int s = 0; s < n; ++s)
+        {
+            if (this.op[s] == Nfa.MATCH)
+            {
+                matches[m++] = s;
+            }
+        }
+        if (m == 0)
+        {
+            r.start = r.addState(Nfa.CHAR, -1, -1, Nfa.NO_RANGES);
+            return r;
+        }
+        int start = matches[m - 1];
+        for (int j = m - 2; j >= 0; --j)
+        {
+            start = r.addState(Nfa.SPLIT, matches[j], start, null);
+        }
+        r.start = start;
+        return r;
+    }
+
+    private int addState(int operation, int nextState, int altState, int[] accept)
+    {
+        if (this.size == this.op.length)
+        {
+            if (this.size >= Nfa.MAX_STATES)
+            {
+                throw new IllegalArgumentException("Rule is too large to compile"); //$NON-NLS-1$
+            }
+            int capacity = this.size * 2;
+            this.op = Arrays.copyOf(this.op, capacity);
+            this.next = Arrays.copyOf(this.next, capacity);
+            this.alt = Arrays.copyOf(this.alt, capacity);
+            this.ranges = Arrays.copyOf(this.ranges, capacity);
+        }
+        this.op[this.size] = operation;
+        this.next[this.size] = nextState;
+        this.alt[this.size] = altState;
+        this.ranges[this.size] = accept;
+        return this.size++;
+    }
+
+    /*
+     * Fragments are compiled from the end backwards: each one is given the
+     * state that follows it and returns the state that starts it.
+     */
+
+    private int compileRule(Rule rule, int follow) throws RuleResolutionException
+    {
+        if (!this.compiling.add(rule))
+        {
+            this.approximate = true;
+            return this.compileWildcard(follow);
+        }
+        int capture = -1;
+        if (this.captures != null)
+        {
+            for (int k = 0; k < this.captures.length && capture < 0; ++k)
+            {
+                if (this.captures[k] == rule.getSymbol())
+                {
+                    capture = k;
+                }
+            }
+        }
+        int first;
+        if (capture < 0)
+        {
+            first = this.compileFragment(rule.getMainFragment(), follow);
+        }
+        else
+        {
+            int end = this.addState(Nfa.SAVE, follow, 2 * capture + 1, null);
+            int body = this.compileFragment(rule.getMainFragment(), end);
+            first = this.addState(Nfa.SAVE, body, 2 * capture, null);
+        }
+        this.compiling.remove(rule);
+        return first;
+    }
+
+    private int compileFragment(RuleFragment rf, int follow) throws RuleResolutionException
+    {
+        OccurrenceRange range = rf.getOccurences();
+        int first = follow;
+        if (range.getMax() < 0)
+        {
+            // a loop that prefers to go around again
+            int loop = this.addState(Nfa.SPLIT, -1, follow, null);
+            // compiling might grow the arrays, so don't index them until after
+            int body = this.compileOnce(rf, loop);
+            this.next[loop] = body;
+            first = loop;
+        }
+        else
+        {
+            for (int i = range.getMin(); i < range.getMax(); ++i)
+            {
+                first = this.addState(Nfa.SPLIT, this.compileOnce(rf, first), follow, null);
+            }
+        }
+        for (int i = 0; i < range.getMin(); ++i)
+        {
+            first = this.compileOnce(rf, first);
+        }
+        return first;
+    }
+
+    private int compileOnce(RuleFragment rf, int follow) throws RuleResolutionException
+    {
+        if (rf instanceof SequenceFragment)
+        {
+            int first = follow;
+            Iterator<RuleFragment> it = ((SequenceFragment) rf).fragments.descendingIterator();
+            while (it.hasNext())
+            {
+                first = this.compileFragment(it.next(), first);
+            }
+            return first;
+        }
+        if (rf instanceof ChoiceFragment)
+        {
+            return this.compileChoice((ChoiceFragment) rf, follow);
+        }
+        if (rf instanceof StringFragment)
+        {
+            return this.compileString(((StringFragment) rf).getText(), follow);
+        }
+        if (rf instanceof LiteralFragment)
+        {
+            int first = follow;
+            LiteralFragment lit = (LiteralFragment) rf;
+            for (int i = lit.ranges.size() - 1; i >= 0; --i)
+            {
+                CharRange cr = lit.ranges.get(i);
+                first = this.addState(Nfa.CHAR, first, -1, new int[] { cr.getStart(), cr.getEnd() });
+            }
+            return first;
+        }
+        if (rf instanceof WildcardFragment)
+        {
+            return this.compileWildcard(follow);
+        }
+        if (rf instanceof NamedFragment)
+        {
+            NamedFragment named = (NamedFragment) rf;
+            if (named.getResolvedRule() == null)
+            {
+                throw new RuleResolutionException("Unresolved fragment: " + named.getName()); //$NON-NLS-1$
+            }
+            return this.compileRule(named.getResolvedRule(), follow);
+        }
+        throw new IllegalArgumentException("Unknown fragment type: " + rf.getClass()); //$NON-NLS-1$
+    }
+
+    private int compileChoice(ChoiceFragment choice, int follow) throws RuleResolutionException
+    {
+        int count = choice.length();
+        if (count == 0)
+        {
+            return this.addState(Nfa.CHAR, follow, -1, Nfa.NO_RANGES);
+        }
+        RuleFragment[] options = choice.fragments.toArray(new RuleFragment[count]);
+        int first = this.compileFragment(options[count - 1], follow);
+        for (int i = count - 2; i >= 0; --i)
+        {
+            first = this.addState(Nfa.SPLIT, this.compileFragment(options[i], follow), first, null);
+        }
+        return first;
+    }
+
+    private int compileString(String str, int follow)
+    {
+        int first = follow;
+        int i = str.length();
+        while (i > 0)
+        {
+            int cp = str.codePointBefore(i);
+            i -= Character.charCount(cp);
+            first = this.addState(Nfa.CHAR, first, -1, Nfa.caseInsensitive(cp));
+        }
+        return first;
+    }
+
+    /**
+     * Get the ranges that match a code point from a string. Strings in ABNF
+     * are case-insensitive, so letters match in either case.
+     *
+     * @param cp the code point
+     * @return sorted pairs of inclusive start and end values
+     */
+    static int[] caseInsensitive(int cp)
+    {
+        int upper = Character.toUpperCase(cp);
+        int lower = Character.toLowerCase(cp);
+        if (!Character.isLetter(cp) || upper == lower)
+        {
+            return new int[] { cp, cp };
+        }
+        int low = Math.min(upper, lower);
+        int high = Math.max(upper, lower);
+        return new int[] { low, low, high, high };
+    }
+
+    private int compileWildcard(int follow)
+    {
+        int loop = this.addState(Nfa.SPLIT, -1, follow, null);
+        int any = this.addState(Nfa.CHAR, loop, -1, Nfa.ANY);
+        this.next[loop] = any;
+        return loop;
+    }
+
+    /**
+     * Determine whether a {@link #CHAR} state accepts a code point.
+     *
+     * @param state the state
+     * @param cp the code point
+     * @return true if the code point is accepted
+     */
+    boolean accepts(int state, int cp)
+    {
+        int[] r = this.ranges[state];
+        for (int i = 0; i < r.length; i += 2)
+        {
+            if (cp >= r[i] && cp <= r[i + 1])
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Add a state to a set, along with every state that can be reached from it
+     * without consuming input. Only {@link #CHAR} and {@link #MATCH} states are
+     * really needed, but {@link #SPLIT} and {@link #SAVE} states are added too,
+     * so that each state is only visited once.
+     *
+     * @param set the set to add to
+     * @param state the state to add
+     * @param stack a stack to use, which is left empty
+     */
+    void addClosure(StateSet set, int state, int[] stack)
+    {
+        int top = 0;
+        stack[top++] = state;
+        while (top > 0)
+        {
+            int s = stack[--top];
+            if (!set.add(s))
+            {
+                continue;
+            }
+            if (this.op[s] == Nfa.SPLIT)
+            {
+                // push alt first so that next is explored first
+                stack[top++] = this.alt[s];
+                stack[top++] = this.next[s];
+            }
+            else if (this.op[s] == Nfa.SAVE)
+            {
+                stack[top++] = this.next[s];
+            }
+        }
+    }
+
+    /**
+     * Run the automaton over input, keeping track of every state that it could
+     * be in. This takes time proportional to the length of the input multiplied
+     * by the number of states.
+     *
+     * @param input the input
+     * @return true if the whole input is accepted
+     */
+    boolean matches(CharSequence input)
+    {
+        StateSet current = new StateSet(this.size);
+        StateSet following = new StateSet(this.size);
+        int[] stack = new int[this.size * 2 + 1];
+        this.addClosure(current, this.start, stack);
+
+        int len = input.length();
+        int i = 0;
+        while (i < len)
+        {
+            if (current.size == 0)
+            {
+                return false;
+            }
+            char c = input.charAt(i++);
+            int cp = c;
+            if (Character.isHighSurrogate(c) && i < len && Character.isLowSurrogate(input.charAt(i)))
+            {
+                cp = Character.toCodePoint(c, input.charAt(i++));
+            }
+            this.step(current, following, cp, stack);
+            StateSet swap = current;
+            current = following;
+            following = swap;
+        }
+        return this.isAccepting(current);
+    }
+
+    /**
+     * Run the automaton over bytes, where each byte is a code point from 0 to
+     * 255, as octets are in ABNF.
+     *
+     * @param input the bytes from the position to the limit; the position
+     *            isn't changed
+     * @return true if all the bytes are accepted
+     */
+    boolean matches(ByteBuffer input)
+    {
+        StateSet current = new StateSet(this.size);
+        StateSet following = new StateSet(this.size);
+        int[] stack = new int[this.size * 2 + 1];
+        this.addClosure(current, this.start, stack);
+        for (int i = input.position(); i < input.limit(); ++i)
+        {
+            if (current.size == 0)
+            {
+                return false;
+            }
+            this.step(current, following, input.get(i) & 0xFF, stack);
+            StateSet swap = current;
+            current = following;
+            following = swap;
+        }
+        return this.isAccepting(current);
+    }
+
+    /**
+     * Find the states that follow a set of states on a code point.
+     *
+     * @param current the states before the code point
+     * @param following the states after the code point, which is cleared first
+     * @param cp the code point
+     * @param stack a stack to use, which is left empty
+     */
+    void step(StateSet current, StateSet following, int cp, int[] stack)
+    {
+        following.clear();
+        for (int j = 0; j < current.size; ++j)
+        {
+            int s = current.dense[j];
+            if (this.op[s] == Nfa.CHAR && this.accepts(s, cp))
+            {
+                this.addClosure(following, this.next[s], stack);
+            }
+        }
+    }
+
+    /**
+     * Determine whether a set of states includes the {@link #MATCH} state.
+     *
+     * @param set the states
+     * @return true if the set accepts
+     */
+    boolean isAccepting(StateSet set)
+    {
+        for (int j = 0; j < set.size; ++j)
+        {
+            if (this.op[set.dense[j]] == Nfa.MATCH)
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * A set of states that can be cleared in constant time.
+     */
+    static final class StateSet
+    {
+        /** The states in the set, in the order they were added. */
+        final int[] dense;
+        /** The position of each state in {@link #dense}. */
+        private final int[] sparse;
+        /** The number of states in the set. */
+        int size;
+
+        /**
+         * Create an empty set.
+         *
+         * @param capacity the number of states in the automaton
+         */
+        StateSet(int capacity)
+        {
+            this.dense = new int[capacity];
+            this.sparse = new int[capacity];
+        }
+
+        /**
+         * Add a state.
+         *
+         * @param s the state
+         * @return true if the state wasn't already in the set
+         */
+        boolean add(int s)
+        {
+            int i = this.sparse[s];
+            if (i < this.size && this.dense[i] == s)
+            {
+                return false;
+            }
+            this.sparse[s] = this.size;
+            this.dense[this.size++] = s;
+            return true;
+        }
+
+        /**
+         * Remove every state.
+         */
+        void clear()
+        {
+            this.size = 0;
+        }
+    }
+}
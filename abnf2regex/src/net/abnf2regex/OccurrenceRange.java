@@ -109,14 +109,25 @@ public class OccurrenceRange
     }
 
     /**
-     * Build a string to append to a regex node to indicate
+     * Build a string to append to a regex node to indicate, using the current syntax.
      *
      * @return a string containing the occurences, ?, *, +, {n,m}
+     * @see RegexSyntax#getCurrent()
      */
     public String getRegexOccurences()
+    {
+        return this.getRegexOccurences(RegexSyntax.getCurrent());
+    }
+
+    /**
+     * Build a string to append to a regex node to indicate
+     *
+     * @param syntax the regular expression syntax to use
+     * @return a string containing the occurences, ?, *, +, {n,m}
+     */
+    public String getRegexOccurences(RegexSyntax syntax)
     {
         StringBuilder bld = new StringBuilder();
-        RegexSyntax syntax = RegexSyntax.getCurrent();
         if (this.minOccurs == this.maxOccurs)
         {
             if (this.minOccurs != 1)
@@ -0,0 +1,148 @@
+package net.abnf2regex;
+
+import java.util.Iterator;
+import java.util.ServiceConfigurationError;
+import java.util.ServiceLoader;
+
+/**
+ * Hears about each operation that compiles a grammar or matches input, so
+ * that slow operations can be traced back to the rules involved, such as by a
+ * profiler. There is at most one listener. If one is registered as a service
+ * under this class name, it is installed when the class is loaded; otherwise
+ * there is none until {@link #setListener(OperationListener)} is called.
+ * <p>
+ * Without a listener, each operation only costs a read of a shared variable.
+ * A listener that isn't interested in an operation returns null from
+ * {@link #begin(int)} and isn't told when the operation ends. Operations that
+ * fail with an exception aren't reported as ending.
+ * <p>
+ * Listeners are called from whichever thread does the work, so they must be
+ * safe to use from any number of threads at once.
+ */
+public abstract class OperationListener
+{
+    /**
+     * {@link RuleDictionary#parse(AbnfReader)}. The input is the number of
+     * characters of ABNF, if known, and the output is the number of rules
+     * that were added.
+     */
+    public static final int PARSE = 0;
+    /**
+     * {@link RuleDictionary#resolve()}. The output is the number of rules in
+     * the dictionary.
+     */
+    public static final int RESOLVE = 1;
+    /** {@link RuleDictionary#expandRule(Rule)}, for the named rule. */
+    public static final int EXPAND = 2;
+    /**
+     * {@link RuleDictionary#ruleToRegex(String, RegexSyntax)}. The output is
+     * the number of characters in the regular expression.
+     */
+    public static final int REGEX = 3;
+    /**
+     * Matching with a {@link RuleMatcher} or {@link CaptureMatcher}. The input
+     * is the number of characters or bytes, and the output is 1 if the input
+     * matched and 0 if it didn't.
+     */
+    public static final int MATCH = 4;
+    /**
+     * Searching with a {@link RuleSearcher}. The input is the number of bytes
+     * searched, and the output is the number of occurrences reported.
+     */
+    public static final int SEARCH = 5;
+
+    /** The listener, or null. */
+    private static volatile OperationListener current = OperationListener.findService();
+
+    /**
+     * Find the listener that is registered as a service.
+     *
+     * @return the first listener that can be loaded, or null
+     */
+    private static OperationListener findService()
+    {
+        try
+        {
+            Iterator<OperationListener> it = ServiceLoader.load(OperationListener.class,
+                    OperationListener.class.getClassLoader()).iterator();
+            return it.hasNext() ? it.next() : null;
+        }
+        catch (ServiceConfigurationError ex)
+        {
+            // such as a listener that needs a newer Java
+            return null;
+        }
+        catch (LinkageError ex)
+        {
+            return null;
+        }
+    }
+
+    /**
+     * Set the listener, replacing any other. Operations that are under way
+     * when it is replaced are still reported to the old listener.
+     *
+     * @param listener the listener, or null for none
+     */
+    public static void setListener(OperationListener listener)
+    {
+        OperationListener.current = listener;
+    }
+
+    /**
+     * Get the listener.
+     *
+     * @return the listener, or null if there is none
+     */
+    public static OperationListener getListener()
+    {
+        return OperationListener.current;
+    }
+
+    /**
+     * Get the listener, for the start of an operation.
+     *
+     * @return the listener, or null if there is none
+     */
+    /* package private */static OperationListener get()
+    {
+        return OperationListener.current;
+    }
+
+    /**
+     * Start an operation, if there is a listener.
+     *
+     * @param listener the listener, from {@link #get()}, or null
+     * @param operation the operation, such as {@link #PARSE}
+     * @return what the listener needs to end the operation, or null if the
+     *         operation isn't wanted
+     */
+    /* package private */static Object begin(OperationListener listener, int operation)
+    {
+        return (listener == null) ? null : listener.begin(operation);
+    }
+
+    /**
+     * Hear that an operation is starting.
+     *
+     * @param operation the operation, such as {@link #PARSE}
+     * @return anything that is needed to end the operation, or null to skip
+     *         it
+     */
+    public abstract Object begin(int operation);
+
+    /**
+     * Hear that an operation has ended.
+     *
+     * @param operation what {@link #begin(int)} returned
+     * @param rule the name of the rule, or null if the operation isn't about
+     *            one rule
+     * @param syntax the name of the regular expression syntax, or null if the
+     *            operation doesn't write regular expressions
+     * @param input the size of the input, as described for each operation, or
+     *            -1 if it isn't known
+     * @param output the size of the output, as described for each operation,
+     *            or -1 if there is none
+     */
+    public abstract void end(Object operation, String rule, String syntax, long input, long output);
+}
@@ -66,8 +66,8 @@ public class RegexSyntax
         this.name = _name.toLowerCase();
     }
 
-    /** The current syntax */
-    private static RegexSyntax current;
+    /** The current syntax, used when no syntax is specified */
+    private static volatile RegexSyntax current;
     /** The set of syntaxes */
     private static Map<String, RegexSyntax> syntaxes = new HashMap<String, RegexSyntax>();
 
@@ -102,6 +102,9 @@ public class RegexSyntax
     }
 
     /**
+     * Get the current syntax. This is shared by all threads, so it is only used
+     * by methods that don't take a syntax as an argument.
+     *
      * @return the current
      */
     public static RegexSyntax getCurrent()
@@ -116,13 +119,28 @@ public class RegexSyntax
      * @throws RegexSyntaxNotFoundException if the name does not exist
      */
     public static void setCurrent(String name) throws RegexSyntaxNotFoundException
+    {
+        RegexSyntax.current = RegexSyntax.getSyntax(name);
+    }
+
+    /**
+     * Find a syntax by name. Syntaxes are immutable once registered, so the
+     * syntax can be passed to any of the methods that take a syntax, from any
+     * thread.
+     *
+     * @param name the name of the syntax (case insensitive)
+     * @return the syntax
+     * @throws RegexSyntaxNotFoundException if the name does not exist
+     */
+    public static RegexSyntax getSyntax(String name) throws RegexSyntaxNotFoundException
     {
         String lcName = name.toLowerCase();
-        if (!RegexSyntax.syntaxes.containsKey(lcName))
+        RegexSyntax syntax = RegexSyntax.syntaxes.get(lcName);
+        if (syntax == null)
         {
             throw new RegexSyntaxNotFoundException("Syntax does not exist.", lcName);
         }
-        RegexSyntax.current = RegexSyntax.syntaxes.get(lcName);
+        return syntax;
     }
 
     /**
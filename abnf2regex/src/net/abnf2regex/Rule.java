@@ -2,6 +2,7 @@ package net.abnf2regex;
 
 import java.io.PrintWriter;
 import java.io.StringWriter;
+import java.util.Collections;
 import java.util.HashSet;
 import java.util.Set;
 
@@ -12,6 +13,8 @@ public class Rule
 {
     /** The name of the rule. */
     private final String name;
+    /** The number for the name of the rule. */
+    private final int symbol;
     /**
      * A rule always has a sequence of fragments, used as a container for other
      * fragments.
@@ -19,11 +22,15 @@ public class Rule
     private GroupFragment mainFragment = new SequenceFragment();
     /** Whether this is an inline rule (for which no grouping should be created */
     private boolean inlineRule = false;
+    /** Whether this rule references itself, directly or indirectly. */
+    private boolean recursive = true;
+    /** Whether this rule can be expanded without reaching a recursive rule. */
+    private boolean regular = false;
     /**
      * When recursively creating regular expressions, this is used to indicate
      * where recursion has occurred.
      */
-    private static final Set<String> warned = new HashSet<String>();
+    private static final Set<String> warned = Collections.synchronizedSet(new HashSet<String>());
 
     /**
      * Create a new ABNF rule
@@ -33,20 +40,35 @@ public class Rule
     public Rule(String _name)
     {
         this.name = _name;
+        this.symbol = SymbolTable.intern(_name);
     }
 
     /**
-     * Generate a regular expression from the rule.
+     * Generate a regular expression from the rule, using the current syntax.
      *
      * @return a String containing a regular expression.
      * @throws RuleResolutionException when {@link NamedFragment} instances are
      *             unresolved.
+     * @see RegexSyntax#getCurrent()
      */
     public String toRegex() throws RuleResolutionException
+    {
+        return this.toRegex(RegexSyntax.getCurrent());
+    }
+
+    /**
+     * Generate a regular expression from the rule.
+     *
+     * @param syntax the regular expression syntax to use
+     * @return a String containing a regular expression.
+     * @throws RuleResolutionException when {@link NamedFragment} instances are
+     *             unresolved.
+     */
+    public String toRegex(RegexSyntax syntax) throws RuleResolutionException
     {
         StringWriter stringWriter = new StringWriter();
         PrintWriter pw = new PrintWriter(stringWriter);
-        this.writeRegex(pw, new HashSet<String>());
+        this.writeRegex(pw, syntax, new HashSet<String>());
         return stringWriter.toString();
     }
 
@@ -60,6 +82,17 @@ public class Rule
         return this.name;
     }
 
+    /**
+     * Get the number for the name of the rule, which is the same for all
+     * rules with the same name, regardless of case.
+     *
+     * @return the symbol
+     */
+    /* package private */int getSymbol()
+    {
+        return this.symbol;
+    }
+
     public boolean isInlineRule()
     {
         return this.inlineRule;
@@ -70,6 +103,52 @@ public class Rule
         this.inlineRule = inline;
     }
 
+    /**
+     * Find out whether this rule is recursive. Until a {@link RuleDictionary}
+     * has analysed the rule, it is assumed to be recursive.
+     *
+     * @return true if the rule references itself, directly or indirectly
+     * @see RuleDictionary#resolve()
+     */
+    public boolean isRecursive()
+    {
+        return this.recursive;
+    }
+
+    /**
+     * Set whether this rule is recursive.
+     *
+     * @param _recursive true if the rule references itself
+     */
+    /* package private */void setRecursive(boolean _recursive)
+    {
+        this.recursive = _recursive;
+    }
+
+    /**
+     * Find out whether this rule is regular, that is, whether it can be turned
+     * into a regular expression without any wildcards standing in for
+     * recursion. Until a {@link RuleDictionary} has analysed the rule, it is
+     * assumed not to be regular.
+     *
+     * @return true if no recursive rule can be reached from this rule
+     * @see RuleDictionary#resolve()
+     */
+    public boolean isRegular()
+    {
+        return this.regular;
+    }
+
+    /**
+     * Set whether this rule is regular.
+     *
+     * @param _regular true if no recursive rule can be reached from this rule
+     */
+    /* package private */void setRegular(boolean _regular)
+    {
+        this.regular = _regular;
+    }
+
     @Override
     public String toString()
     {
@@ -106,33 +185,51 @@ public class Rule
         return this.mainFragment.toAbnf(usedNames);
     }
 
+    /**
+     * Write a regular expression to the specified {@link PrintWriter} using
+     * the current syntax, taking care not to recurse infinitely.
+     *
+     * @param pw the print writer to output to
+     * @param usedNames a set of rules that have already been called on this
+     *            call stack.
+     * @throws RuleResolutionException when {@link NamedFragment} instances are
+     *             unresolved.
+     * @see RegexSyntax#getCurrent()
+     */
+    public void writeRegex(PrintWriter pw, Set<String> usedNames) throws RuleResolutionException
+    {
+        this.writeRegex(pw, RegexSyntax.getCurrent(), usedNames);
+    }
+
     /**
      * Write a regular expression to the specified {@link PrintWriter}, taking
      * care not to recurse infinitely.
      *
      * @param pw the print writer to output to
+     * @param syntax the regular expression syntax to use
      * @param usedNames a set of rules that have already been called on this
      *            call stack.
      * @throws RuleResolutionException when {@link NamedFragment} instances are
      *             unresolved.
      */
-    public void writeRegex(PrintWriter pw, Set<String> usedNames) throws RuleResolutionException
+    public void writeRegex(PrintWriter pw, RegexSyntax syntax, Set<String> usedNames) throws RuleResolutionException
     {
         if (this.isInlineRule())
         {
-            this.mainFragment.writeRegex(pw, usedNames);
+            this.mainFragment.writeRegex(pw, syntax, usedNames);
         }
-        else if (RegexSyntax.getCurrent().supportsNamedGroupings())
+        else if (syntax.supportsNamedGroupings())
         {
-            this.writeRegexRecursive(pw, usedNames);
+            this.writeRegexRecursive(pw, syntax, usedNames);
         }
         else
         {
-            this.writeRegexNonRecursive(pw, usedNames);
+            this.writeRegexNonRecursive(pw, syntax, usedNames);
         }
     }
 
-    private void writeRegexRecursive(PrintWriter pw, Set<String> usedNames) throws RuleResolutionException
+    private void writeRegexRecursive(PrintWriter pw, RegexSyntax syntax, Set<String> usedNames)
+            throws RuleResolutionException
     {
         // For a recursive syntax (with named groupings in the syntax), we add
         // to usedNames on the first use of a rule.
@@ -148,30 +245,37 @@ public class Rule
             pw.write(this.name);
             pw.write('>');
             usedNames.add(this.name);
-            this.mainFragment.writeRegex(pw, usedNames);
+            this.mainFragment.writeRegex(pw, syntax, usedNames);
             pw.write(')');
         }
     }
 
-    private void writeRegexNonRecursive(PrintWriter pw, Set<String> usedNames) throws RuleResolutionException
+    private void writeRegexNonRecursive(PrintWriter pw, RegexSyntax syntax, Set<String> usedNames)
+            throws RuleResolutionException
     {
+        // Rules that are known not to recurse can't appear on their own call
+        // stack, so there is no need to track them.
+        if (!this.recursive)
+        {
+            this.mainFragment.writeRegex(pw, syntax, usedNames);
+            return;
+        }
+
         // For a non-recursive syntax, we add the name of the rule to the set on
         // the way in and remove it on the way out.
         // That ensures that no rule can reference itself recursively.
         if (usedNames.contains(this.getName()))
         {
-            if (!Rule.warned.contains(this.getName()))
+            if (Rule.warned.add(this.getName()))
             {
                 System.err.println("; Warning: rule '" + this.getName() + "' recurses."); //$NON-NLS-1$ //$NON-NLS-2$
-                Rule.warned.add(this.getName());
             }
-            RegexSyntax syntax = RegexSyntax.getCurrent();
             pw.print(syntax.getWildcard() + syntax.getOccurenceAny());
             return;
         }
 
         usedNames.add(this.getName());
-        this.mainFragment.writeRegex(pw, usedNames);
+        this.mainFragment.writeRegex(pw, syntax, usedNames);
         usedNames.remove(this.getName());
     }
 }
@@ -0,0 +1,172 @@
+package net.abnf2regex;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+
+/**
+ * Tests input against several rules at once, and tells which of them match.
+ * The regular rules are compiled together into a single automaton, so one
+ * pass over the input finds all of the regular rules that match it. Rules
+ * that reach a recursive rule share a single Earley recognizer, which takes
+ * one more pass.
+ * <p>
+ * Instances can be used from any number of threads at once.
+ *
+ * @see RuleDictionary#classifier(String...)
+ */
+public final class RuleClassifier
+{
+    /** The most states to allow in a deterministic automaton. */
+    private static final int MAX_DFA_STATES = 4096;
+    /** The most states for each thread to cache when they are built lazily. */
+    private static final int LAZY_CACHE_STATES = 1024;
+
+    /** The names of the rules. */
+    private final String[] names;
+    /** The index in {@link #names} of each rule in the automaton. */
+    private final int[] regularIndex;
+    /** The automaton for the regular rules, or null if it was too big. */
+    private final Dfa dfa;
+    /** The lazily built automaton for the regular rules, if dfa is null. */
+    private final LazyDfa lazy;
+    /** The index in {@link #names} of each rule in the recognizer. */
+    private final int[] otherIndex;
+    /** The recognizer for the other rules, or null if there are none. */
+    private final Earley earley;
+
+    private RuleClassifier(String[] _names, int[] _regularIndex, Dfa _dfa, LazyDfa _lazy, int[] _otherIndex,
+            Earley _earley)
+    {
+        this.names = _names;
+        this.regularIndex = _regularIndex;
+        this.dfa = _dfa;
+        this.lazy = _lazy;
+        this.otherIndex = _otherIndex;
+        this.earley = _earley;
+    }
+
+    /**
+     * Compile some rules. The rules, and every rule they reference, must
+     * already be resolved.
+     *
+     * @param rules the rules to compile
+     * @return a classifier for the rules, which numbers them in the same order
+     * @throws RuleResolutionException if a rule references rules that aren't
+     *             resolved
+     */
+    public static RuleClassifier compile(List<Rule> rules) throws RuleResolutionException
+    {
+        String[] names = new String[rules.size()];
+        List<Rule> regular = new ArrayList<Rule>();
+        List<Rule> other = new ArrayList<Rule>();
+        int[] regularIndex = new int[rules.size()];
+        int[] otherIndex = new int[rules.size()];
+        for (int i = 0; i < names.length; ++i)
+        {
+            Rule r = rules.get(i);
+            names[i] = r.getName();
+            if (r.isRegular())
+            {
+                regularIndex[regular.size()] = i;
+                regular.add(r);
+            }
+            else
+            {
+                otherIndex[other.size()] = i;
+                other.add(r);
+            }
+        }
+
+        Dfa dfa = null;
+        LazyDfa lazy = null;
+        if (!regular.isEmpty())
+        {
+            Nfa nfa = Nfa.compile(regular);
+            Dfa.CharClasses classes = new Dfa.CharClasses(nfa);
+            dfa = Dfa.build(nfa, classes, RuleClassifier.MAX_DFA_STATES);
+            if (dfa == null)
+            {
+                lazy = new LazyDfa(nfa, classes, RuleClassifier.LAZY_CACHE_STATES);
+            }
+        }
+        Earley earley = other.isEmpty() ? null : Earley.compile(other);
+        return new RuleClassifier(names, Arrays.copyOf(regularIndex, regular.size()), dfa, lazy, Arrays.copyOf(
+                otherIndex, other.size()), earley);
+    }
+
+    /**
+     * Get the number of rules.
+     *
+     * @return the number of rules
+     */
+    public int size()
+    {
+        return this.names.length;
+    }
+
+    /**
+     * Get the name of a rule.
+     *
+     * @param index the number of the rule, which is its bit in the results
+     * @return the rule name
+     */
+    public String getRuleName(int index)
+    {
+        return this.names[index];
+    }
+
+    /**
+     * Find the rules that match the entire input.
+     *
+     * @param input the input to test
+     * @return a new set, with a bit for each rule that matches
+     */
+    public BitSet classify(CharSequence input)
+    {
+        BitSet result = new BitSet(this.names.length);
+        this.classify(input, result);
+        return result;
+    }
+
+    /**
+     * Find the rules that match the entire input, reusing a set for the
+     * result. Nothing else is allocated when the regular rules fit in a
+     * deterministic automaton and none of the rules are recursive; otherwise
+     * the lazily built automaton or the recognizer for recursive rules
+     * allocates working storage on each call.
+     *
+     * @param input the input to test
+     * @param result cleared, then given a bit for each rule that matches
+     */
+    public void classify(CharSequence input, BitSet result)
+    {
+        result.clear();
+        if (this.dfa != null || this.lazy != null)
+        {
+            int[] matched = (this.dfa != null) ? this.dfa.matchedRules(input) : this.lazy.matchedRules(input);
+            for (int rule : matched)
+            {
+                result.set(this.regularIndex[rule]);
+            }
+        }
+        if (this.earley != null)
+        {
+            Earley.Run run = this.earley.run(input);
+            for (int rule = 0; rule < this.otherIndex.length; ++rule)
+            {
+                if (run.isAccepting(rule))
+                {
+                    result.set(this.otherIndex[rule]);
+                }
+            }
+        }
+    }
+
+    @Override
+    public String toString()
+    {
+        return "RuleClassifier" + Arrays.toString(this.names); //$NON-NLS-1$
+    }
+}
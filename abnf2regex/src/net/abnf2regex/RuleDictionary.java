@@ -1,17 +1,35 @@
 package net.abnf2regex;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
 import java.io.PrintWriter;
 import java.io.Reader;
 import java.io.StringWriter;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
 import java.util.Deque;
 import java.util.HashSet;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
 
 /**
  * A set of rules, indexed by name. Contains functions for parsing an ABNF file.
@@ -20,42 +38,193 @@ public class RuleDictionary
 {
     /** The location of the ABNF file containing core ABNF rules. */
     private static final String CORE_RULES_FILE = "core.abnf"; //$NON-NLS-1$
-    /** A dictionary containing the core rules. */
-    private static final RuleDictionary predefinedRules = new RuleDictionary();
+    /**
+     * A dictionary containing the core rules, or null until it is first
+     * needed.
+     *
+     * @see #getPredefinedRules()
+     */
+    private static volatile RuleDictionary predefinedRules;
+
+    /** Whether this is the dictionary of core rules. */
+    private final boolean predefined;
 
     /** The set of rules in this dictionary. */
     private final Map<String, Rule> rules = new LinkedHashMap<String, Rule>();
+    /**
+     * The rules in this dictionary, in an open hash table on
+     * {@link Rule#getSymbol()} that is at most half full, so that its size
+     * depends on the number of rules here rather than on every name that has
+     * been seen. It is replaced when it grows, and written again after each
+     * change, so that it can be read without the lock.
+     */
+    private volatile Rule[] symbols = new Rule[8];
+
+    /**
+     * When parsing a file on its own, to be merged into another dictionary
+     * later, this records the rules that the file extended with "=/" without
+     * defining them first. Such a file depends on the files before it. Null
+     * for an ordinary dictionary.
+     */
+    private Set<String> detachedIncrements;
+
+    /**
+     * Expands rules using the graph of references between rules, which is
+     * built by {@link #resolve()}. Set to null whenever the dictionary changes.
+     */
+    private volatile Expander expander;
+
+    /** Where to record the time and work spent, or null to record nothing. */
+    private volatile CompilationStats stats;
+
+    /** An empty expansion stack, which is never modified. */
+    private static final BitSet NO_RULES = new BitSet();
 
     /**
      * Contains all the recursing rules that we have already warned the user
      * about
      */
-    private static Set<String> warned = new HashSet<String>();
+    private static Set<String> warned = Collections.synchronizedSet(new HashSet<String>());
+
+    /**
+     * Create an empty dictionary.
+     */
+    public RuleDictionary()
+    {
+        this(false);
+    }
+
+    /**
+     * Create an empty dictionary.
+     *
+     * @param _predefined true for the dictionary of core rules, which doesn't
+     *            look anywhere else for rules.
+     */
+    private RuleDictionary(boolean _predefined)
+    {
+        this.predefined = _predefined;
+    }
 
-    static
+    /**
+     * Get the dictionary of core rules, loading it the first time it is
+     * needed. The core rules can be turned off by setting the system property
+     * <code>net.abnf2regex.RuleDictionary.core</code> to <code>false</code>
+     * before then.
+     *
+     * @return the core rules, which might be empty
+     * @throws IllegalStateException if the core rules can't be loaded
+     */
+    private static RuleDictionary getPredefinedRules()
+    {
+        RuleDictionary core = RuleDictionary.predefinedRules;
+        if (core == null)
+        {
+            synchronized (RuleDictionary.class)
+            {
+                core = RuleDictionary.predefinedRules;
+                if (core == null)
+                {
+                    core = RuleDictionary.loadPredefinedRules();
+                    RuleDictionary.predefinedRules = core;
+                }
+            }
+        }
+        return core;
+    }
+
+    /**
+     * Find out whether the core rules are turned on.
+     *
+     * @return false if the system property turns them off
+     * @see #getPredefinedRules()
+     */
+    private static boolean isCoreEnabled()
     {
         String useCore = System.getProperty(RuleDictionary.class.getName() + ".core"); //$NON-NLS-1$
-        if (useCore == null || !useCore.equalsIgnoreCase("false")) //$NON-NLS-1$
+        return useCore == null || !useCore.equalsIgnoreCase("false"); //$NON-NLS-1$
+    }
+
+    /**
+     * Use core rules from a snapshot, rather than parsing them later, unless
+     * the core rules are already loaded or are turned off.
+     *
+     * @param loaded the core rules, which aren't used if empty
+     */
+    private static void installPredefinedRules(List<Rule> loaded)
+    {
+        if (loaded.isEmpty() || !RuleDictionary.isCoreEnabled())
         {
-            try
+            return;
+        }
+        synchronized (RuleDictionary.class)
+        {
+            if (RuleDictionary.predefinedRules == null)
             {
-                InputStream coreRules = RuleDictionary.class.getResourceAsStream(RuleDictionary.CORE_RULES_FILE);
-                RuleDictionary.predefinedRules.parse(coreRules, RuleDictionary.CORE_RULES_FILE);
-                RuleDictionary.predefinedRules.resolve();
-                for (Rule r : RuleDictionary.predefinedRules.rules.values())
+                RuleDictionary core = new RuleDictionary(true);
+                for (Rule r : loaded)
                 {
-                    r.setInlineRule(true);
+                    core.addRule(r);
                 }
+                RuleDictionary.predefinedRules = RuleDictionary.finishPredefinedRules(core);
             }
-            catch (IOException ex)
+        }
+    }
+
+    /**
+     * Parse the core rules.
+     *
+     * @return a dictionary of core rules
+     * @throws IllegalStateException if the core rules can't be loaded
+     */
+    private static RuleDictionary loadPredefinedRules()
+    {
+        RuleDictionary core = new RuleDictionary(true);
+        if (!RuleDictionary.isCoreEnabled())
+        {
+            return core;
+        }
+
+        InputStream coreRules = RuleDictionary.class.getResourceAsStream(RuleDictionary.CORE_RULES_FILE);
+        if (coreRules == null)
+        {
+            throw new IllegalStateException("Core rules not found: " + RuleDictionary.CORE_RULES_FILE); //$NON-NLS-1$
+        }
+        try
+        {
+            try
             {
-                ex.printStackTrace();
+                core.parse(coreRules, RuleDictionary.CORE_RULES_FILE);
             }
-            catch (AbnfParseException aex)
+            finally
             {
-                aex.printStackTrace();
+                coreRules.close();
             }
         }
+        catch (IOException ex)
+        {
+            throw new IllegalStateException("Unable to read core rules", ex); //$NON-NLS-1$
+        }
+        catch (AbnfParseException ex)
+        {
+            throw new IllegalStateException("Unable to parse core rules", ex); //$NON-NLS-1$
+        }
+        return RuleDictionary.finishPredefinedRules(core);
+    }
+
+    /**
+     * Resolve the core rules and make them inline.
+     *
+     * @param core the dictionary of core rules
+     * @return the same dictionary
+     */
+    private static RuleDictionary finishPredefinedRules(RuleDictionary core)
+    {
+        core.resolve();
+        for (Rule r : core.rules.values())
+        {
+            r.setInlineRule(true);
+        }
+        return core;
     }
 
     /**
@@ -64,27 +233,182 @@ public class RuleDictionary
      *
      * @param rule the rule to add
      */
-    public void addRule(Rule rule)
+    public synchronized void addRule(Rule rule)
     {
-        this.rules.put(rule.getName().toLowerCase(), rule);
+        this.rules.put(SymbolTable.getName(rule.getSymbol()), rule);
+        Rule[] table = this.symbols;
+        if (this.rules.size() * 2 > table.length)
+        {
+            table = new Rule[table.length * 2];
+            for (Rule r : this.rules.values())
+            {
+                RuleDictionary.putSymbol(table, r);
+            }
+        }
+        else
+        {
+            RuleDictionary.putSymbol(table, rule);
+        }
+        this.symbols = table;
+        if (this.expander != null)
+        {
+            this.expander.graph.unmarkRules();
+            this.expander = null;
+        }
     }
 
     /**
      * Resolve all {@link NamedFragment} instances in all rules in the
-     * dictionary.
+     * dictionary. This also builds a graph of the references between rules,
+     * which identifies the rules that are recursive.
      *
      * @return true if all rules were resolved.
+     * @see Rule#isRecursive()
+     * @see Rule#isRegular()
      */
-    public boolean resolve()
+    public synchronized boolean resolve()
     {
-        boolean success = true;
-        for (Rule r : this.rules.values())
+        OperationListener listener = OperationListener.get();
+        Object op = OperationListener.begin(listener, OperationListener.RESOLVE);
+        boolean success = this.resolveAll();
+        if (op != null)
         {
-            success &= resolveRule(r.getMainFragment());
+            listener.end(op, null, null, -1, this.rules.size());
         }
         return success;
     }
 
+    /**
+     * Does the work of {@link #resolve()}.
+     *
+     * @return true if all rules were resolved.
+     */
+    private boolean resolveAll()
+    {
+        CompilationStats s = this.stats;
+        CompilationStats outer = CompilationStats.begin(s);
+        long started = System.nanoTime();
+        try
+        {
+            boolean success = true;
+            for (Rule r : this.rules.values())
+            {
+                success &= resolveRule(r.getMainFragment());
+            }
+            RuleGraph graph = new RuleGraph(this.rules.values());
+            graph.markRules();
+            this.expander = new Expander(graph);
+            return success;
+        }
+        finally
+        {
+            CompilationStats.end(s, outer, CompilationStats.RESOLVE, started);
+        }
+    }
+
+    /**
+     * Record the time spent parsing, resolving, expanding, simplifying and
+     * writing regular expressions from now on, and count what happens.
+     *
+     * @param _stats where to record, which can be shared with other
+     *            dictionaries, or null to stop recording
+     */
+    public void setStats(CompilationStats _stats)
+    {
+        this.stats = _stats;
+    }
+
+    /**
+     * Get the statistics that this dictionary records to.
+     *
+     * @return the statistics, or null if nothing is being recorded
+     * @see #setStats(CompilationStats)
+     */
+    public CompilationStats getStats()
+    {
+        return this.stats;
+    }
+
+    /**
+     * Get an expander for the rules in this dictionary, resolving rules if
+     * necessary.
+     *
+     * @return the expander
+     */
+    private Expander getExpander()
+    {
+        Expander e = this.expander;
+        if (e == null)
+        {
+            synchronized (this)
+            {
+                if (this.expander == null)
+                {
+                    this.resolve();
+                }
+                e = this.expander;
+            }
+        }
+        return e;
+    }
+
+    /**
+     * Get an expander for a rule. A rule that isn't part of the dictionary is
+     * resolved against the rules that are, and marked. Nothing in the
+     * dictionary references it, so it can't be recursive, and it is regular
+     * if everything that it references is. The rules that it references are
+     * already in the expander's graph, so the graph isn't built again.
+     *
+     * @param br the rule that is going to be expanded
+     * @return the expander
+     */
+    private Expander getExpander(Rule br)
+    {
+        Expander e = this.getExpander();
+        if (!e.graph.contains(br) && !br.isInlineRule())
+        {
+            synchronized (this)
+            {
+                this.resolveRule(br.getMainFragment());
+                br.setRecursive(false);
+                br.setRegular(RuleDictionary.referencesRegular(br.getMainFragment()));
+            }
+        }
+        return e;
+    }
+
+    private static boolean referencesRegular(GroupFragment group)
+    {
+        for (RuleFragment rf : group.getFragments())
+        {
+            if (rf instanceof NamedFragment)
+            {
+                Rule resolved = ((NamedFragment) rf).getResolvedRule();
+                if (resolved != null && !resolved.isRegular())
+                {
+                    return false;
+                }
+            }
+            else if (rf instanceof GroupFragment && !RuleDictionary.referencesRegular((GroupFragment) rf))
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Get all the rules in this dictionary, and the rules they reference, in
+     * dependency order. A rule always appears after the rules that it
+     * references, unless those rules are part of the same cycle.
+     *
+     * @return a list of rules
+     */
+    public List<Rule> getDependencyOrder()
+    {
+        return this.getExpander().graph.getOrder();
+    }
+
     private boolean resolveRule(GroupFragment main)
     {
         boolean success = true;
@@ -93,7 +417,7 @@ public class RuleDictionary
             if (rf instanceof NamedFragment)
             {
                 NamedFragment named = (NamedFragment) rf;
-                Rule resolved = this.getRule(named.getName());
+                Rule resolved = this.getRule(named.getSymbol());
                 named.resolve(resolved);
                 success &= (resolved != null);
             }
@@ -107,261 +431,636 @@ public class RuleDictionary
 
     /**
      * Creates a copy of a rule that has all referenced rules expanded. Any
-     * instances of recursion are terminated by wildcard fragments.
+     * instances of recursion are terminated by wildcard fragments. Expanded
+     * rules are cached, so the returned rule is shared and must not be
+     * modified.
+     * <p>
+     * A rule that isn't part of this dictionary is resolved against it and
+     * expanded again on each call, which costs as much as copying the rule;
+     * the rules that it references come from the cache as usual.
      *
      * @param br the original rule.
      * @return a copy of the original rule that is completely resolved.
      */
     public Rule expandRule(Rule br)
     {
-        return expandRule(br, new HashSet<String>());
+        OperationListener listener = OperationListener.get();
+        Object op = OperationListener.begin(listener, OperationListener.EXPAND);
+        Rule expanded;
+        CompilationStats s = this.stats;
+        CompilationStats outer = CompilationStats.begin(s);
+        long started = System.nanoTime();
+        try
+        {
+            Expander e = this.getExpander(br);
+            if (e.graph.contains(br))
+            {
+                expanded = e.expandRule(br, RuleDictionary.NO_RULES);
+            }
+            else
+            {
+                expanded = e.expandOtherRule(br);
+            }
+        }
+        finally
+        {
+            CompilationStats.end(s, outer, CompilationStats.EXPAND, started);
+        }
+        if (op != null)
+        {
+            listener.end(op, br.getName(), null, -1, -1);
+        }
+        return expanded;
+    }
+
+    /**
+     * Finds a rule by name. Looks in the standard predefined rule dictionary if
+     * none are found in this dictionary.
+     *
+     * @param name the name of the rule, which is case-insensitive.
+     * @return the rule that was found, or null
+     */
+    public Rule getRule(String name)
+    {
+        int symbol = SymbolTable.lookup(name);
+        return (symbol < 0) ? null : this.getRule(symbol);
+    }
+
+    /**
+     * Finds a rule by number. Looks in the standard predefined rule dictionary
+     * if none are found in this dictionary.
+     *
+     * @param symbol the number of the rule name
+     * @return the rule that was found, or null
+     * @see SymbolTable#intern(String)
+     */
+    /* package private */Rule getRule(int symbol)
+    {
+        Rule r = this.getLocalRule(symbol);
+        if (r == null && !this.predefined)
+        {
+            r = RuleDictionary.getPredefinedRules().getLocalRule(symbol);
+        }
+        return r;
     }
 
-    private Rule expandRule(Rule br, Set<String> usedNames)
+    /**
+     * Finds a rule by number, only in this dictionary.
+     *
+     * @param symbol the number of the rule name
+     * @return the rule that was found, or null
+     */
+    private Rule getLocalRule(int symbol)
     {
-        Rule copy = new Rule(br.getName());
+        Rule[] table = this.symbols;
+        int mask = table.length - 1;
+        for (int i = symbol & mask;; i = (i + 1) & mask)
+        {
+            Rule r = table[i];
+            if (r == null || r.getSymbol() == symbol)
+            {
+                return r;
+            }
+        }
+    }
 
-        GroupFragment mainFrag = br.getMainFragment();
-        this.resolveRule(mainFrag);
-        GroupFragment copyFrag = copy.getMainFragment();
+    /**
+     * Put a rule in a table of rules by number, replacing any rule with the
+     * same number.
+     *
+     * @param table the table, which must have an empty slot
+     * @param rule the rule
+     * @see #getLocalRule(int)
+     */
+    private static void putSymbol(Rule[] table, Rule rule)
+    {
+        int symbol = rule.getSymbol();
+        int mask = table.length - 1;
+        int i = symbol & mask;
+        while (table[i] != null && table[i].getSymbol() != symbol)
+        {
+            i = (i + 1) & mask;
+        }
+        table[i] = rule;
+    }
 
-        expandCopyFragments(mainFrag, copyFrag, usedNames);
+    /*
+     * (non-Javadoc)
+     *
+     * @see java.lang.Object#toString()
+     */
+    @Override
+    public String toString()
+    {
+        StringBuilder bld = new StringBuilder();
+        for (Rule r : this.rules.values())
+        {
+            bld.append(r.toString());
+        }
+        return bld.toString();
+    }
 
-        copy.getMainFragment().simplify();
-        return copy;
+    /**
+     * Write out the entire dictionary, using the current syntax.
+     *
+     * @param out where to write to
+     * @see RegexSyntax#getCurrent()
+     */
+    public void write(PrintWriter out)
+    {
+        this.write(out, RegexSyntax.getCurrent());
+    }
+
+    /**
+     * Write out the entire dictionary.
+     *
+     * @param out where to write to
+     * @param syntax the regular expression syntax to use
+     */
+    public void write(PrintWriter out, RegexSyntax syntax)
+    {
+        // Expanding in dependency order means that every referenced rule is
+        // already cached by the time it is needed.
+        for (Rule r : this.getDependencyOrder())
+        {
+            if (!r.isInlineRule())
+            {
+                this.expandRule(r);
+            }
+        }
+
+        for (Rule r : this.rules.values())
+        {
+            this.writeRule(out, r, syntax);
+        }
+        out.flush();
+    }
+
+    /**
+     * Write out the entire dictionary, using a pool of threads to expand rules
+     * and generate regular expressions. The output is identical to
+     * {@link #write(PrintWriter, RegexSyntax)}.
+     *
+     * @param out where to write to
+     * @param syntax the regular expression syntax to use
+     * @param pool the threads to use, or null to write from this thread
+     */
+    public void write(PrintWriter out, RegexSyntax syntax, ForkJoinPool pool)
+    {
+        if (pool == null)
+        {
+            this.write(out, syntax);
+            return;
+        }
+
+        // Rules in the same level don't depend on each other, so they can be
+        // expanded at the same time.
+        for (List<Rule> level : this.getExpander().graph.getLevels())
+        {
+            pool.invoke(new WriteTask(level, 0, level.size(), syntax, null));
+        }
+
+        List<Rule> all = new ArrayList<Rule>(this.rules.values());
+        String[] output = new String[all.size()];
+        pool.invoke(new WriteTask(all, 0, all.size(), syntax, output));
+        for (String text : output)
+        {
+            out.print(text);
+        }
+        out.flush();
+    }
+
+    /**
+     * Write a single rule, along with its expansion and regular expression.
+     *
+     * @param out where to write to
+     * @param r the rule to write
+     * @param syntax the regular expression syntax to use
+     */
+    private void writeRule(PrintWriter out, Rule r, RegexSyntax syntax)
+    {
+        out.print(r.toString());
+        try
+        {
+            // rule expansion is helpful to ensure that the rule is properly
+            // simplified for printing as a
+            // regular expression. It means that you get [a-zA-Z] rather
+            // than (?:[a-z]|[A-Z])
+            Rule expanded = this.expandRule(r);
+            out.print(" ; Expanded: "); //$NON-NLS-1$
+            out.print(expanded.toString());
+            out.print(" ; Regex: "); //$NON-NLS-1$
+            out.print(this.emit(expanded, syntax));
+        }
+        catch (RuleResolutionException ex)
+        {
+            out.print(ex);
+        }
+        out.println();
+    }
+
+    /**
+     * Generate a compact regex for a given rule, using the current syntax.
+     *
+     * @param name the name of the rule
+     * @return a regular expression
+     * @throws RuleResolutionException If the rule can't be found or the rule
+     *             contains references to rules that can't be found.
+     * @see RegexSyntax#getCurrent()
+     */
+    public String ruleToRegex(String name) throws RuleResolutionException
+    {
+        return this.ruleToRegex(name, RegexSyntax.getCurrent());
+    }
+
+    /**
+     * Generate a compact regex for a given rule. Once the dictionary is
+     * resolved, this can be called from any number of threads at once.
+     *
+     * @param name the name of the rule
+     * @param syntax the regular expression syntax to use
+     * @return a regular expression
+     * @throws RuleResolutionException If the rule can't be found or the rule
+     *             contains references to rules that can't be found.
+     */
+    public String ruleToRegex(String name, RegexSyntax syntax) throws RuleResolutionException
+    {
+        Rule rule = this.getRule(name);
+        if (rule == null)
+        {
+            throw new RuleResolutionException("Can't find rule '" + name + "'"); //$NON-NLS-1$ //$NON-NLS-2$
+        }
+        OperationListener listener = OperationListener.get();
+        Object op = OperationListener.begin(listener, OperationListener.REGEX);
+        String regex = this.emit(this.expandRule(rule), syntax);
+        if (op != null)
+        {
+            listener.end(op, rule.getName(), syntax.getName(), -1, regex.length());
+        }
+        return regex;
+    }
+
+    /**
+     * Write the regular expression for an expanded rule.
+     *
+     * @param expanded the rule, already expanded
+     * @param syntax the regular expression syntax to use
+     * @return the regular expression
+     * @throws RuleResolutionException if the rule contains references to rules
+     *             that can't be found
+     */
+    private String emit(Rule expanded, RegexSyntax syntax) throws RuleResolutionException
+    {
+        CompilationStats s = this.stats;
+        CompilationStats outer = CompilationStats.begin(s);
+        long started = System.nanoTime();
+        try
+        {
+            StringWriter sw = new StringWriter();
+            expanded.writeRegex(new PrintWriter(sw), syntax, new HashSet<String>());
+            String regex = sw.toString();
+            CompilationStats.countOutput(regex);
+            return regex;
+        }
+        finally
+        {
+            CompilationStats.end(s, outer, CompilationStats.EMIT, started);
+        }
+    }
+
+    /**
+     * Convenience method for {@link #parse(AbnfReader)}. The file is read in a
+     * single pass and closed before parsing starts.
+     *
+     * @param abnf the file to read
+     * @param charset the encoding of the file, usually
+     *            {@link StandardCharsets#US_ASCII} or
+     *            {@link StandardCharsets#UTF_8}
+     * @throws IOException when there are errors reading from the file.
+     */
+    public void parse(File abnf, Charset charset) throws IOException, AbnfParseException
+    {
+        this.parse(AbnfReader.readFile(abnf, charset));
+    }
+
+    /**
+     * Convenience method for {@link #parse(AbnfReader)}. The stream is decoded
+     * as UTF-8, the same as the other ways of reading ABNF, whatever the
+     * platform default is.
+     *
+     * @param abnf an {@link InputStream} to read from
+     * @param filename the name of the file/stream that is being read
+     * @throws IOException when there are errors reading from the stream.
+     */
+    public void parse(InputStream abnf, String filename) throws IOException, AbnfParseException
+    {
+        this.parse(new InputStreamReader(abnf, StandardCharsets.UTF_8), filename);
+    }
+
+    /**
+     * Convenience method for {@link #parse(AbnfReader)}. The whole stream is
+     * read before parsing starts.
+     *
+     * @param abnf an {@link Reader} to read from
+     * @param filename the name of the file/stream that is being read
+     * @throws IOException when there are errors reading from the stream.
+     */
+    public void parse(Reader abnf, String filename) throws IOException, AbnfParseException
+    {
+        this.parse(AbnfReader.readFully(abnf, filename));
+    }
+
+    /**
+     * Compile a rule into a matcher, which tests input against the rule
+     * without generating a regular expression. The dictionary is resolved
+     * first, if necessary.
+     *
+     * @param name the name of the rule
+     * @return a matcher for the rule
+     * @throws RuleResolutionException If the rule can't be found or the rule
+     *             contains references to rules that can't be found.
+     */
+    public RuleMatcher matcher(String name) throws RuleResolutionException
+    {
+        Rule rule = this.getRule(name);
+        if (rule == null)
+        {
+            throw new RuleResolutionException("Can't find rule '" + name + "'"); //$NON-NLS-1$ //$NON-NLS-2$
+        }
+        this.getExpander(rule);
+        return RuleMatcher.compile(rule);
+    }
+
+    /**
+     * Compile a rule for finding its occurrences in large inputs. The
+     * dictionary is resolved first, if necessary.
+     *
+     * @param name the name of the rule
+     * @return a searcher for the rule
+     * @throws RuleResolutionException If the rule can't be found or the rule
+     *             contains references to rules that can't be found.
+     * @throws IllegalArgumentException if the rule reaches a recursive rule
+     */
+    public RuleSearcher searcher(String name) throws RuleResolutionException
+    {
+        Rule rule = this.getRule(name);
+        if (rule == null)
+        {
+            throw new RuleResolutionException("Can't find rule '" + name + "'"); //$NON-NLS-1$ //$NON-NLS-2$
+        }
+        this.getExpander(rule);
+        return RuleSearcher.compile(rule);
     }
 
     /**
-     * When expanding a rule, copy all of the fragments from a given group into
-     * the new group. Make sure that {@link NamedFragment} instances don't get
-     * recursively expanded infinitely.
+     * Compile a rule into a matcher that reports where some of the rules it
+     * references matched. The dictionary is resolved first, if necessary.
      *
-     * @param from the source group
-     * @param to the target group
-     * @param usedNames the names that we've seen so far, so that recursive
-     *            rules don't cause infinite recursion
+     * @param name the name of the rule
+     * @param captures the names of the rules to capture; capture k has its
+     *            span at 2k and 2k+1
+     * @return a matcher for the rule
+     * @throws RuleResolutionException If a rule can't be found or the rule
+     *             contains references to rules that can't be found.
+     * @throws IllegalArgumentException if the rule reaches a recursive rule
      */
-    private void expandCopyFragments(GroupFragment from, GroupFragment to, Set<String> usedNames)
+    public CaptureMatcher captureMatcher(String name, String... captures) throws RuleResolutionException
     {
-        to.setOccurences(from.getOccurences());
-
-        for (RuleFragment rf : from.getFragments())
+        Rule rule = this.getRule(name);
+        if (rule == null)
         {
-            if (rf instanceof GroupFragment)
-            {
-                try
-                {
-                    GroupFragment group = (GroupFragment) rf;
-                    GroupFragment copy = group.getClass().newInstance();
-                    this.expandCopyFragments(group, copy, usedNames);
-                    to.append(copy);
-                }
-                catch (InstantiationException ex)
-                {
-                    throw new IllegalStateException("Unable to instantiate GroupFragment class: " + rf.getClass(), ex); //$NON-NLS-1$
-                }
-                catch (IllegalAccessException ex)
-                {
-                    throw new IllegalStateException("Unable to instantiate GroupFragment class: " + rf.getClass(), ex); //$NON-NLS-1$
-                }
-            }
-            else if (rf instanceof NamedFragment)
-            {
-                expandCopyNamed(to, (NamedFragment) rf, usedNames);
-            }
-            else
-            {
-                to.append((RuleFragment) rf.clone());
-            }
+            throw new RuleResolutionException("Can't find rule '" + name + "'"); //$NON-NLS-1$ //$NON-NLS-2$
         }
-    }
-
-    private void expandCopyNamed(GroupFragment to, NamedFragment named, Set<String> usedNames)
-    {
-        Rule resolvedRule = named.getResolvedRule();
-        String name = named.getName();
-        if (resolvedRule == null)
+        Rule[] found = new Rule[captures.length];
+        for (int k = 0; k < captures.length; ++k)
         {
-            String reason = name + " does not exist"; //$NON-NLS-1$
-            if (!RuleDictionary.warned.contains(name))
+            found[k] = this.getRule(captures[k]);
+            if (found[k] == null)
             {
-                System.err.println("; Warning: rule " + reason); //$NON-NLS-1$
-                RuleDictionary.warned.add(name);
+                throw new RuleResolutionException("Can't find rule '" + captures[k] + "'"); //$NON-NLS-1$ //$NON-NLS-2$
             }
-
-            WildcardFragment wildcard = new WildcardFragment(reason);
-            to.append(wildcard);
-        }
-        else if (resolvedRule.isInlineRule())
-        {
-            this.expandCopyInlineNamed(named, to, usedNames);
-        }
-        else if (usedNames.contains(name))
-        {
-            to.append(named);
-        }
-        else
-        {
-            NamedFragment namedCopy = new NamedFragment(name);
-            usedNames.add(name);
-            namedCopy.resolve(this.expandRule(resolvedRule, usedNames));
-            usedNames.remove(name);
-            to.append(namedCopy);
         }
+        this.getExpander(rule);
+        return CaptureMatcher.compile(rule, found);
     }
 
     /**
-     * Copy an expanded {@link NamedFragment} instance by replacing it with a
-     * copy of the contents of its resolved rule.
+     * Compile several rules into a classifier, which tests input against all
+     * of them at once. The dictionary is resolved first, if necessary.
      *
-     * @param named the named fragment to expand and copy
-     * @param to the target group to add to
-     * @param usedNames for tracking recursion
+     * @param names the names of the rules; each rule's bit in the results is
+     *            its index here
+     * @return a classifier for the rules
+     * @throws RuleResolutionException If a rule can't be found or a rule
+     *             contains references to rules that can't be found.
      */
-    private void expandCopyInlineNamed(NamedFragment named, GroupFragment to, Set<String> usedNames)
+    public RuleClassifier classifier(String... names) throws RuleResolutionException
     {
-        Rule rule = this.getRule(named.getName());
-
-        GroupFragment main = rule.getMainFragment();
-        try
-        {
-            GroupFragment inner = main.getClass().newInstance();
-            this.expandCopyFragments(main, inner, usedNames);
-
-            SequenceFragment sf = new SequenceFragment();
-            sf.setOccurences(named.getOccurences());
-            sf.append(inner);
-            to.append(sf);
-        }
-        catch (Exception ex)
-        {
-            throw new IllegalStateException("Unknown GroupFragment class: " + main.getClass(), ex); //$NON-NLS-1$
-        }
-        finally
+        List<Rule> found = new ArrayList<Rule>(names.length);
+        for (String name : names)
         {
-            usedNames.remove(named.getName());
+            Rule rule = this.getRule(name);
+            if (rule == null)
+            {
+                throw new RuleResolutionException("Can't find rule '" + name + "'"); //$NON-NLS-1$ //$NON-NLS-2$
+            }
+            this.getExpander(rule);
+            found.add(rule);
         }
+        return RuleClassifier.compile(found);
     }
 
     /**
-     * Finds a rule by name. Looks in the standard predefined rule dictionary if
-     * none are found in this dictionary.
+     * Save the rules in this dictionary in a binary form that can be loaded
+     * much faster than ABNF can be parsed. The core rules are saved too, so
+     * that a process that starts by loading a snapshot doesn't parse them.
      *
-     * @param name the name of the rule, which is case-insensitive.
-     * @return the rule that was found, or null
+     * @param out where to write to; the stream is flushed, but not closed.
+     * @throws IOException if writing fails
+     * @see #load(InputStream)
      */
-    public Rule getRule(String name)
+    public synchronized void save(OutputStream out) throws IOException
     {
-        Rule r = this.rules.get(name.toLowerCase());
-        if (r == null && this != RuleDictionary.predefinedRules)
+        RuleDictionary core = RuleDictionary.getPredefinedRules();
+        List<Rule> coreRules;
+        synchronized (core)
         {
-            r = RuleDictionary.predefinedRules.getRule(name);
+            coreRules = new ArrayList<Rule>(core.rules.values());
         }
-        return r;
+        DictionarySnapshot.write(new ArrayList<Rule>(this.rules.values()), coreRules, new DataOutputStream(out));
     }
 
-    /*
-     * (non-Javadoc)
+    /**
+     * Load a dictionary that was saved with {@link #save(OutputStream)}. Rule
+     * references are resolved when the dictionary is first used, or when
+     * {@link #resolve()} is called.
      *
-     * @see java.lang.Object#toString()
+     * @param in where to read from; the stream is not closed.
+     * @return a new dictionary
+     * @throws IOException if reading fails, or if the input isn't a saved
+     *             dictionary
      */
-    @Override
-    public String toString()
+    public static RuleDictionary load(InputStream in) throws IOException
     {
-        StringBuilder bld = new StringBuilder();
-        for (Rule r : this.rules.values())
+        List<Rule> loaded = new ArrayList<Rule>();
+        List<Rule> core = new ArrayList<Rule>();
+        DictionarySnapshot.read(new DataInputStream(in), loaded, core);
+        RuleDictionary.installPredefinedRules(core);
+        RuleDictionary dict = new RuleDictionary();
+        for (Rule r : loaded)
         {
-            bld.append(r.toString());
+            dict.addRule(r);
         }
-        return bld.toString();
+        return dict;
     }
 
     /**
-     * Write out the entire dictionary.
+     * Parse several ABNF files using a pool of threads. The result is the same
+     * as parsing each file in turn with {@link #parse(AbnfReader)}: rules are
+     * added in the order they appear, a later definition of a rule replaces an
+     * earlier one, and "=/" extends a rule from an earlier file.
      *
-     * @param out where to write to
+     * @param inputs readers for the files to parse, which must have been
+     *            created from an array of characters, such as by
+     *            {@link AbnfReader#readFile(File, Charset)}
+     * @param pool the threads to use
+     * @throws IOException when there are errors reading from the files.
+     * @throws AbnfParseException if a file can't be parsed; files before it,
+     *             and the rules in it before the error, are still added.
      */
-    public void write(PrintWriter out)
+    public void parse(List<AbnfReader> inputs, ForkJoinPool pool) throws IOException, AbnfParseException
     {
-        for (Rule r : this.rules.values())
+        List<ForkJoinTask<RuleDictionary>> parts = new ArrayList<ForkJoinTask<RuleDictionary>>();
+        for (final AbnfReader abnf : inputs)
+        {
+            parts.add(pool.submit(new Callable<RuleDictionary>()
+            {
+                @Override
+                public RuleDictionary call() throws IOException, AbnfParseException
+                {
+                    RuleDictionary part = new RuleDictionary();
+                    part.detachedIncrements = new HashSet<String>();
+                    part.stats = RuleDictionary.this.stats;
+                    part.parse(abnf.restart());
+                    return part;
+                }
+            }));
+        }
+
+        for (int i = 0; i < inputs.size(); ++i)
         {
-            out.print(r.toString());
+            RuleDictionary part;
             try
             {
-                // rule expansion is helpful to ensure that the rule is properly
-                // simplified for printing as a
-                // regular expression. It means that you get [a-zA-Z] rather
-                // than (?:[a-z]|[A-Z])
-                Rule expanded = this.expandRule(r);
-                out.print(" ; Expanded: "); //$NON-NLS-1$
-                out.print(expanded.toString());
-                out.print(" ; Regex: "); //$NON-NLS-1$
-                expanded.writeRegex(out, new HashSet<String>());
+                part = RuleDictionary.join(parts.get(i));
             }
-            catch (RuleResolutionException ex)
+            catch (AbnfParseException ex)
+            {
+                part = null;
+            }
+            catch (IOException ex)
+            {
+                // such as a string that runs off the end of the file
+                part = null;
+            }
+            if (part == null || !part.detachedIncrements.isEmpty())
+            {
+                // this file needs the rules from earlier files, or it is bad
+                // and parsing it again adds the rules before the error, then
+                // throws, just as parsing the files in turn would
+                this.parse(inputs.get(i).restart());
+            }
+            else
             {
-                out.print(ex);
+                for (Rule r : part.rules.values())
+                {
+                    this.addRule(r);
+                }
             }
-            out.println();
         }
-        out.flush();
     }
 
     /**
-     * Generate a compact regex for a given rule.
+     * Wait for a parse to finish, rethrowing any failure.
      *
-     * @param name the name of the rule
-     * @return a regular expression
-     * @throws RuleResolutionException If the rule can't be found or the rule
-     *             contains references to rules that can't be found.
+     * @param task the parse
+     * @return the dictionary the parse produced
+     * @throws IOException when there are errors reading from the stream.
+     * @throws AbnfParseException if the file can't be parsed
      */
-    public String ruleToRegex(String name) throws RuleResolutionException
+    private static RuleDictionary join(ForkJoinTask<RuleDictionary> task) throws IOException, AbnfParseException
     {
-        Rule rule = this.getRule(name);
-        if (rule == null)
+        try
         {
-            throw new RuleResolutionException("Can't find rule '" + name + "'"); //$NON-NLS-1$ //$NON-NLS-2$
+            return task.get();
+        }
+        catch (InterruptedException ex)
+        {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        }
+        catch (ExecutionException ex)
+        {
+            Throwable cause = ex.getCause();
+            // the pool wraps checked exceptions in RuntimeException, maybe
+            // more than once
+            for (Throwable t = cause; t != null; t = t.getCause())
+            {
+                if (t instanceof IOException)
+                {
+                    throw (IOException) t;
+                }
+                if (t instanceof AbnfParseException)
+                {
+                    throw (AbnfParseException) t;
+                }
+            }
+            if (cause instanceof RuntimeException)
+            {
+                throw (RuntimeException) cause;
+            }
+            throw (Error) cause;
         }
-        Rule expanded = this.expandRule(rule);
-
-        StringWriter sw = new StringWriter();
-        expanded.writeRegex(new PrintWriter(sw), new HashSet<String>());
-        return sw.toString();
-    }
-
-    /**
-     * Convenience method for {@link #parse(AbnfReader)}.
-     *
-     * @param abnf an {@link InputStream} to read from
-     * @param filename the name of the file/stream that is being read
-     * @throws IOException when there are errors reading from the stream.
-     */
-    public void parse(InputStream abnf, String filename) throws IOException, AbnfParseException
-    {
-        this.parse(new InputStreamReader(abnf), filename);
     }
 
     /**
-     * Convenience method for {@link #parse(AbnfReader)}.
+     * Parse an ABNF file. Loads all rules from the file into this dictionary.
+     * Once a complete set of ABNF files are loaded, callers should call
+     * {@link #resolve()} to ensure that all rules are resolved.
      *
-     * @param abnf an {@link Reader} to read from
-     * @param filename the name of the file/stream that is being read
+     * @param abnf a specialized reader instance, used by this package only.
      * @throws IOException when there are errors reading from the stream.
      */
-    public void parse(Reader abnf, String filename) throws IOException, AbnfParseException
+    public void parse(AbnfReader abnf) throws IOException, AbnfParseException
     {
-        this.parse(new AbnfReader(abnf, filename));
+        OperationListener listener = OperationListener.get();
+        Object op = OperationListener.begin(listener, OperationListener.PARSE);
+        int before = this.rules.size();
+        CompilationStats s = this.stats;
+        CompilationStats outer = CompilationStats.begin(s);
+        long started = System.nanoTime();
+        try
+        {
+            this.parseRules(abnf);
+        }
+        finally
+        {
+            CompilationStats.end(s, outer, CompilationStats.PARSE, started);
+        }
+        if (op != null)
+        {
+            listener.end(op, null, null, abnf.getLength(), this.rules.size() - before);
+        }
     }
 
     /**
-     * Parse an ABNF file. Loads all rules from the file into this dictionary.
-     * Once a complete set of ABNF files are loaded, callers should call
-     * {@link #resolve()} to ensure that all rules are resolved.
+     * Does the work of {@link #parse(AbnfReader)}.
      *
-     * @param abnf a specialized reader instance, used by this package only.
+     * @param abnf the reader to read
      * @throws IOException when there are errors reading from the stream.
+     * @throws AbnfParseException if the ABNF is bad
      */
-    public void parse(AbnfReader abnf) throws IOException, AbnfParseException
+    private void parseRules(AbnfReader abnf) throws IOException, AbnfParseException
     {
         Rule currentRule = null;
         Deque<SequenceFragment> seqStack = new ArrayDeque<SequenceFragment>();
@@ -427,8 +1126,15 @@ public class RuleDictionary
         if (abnf.peek() == '/')
         {
             abnf.read();
-            rule = this.getRule(name);
-            choice = (rule != null);
+            if (this.detachedIncrements != null && this.getLocalRule(SymbolTable.lookup(name)) == null)
+            {
+                this.detachedIncrements.add(name);
+            }
+            else
+            {
+                rule = this.getRule(name);
+                choice = (rule != null);
+            }
         }
         if (rule == null)
         {
@@ -456,13 +1162,33 @@ public class RuleDictionary
     {
         if ((currentRule != null) && (ws <= 0))
         {
-            currentRule.getMainFragment().simplify();
+            this.simplify(currentRule.getMainFragment());
             this.addRule(currentRule);
             currentRule = null;
         }
         return currentRule;
     }
 
+    /**
+     * Simplify the main fragment of a rule, recording the time taken.
+     *
+     * @param main the main fragment
+     */
+    private void simplify(GroupFragment main)
+    {
+        CompilationStats s = this.stats;
+        CompilationStats outer = CompilationStats.begin(s);
+        long started = System.nanoTime();
+        try
+        {
+            main.simplify();
+        }
+        finally
+        {
+            CompilationStats.end(s, outer, CompilationStats.SIMPLIFY, started);
+        }
+    }
+
     /**
      * Parses fragments from an ABNF file.
      *
@@ -582,4 +1308,320 @@ public class RuleDictionary
         choice.append(seqFrag);
         seqStack.push(seqFrag);
     }
+
+    /**
+     * Expands rules and caches the results. Each expander has a fixed graph,
+     * which is used to index rules, so a new expander is needed whenever the
+     * dictionary changes.
+     */
+    private final class Expander
+    {
+        /** The graph of references between rules. */
+        final RuleGraph graph;
+
+        /**
+         * Expanded copies of rules, keyed by the rule and those rules on the
+         * expansion stack that affect the expansion.
+         */
+        private final ConcurrentMap<ExpansionKey, Rule> expansions = new ConcurrentHashMap<ExpansionKey, Rule>();
+
+        /**
+         * Create an expander.
+         *
+         * @param _graph the graph of all rules that might be expanded
+         */
+        Expander(RuleGraph _graph)
+        {
+            this.graph = _graph;
+        }
+
+        /**
+         * Expand a rule. Only rules that are part of a cycle can be reached again
+         * while they are being expanded, so the expansion stack only needs to
+         * track rules within the same strongly connected component.
+         *
+         * @param br the rule to expand
+         * @param stack the rules from the same component as <code>br</code> that
+         *            are currently being expanded, by index in {@link #graph}
+         * @return the expanded rule
+         */
+        private Rule expandRule(Rule br, BitSet stack)
+        {
+            ExpansionKey key = new ExpansionKey(br, stack);
+            Rule copy = this.expansions.get(key);
+            if (copy != null)
+            {
+                CompilationStats.count(CompilationStats.CACHE_HITS);
+                return copy;
+            }
+
+            CompilationStats.count(CompilationStats.EXPANSIONS);
+            copy = new Rule(br.getName());
+            copy.setRecursive(br.isRecursive());
+            copy.setRegular(br.isRegular());
+
+            GroupFragment mainFrag = br.getMainFragment();
+            GroupFragment copyFrag = copy.getMainFragment();
+            int component = this.graph.getComponent(this.graph.indexOf(br));
+
+            expandCopyFragments(mainFrag, copyFrag, stack, component);
+
+            RuleDictionary.this.simplify(copy.getMainFragment());
+            Rule existing = this.expansions.putIfAbsent(key, copy);
+            return (existing == null) ? copy : existing;
+        }
+
+        /**
+         * Expand a rule that isn't in {@link #graph}. No rule in the graph
+         * references it, so it isn't part of any cycle, and the rules that it
+         * references are expanded as if from outside their components. The
+         * expansion isn't cached, since the rule could change.
+         *
+         * @param br the resolved rule to expand
+         * @return the expanded rule
+         */
+        Rule expandOtherRule(Rule br)
+        {
+            CompilationStats.count(CompilationStats.EXPANSIONS);
+            Rule copy = new Rule(br.getName());
+            copy.setRecursive(br.isRecursive());
+            copy.setRegular(br.isRegular());
+            this.expandCopyFragments(br.getMainFragment(), copy.getMainFragment(), RuleDictionary.NO_RULES, -1);
+            RuleDictionary.this.simplify(copy.getMainFragment());
+            return copy;
+        }
+
+        /**
+         * When expanding a rule, copy all of the fragments from a given group into
+         * the new group. Make sure that {@link NamedFragment} instances don't get
+         * recursively expanded infinitely.
+         *
+         * @param from the source group
+         * @param to the target group
+         * @param stack the rules that are being expanded, so that recursive rules
+         *            don't cause infinite recursion
+         * @param component the component of the rule that is being expanded
+         */
+        private void expandCopyFragments(GroupFragment from, GroupFragment to, BitSet stack, int component)
+        {
+            to.setOccurences(from.getOccurences());
+
+            for (RuleFragment rf : from.getFragments())
+            {
+                if (rf instanceof GroupFragment)
+                {
+                    try
+                    {
+                        GroupFragment group = (GroupFragment) rf;
+                        GroupFragment copy = group.getClass().newInstance();
+                        CompilationStats.count(CompilationStats.REFLECTIVE_INSTANCES);
+                        this.expandCopyFragments(group, copy, stack, component);
+                        to.append(copy);
+                    }
+                    catch (InstantiationException ex)
+                    {
+                        throw new IllegalStateException("Unable to instantiate GroupFragment class: " + rf.getClass(), ex); //$NON-NLS-1$
+                    }
+                    catch (IllegalAccessException ex)
+                    {
+                        throw new IllegalStateException("Unable to instantiate GroupFragment class: " + rf.getClass(), ex); //$NON-NLS-1$
+                    }
+                }
+                else if (rf instanceof NamedFragment)
+                {
+                    expandCopyNamed(to, (NamedFragment) rf, stack, component);
+                }
+                else
+                {
+                    to.append((RuleFragment) rf.clone());
+                }
+            }
+        }
+
+        private void expandCopyNamed(GroupFragment to, NamedFragment named, BitSet stack, int component)
+        {
+            Rule resolvedRule = named.getResolvedRule();
+            String name = named.getName();
+            if (resolvedRule == null)
+            {
+                String reason = name + " does not exist"; //$NON-NLS-1$
+                if (RuleDictionary.warned.add(name))
+                {
+                    System.err.println("; Warning: rule " + reason); //$NON-NLS-1$
+                }
+
+                WildcardFragment wildcard = new WildcardFragment(reason);
+                to.append(wildcard);
+                return;
+            }
+            if (resolvedRule.isInlineRule())
+            {
+                this.expandCopyInlineNamed(named, to, stack, component);
+                return;
+            }
+
+            Rule expanded;
+            int id = this.graph.indexOf(resolvedRule);
+            if (!this.graph.isRecursive(id))
+            {
+                expanded = this.expandRule(resolvedRule, RuleDictionary.NO_RULES);
+            }
+            else
+            {
+                // Rules from other components can't reach any rule on the stack.
+                BitSet current = (this.graph.getComponent(id) == component) ? stack : RuleDictionary.NO_RULES;
+                if (current.get(id))
+                {
+                    to.append((RuleFragment) named.clone());
+                    return;
+                }
+                BitSet next = (BitSet) current.clone();
+                next.set(id);
+                expanded = this.expandRule(resolvedRule, next);
+            }
+            NamedFragment namedCopy = new NamedFragment(name);
+            namedCopy.resolve(expanded);
+            to.append(namedCopy);
+        }
+
+        /**
+         * Copy an expanded {@link NamedFragment} instance by replacing it with a
+         * copy of the contents of its resolved rule.
+         *
+         * @param named the named fragment to expand and copy
+         * @param to the target group to add to
+         * @param stack for tracking recursion
+         * @param component the component of the rule that is being expanded
+         */
+        private void expandCopyInlineNamed(NamedFragment named, GroupFragment to, BitSet stack, int component)
+        {
+            Rule rule = named.getResolvedRule();
+
+            GroupFragment main = rule.getMainFragment();
+            try
+            {
+                GroupFragment inner = main.getClass().newInstance();
+                CompilationStats.count(CompilationStats.REFLECTIVE_INSTANCES);
+                this.expandCopyFragments(main, inner, stack, component);
+
+                SequenceFragment sf = new SequenceFragment();
+                sf.setOccurences(named.getOccurences());
+                sf.append(inner);
+                to.append(sf);
+            }
+            catch (Exception ex)
+            {
+                throw new IllegalStateException("Unknown GroupFragment class: " + main.getClass(), ex); //$NON-NLS-1$
+            }
+        }
+    }
+
+    /**
+     * Expands a range of rules and, optionally, writes them out. The range is
+     * split in half until it is small enough to handle directly.
+     */
+    private final class WriteTask extends RecursiveAction
+    {
+        /** Serial */
+        private static final long serialVersionUID = 5297731452961935027L;
+        /** The number of rules that are handled without splitting. */
+        private static final int THRESHOLD = 8;
+        /** The rules. */
+        private final List<Rule> rules;
+        /** The first rule in the range. */
+        private final int from;
+        /** The end of the range (exclusive). */
+        private final int to;
+        /** The regular expression syntax. */
+        private final RegexSyntax syntax;
+        /** Where to put written rules, or null to only expand. */
+        private final String[] output;
+
+        /**
+         * Create a task.
+         *
+         * @param _rules the rules
+         * @param _from the first rule in the range
+         * @param _to the end of the range (exclusive)
+         * @param _syntax the regular expression syntax
+         * @param _output where to put the text for each rule, or null if rules
+         *            are only expanded
+         */
+        WriteTask(List<Rule> _rules, int _from, int _to, RegexSyntax _syntax, String[] _output)
+        {
+            this.rules = _rules;
+            this.from = _from;
+            this.to = _to;
+            this.syntax = _syntax;
+            this.output = _output;
+        }
+
+        @Override
+        protected void compute()
+        {
+            if (this.to - this.from > WriteTask.THRESHOLD)
+            {
+                int mid = (this.from + this.to) >>> 1;
+                ForkJoinTask.invokeAll(new WriteTask(this.rules, this.from, mid, this.syntax, this.output),
+                                       new WriteTask(this.rules, mid, this.to, this.syntax, this.output));
+                return;
+            }
+            for (int i = this.from; i < this.to; ++i)
+            {
+                Rule r = this.rules.get(i);
+                if (this.output != null)
+                {
+                    StringWriter sw = new StringWriter();
+                    PrintWriter pw = new PrintWriter(sw);
+                    RuleDictionary.this.writeRule(pw, r, this.syntax);
+                    pw.flush();
+                    this.output[i] = sw.toString();
+                }
+                else if (!r.isInlineRule())
+                {
+                    RuleDictionary.this.expandRule(r);
+                }
+            }
+        }
+    }
+
+    /**
+     * Identifies an expanded rule in the cache of expansions.
+     */
+    private static final class ExpansionKey
+    {
+        /** The rule that was expanded. */
+        private final Rule rule;
+        /** The rules on the expansion stack that affected the expansion. */
+        private final BitSet stack;
+
+        /**
+         * Create a new key.
+         *
+         * @param _rule the rule that was expanded
+         * @param _stack the rules on the expansion stack
+         */
+        ExpansionKey(Rule _rule, BitSet _stack)
+        {
+            this.rule = _rule;
+            this.stack = _stack;
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return System.identityHashCode(this.rule) * 31 + this.stack.hashCode();
+        }
+
+        @Override
+        public boolean equals(Object obj)
+        {
+            if (obj instanceof ExpansionKey)
+            {
+                ExpansionKey other = (ExpansionKey) obj;
+                return this.rule == other.rule && this.stack.equals(other.stack);
+            }
+            return false;
+        }
+    }
 }
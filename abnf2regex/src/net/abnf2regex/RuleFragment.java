@@ -13,6 +13,14 @@ public abstract class RuleFragment implements Cloneable
     /** The number of times this fragment may occur. */
     private OccurrenceRange occurrences = OccurrenceRange.ONCE;
 
+    /**
+     * Create a fragment that occurs once.
+     */
+    protected RuleFragment()
+    {
+        CompilationStats.count(CompilationStats.FRAGMENTS);
+    }
+
     /**
      * Set the occurrence range for this fragment.
      *
@@ -72,37 +80,52 @@ public abstract class RuleFragment implements Cloneable
     protected abstract StringBuilder buildAbnf(StringBuilder bld, Set<String> usedNames);
 
     /**
-     * Write a regular expression to the given writer.
+     * Write a regular expression to the given writer, using the current
+     * syntax.
      *
      * @param pw the writer to write to
      * @throws RuleResolutionException if an unresolved rule exists anywhere
+     * @see RegexSyntax#getCurrent()
      */
     public void writeRegex(PrintWriter pw) throws RuleResolutionException
     {
-        this.writeRegex(pw, new HashSet<String>());
+        this.writeRegex(pw, RegexSyntax.getCurrent());
+    }
+
+    /**
+     * Write a regular expression to the given writer.
+     *
+     * @param pw the writer to write to
+     * @param syntax the regular expression syntax to use
+     * @throws RuleResolutionException if an unresolved rule exists anywhere
+     */
+    public void writeRegex(PrintWriter pw, RegexSyntax syntax) throws RuleResolutionException
+    {
+        this.writeRegex(pw, syntax, new HashSet<String>());
     }
 
     /**
      * Write a regular expression to the given writer.
      *
      * @param pw the writer to write to
+     * @param syntax the regular expression syntax to use
      * @param usedNames a set of names that have already been used on this call
      *            stack--names that shouldn't be used again.
      * @throws RuleResolutionException if an unresolved rule exists anywhere
      */
-    protected void writeRegex(PrintWriter pw, Set<String> usedNames) throws RuleResolutionException
+    protected void writeRegex(PrintWriter pw, RegexSyntax syntax, Set<String> usedNames)
+            throws RuleResolutionException
     {
-        RegexSyntax syntax = RegexSyntax.getCurrent();
         if (this.needsRegexParens())
         {
             pw.print(syntax.getGroupingStart());
         }
-        this.buildRegex(pw, usedNames);
+        this.buildRegex(pw, syntax, usedNames);
         if (this.needsRegexParens())
         {
             pw.print(syntax.getGroupingEnd());
         }
-        pw.print(this.getOccurences().getRegexOccurences());
+        pw.print(this.getOccurences().getRegexOccurences(syntax));
     }
 
     /**
@@ -121,11 +144,13 @@ public abstract class RuleFragment implements Cloneable
      * parentheses, extending classes override this method to supply the body.
      *
      * @param pw the {@link PrintWriter} instance to write to
+     * @param syntax the regular expression syntax to use
      * @param usedNames a set of names that have already been used on this call
      *            stack--names that shouldn't be used again.
      * @throws RuleResolutionException when unresolved rules are used
      */
-    protected abstract void buildRegex(PrintWriter pw, Set<String> usedNames) throws RuleResolutionException;
+    protected abstract void buildRegex(PrintWriter pw, RegexSyntax syntax, Set<String> usedNames)
+            throws RuleResolutionException;
 
     /**
      * Add the contents of the given fragment to this one. THe two fragments
@@ -0,0 +1,368 @@
+package net.abnf2regex;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The graph of references between rules. Each rule is a node and each resolved
+ * {@link NamedFragment} is an edge to the rule that it names. Strongly
+ * connected components are found using Tarjan's algorithm, which identifies
+ * recursive rules and produces an order in which every rule comes after the
+ * rules that it depends on.
+ */
+class RuleGraph
+{
+    /** The index of each rule in the graph. */
+    private final Map<Rule, Integer> index = new IdentityHashMap<Rule, Integer>();
+    /** All rules in the graph, by index. */
+    private final List<Rule> nodes = new ArrayList<Rule>();
+    /** The rules referenced by each rule, by index. */
+    private int[][] successors;
+    /** The strongly connected component of each rule. */
+    private int[] component;
+    /** Whether each rule is part of a cycle. */
+    private boolean[] recursive;
+    /** Whether each rule can be expressed without recursion. */
+    private boolean[] regular;
+    /** All rules, with rules appearing after the rules they reference. */
+    private final List<Rule> order = new ArrayList<Rule>();
+    /** The indices of the rules in {@link #order}. */
+    private int[] orderIndex;
+
+    /**
+     * Build the graph for all rules that can be reached from the given rules.
+     * Rules must already be resolved.
+     *
+     * @param roots the rules to start from
+     */
+    RuleGraph(Collection<Rule> roots)
+    {
+        for (Rule r : roots)
+        {
+            this.addNode(r);
+        }
+        List<int[]> edges = new ArrayList<int[]>();
+        for (int i = 0; i < this.nodes.size(); ++i)
+        {
+            edges.add(this.findSuccessors(this.nodes.get(i)));
+        }
+        this.successors = edges.toArray(new int[edges.size()][]);
+        this.findComponents();
+        this.findRegular();
+    }
+
+    private int addNode(Rule r)
+    {
+        Integer id = this.index.get(r);
+        if (id == null)
+        {
+            id = Integer.valueOf(this.nodes.size());
+            this.index.put(r, id);
+            this.nodes.add(r);
+        }
+        return id.intValue();
+    }
+
+    /**
+     * Find the distinct rules that a rule references, adding them to the graph
+     * as necessary.
+     *
+     * @param r the rule
+     * @return the indices of referenced rules
+     */
+    private int[] findSuccessors(Rule r)
+    {
+        int[] found = new int[4];
+        int count = 0;
+        Deque<GroupFragment> pending = new ArrayDeque<GroupFragment>();
+        pending.push(r.getMainFragment());
+        while (!pending.isEmpty())
+        {
+            for (RuleFragment rf : pending.pop().getFragments())
+            {
+                if (rf instanceof GroupFragment)
+                {
+                    pending.push((GroupFragment) rf);
+                }
+                else if (rf instanceof NamedFragment)
+                {
+                    Rule resolved = ((NamedFragment) rf).getResolvedRule();
+                    if (resolved != null)
+                    {
+                        if (count == found.length)
+                        {
+                            found = Arrays.copyOf(found, count * 2);
+                        }
+                        found[count++] = this.addNode(resolved);
+                    }
+                }
+            }
+        }
+        Arrays.sort(found, 0, count);
+        int distinct = 0;
+        for (int i = 0; i < count; ++i)
+        {
+            if (distinct == 0 || found[distinct - 1] != found[i])
+            {
+                found[distinct++] = found[i];
+            }
+        }
+        return Arrays.copyOf(found, distinct);
+    }
+
+    /**
+     * Tarjan's algorithm, without recursion so that deep grammars don't
+     * overflow the stack. Components are completed in reverse topological
+     * order, which is the order that dependencies need to be visited in.
+     */
+    private void findComponents()
+    {
+        int size = this.nodes.size();
+        this.component = new int[size];
+        this.recursive = new boolean[size];
+        this.orderIndex = new int[size];
+        int[] visitIndex = new int[size];
+        int[] lowLink = new int[size];
+        int[] nextEdge = new int[size];
+        boolean[] onStack = new boolean[size];
+        Arrays.fill(visitIndex, -1);
+
+        int[] stack = new int[size];
+        int stackTop = 0;
+        int[] callStack = new int[size];
+        int callTop = 0;
+        int counter = 0;
+        int components = 0;
+
+        for (int root = 0; root < size; ++root)
+        {
+            if (visitIndex[root] >= 0)
+            {
+                continue;
+            }
+            callStack[callTop++] = root;
+            visitIndex[root] = lowLink[root] = counter++;
+            stack[stackTop++] = root;
+            onStack[root] = true;
+
+            while (callTop > 0)
+            {
+                int v = callStack[callTop - 1];
+                if (nextEdge[v] < this.successors[v].length)
+                {
+                    int w = this.successors[v][nextEdge[v]++];
+                    if (visitIndex[w] < 0)
+                    {
+                        visitIndex[w] = lowLink[w] = counter++;
+                        stack[stackTop++] = w;
+                        onStack[w] = true;
+                        callStack[callTop++] = w;
+                    }
+                    else if (onStack[w])
+                    {
+                        lowLink[v] = Math.min(lowLink[v], visitIndex[w]);
+                    }
+                    continue;
+                }
+
+                --callTop;
+                if (callTop > 0)
+                {
+                    int parent = callStack[callTop - 1];
+                    lowLink[parent] = Math.min(lowLink[parent], lowLink[v]);
+                }
+                if (lowLink[v] == visitIndex[v])
+                {
+                    int first = stackTop;
+                    int w;
+                    do
+                    {
+                        w = stack[--stackTop];
+                        onStack[w] = false;
+                        this.component[w] = components;
+                        this.orderIndex[this.order.size()] = w;
+                        this.order.add(this.nodes.get(w));
+                    } while (w != v);
+                    boolean cycle = (first - stackTop > 1) || (Arrays.binarySearch(this.successors[v], v) >= 0);
+                    for (int i = stackTop; i < first; ++i)
+                    {
+                        this.recursive[stack[i]] = cycle;
+                    }
+                    ++components;
+                }
+            }
+        }
+    }
+
+    /**
+     * A rule is regular if it isn't recursive and it only references regular
+     * rules. Rules are visited in dependency order, so references are always
+     * decided first.
+     */
+    private void findRegular()
+    {
+        this.regular = new boolean[this.nodes.size()];
+        for (int v : this.orderIndex)
+        {
+            boolean reg = !this.recursive[v];
+            for (int w : this.successors[v])
+            {
+                reg &= this.regular[w];
+            }
+            this.regular[v] = reg;
+        }
+    }
+
+    /**
+     * Find out whether a rule is part of this graph.
+     *
+     * @param r the rule
+     * @return true if the rule has been added to the graph
+     */
+    boolean contains(Rule r)
+    {
+        return this.index.containsKey(r);
+    }
+
+    /**
+     * Get the index of a rule.
+     *
+     * @param r the rule
+     * @return the index of the rule, or -1 if the rule isn't in the graph
+     */
+    int indexOf(Rule r)
+    {
+        Integer id = this.index.get(r);
+        return (id == null) ? -1 : id.intValue();
+    }
+
+    /**
+     * Get the strongly connected component that a rule belongs to. Two rules
+     * that are in the same component can each reach the other.
+     *
+     * @param id the index of the rule
+     * @return a component number
+     */
+    int getComponent(int id)
+    {
+        return this.component[id];
+    }
+
+    /**
+     * Find out whether a rule is part of a cycle, that is, whether it
+     * references itself either directly or indirectly.
+     *
+     * @param id the index of the rule
+     * @return true if the rule is recursive
+     */
+    boolean isRecursive(int id)
+    {
+        return this.recursive[id];
+    }
+
+    /**
+     * Find out whether a rule can be expanded without reaching any recursive
+     * rule.
+     *
+     * @param id the index of the rule
+     * @return true if the rule is regular
+     */
+    boolean isRegular(int id)
+    {
+        return this.regular[id];
+    }
+
+    /**
+     * Get all rules in dependency order: each rule appears after every rule it
+     * references, except where the rules are part of the same cycle.
+     *
+     * @return an unmodifiable list of rules
+     */
+    List<Rule> getOrder()
+    {
+        return Collections.unmodifiableList(this.order);
+    }
+
+    /**
+     * Group rules into levels, where rules only reference rules in earlier
+     * levels or rules from their own cycle. All the rules in a level can be
+     * processed at the same time once earlier levels are complete.
+     *
+     * @return a list of levels, each a list of rules
+     */
+    List<List<Rule>> getLevels()
+    {
+        int[] level = new int[this.nodes.size()];
+        List<List<Rule>> levels = new ArrayList<List<Rule>>();
+        int start = 0;
+        while (start < this.orderIndex.length)
+        {
+            // the members of each component are adjacent in the order
+            int comp = this.component[this.orderIndex[start]];
+            int end = start;
+            int lvl = 0;
+            while (end < this.orderIndex.length && this.component[this.orderIndex[end]] == comp)
+            {
+                for (int w : this.successors[this.orderIndex[end]])
+                {
+                    if (this.component[w] != comp)
+                    {
+                        lvl = Math.max(lvl, level[w] + 1);
+                    }
+                }
+                ++end;
+            }
+            if (lvl == levels.size())
+            {
+                levels.add(new ArrayList<Rule>());
+            }
+            for (int i = start; i < end; ++i)
+            {
+                level[this.orderIndex[i]] = lvl;
+                levels.get(lvl).add(this.order.get(i));
+            }
+            start = end;
+        }
+        return levels;
+    }
+
+    /**
+     * Set the recursive and regular flags on every rule in the graph. Inline
+     * rules are shared between dictionaries, so they are left alone.
+     */
+    void markRules()
+    {
+        for (int i = 0; i < this.nodes.size(); ++i)
+        {
+            Rule r = this.nodes.get(i);
+            if (!r.isInlineRule())
+            {
+                r.setRecursive(this.recursive[i]);
+                r.setRegular(this.regular[i]);
+            }
+        }
+    }
+
+    /**
+     * Return every rule in the graph to the unknown state, where it is assumed
+     * to be recursive. Used when the graph no longer reflects the rules.
+     */
+    void unmarkRules()
+    {
+        for (Rule r : this.nodes)
+        {
+            if (!r.isInlineRule())
+            {
+                r.setRecursive(true);
+                r.setRegular(false);
+            }
+        }
+    }
+}
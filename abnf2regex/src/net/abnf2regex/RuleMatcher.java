@@ -0,0 +1,207 @@
+package net.abnf2regex;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Matches input against a rule, without going through a regular expression.
+ * Regular rules are compiled into an automaton, which takes time proportional
+ * to the length of the input, no matter what the input is. Where the rule is
+ * small enough, the automaton is made deterministic and minimized, so that
+ * matching only needs one table lookup per character. Otherwise, deterministic
+ * states are built as input needs them, and kept in a cache of limited size.
+ * <p>
+ * Rules that reach a recursive rule are matched exactly with an Earley
+ * recognizer instead, rather than treating the recursion as a wildcard the way
+ * generated regular expressions do.
+ * <p>
+ * Instances can be used from any number of threads at once.
+ */
+public final class RuleMatcher
+{
+    /** The most states to allow in a deterministic automaton. */
+    private static final int MAX_DFA_STATES = 2048;
+    /** The most states for each thread to cache when they are built lazily. */
+    private static final int LAZY_CACHE_STATES = 1024;
+
+    /** The name of the rule. */
+    private final String name;
+    /** The compiled rule, or null if the rule isn't regular. */
+    private final Nfa nfa;
+    /** The deterministic form of {@link #nfa}, or null if it was too big. */
+    private final Dfa dfa;
+    /** The lazily built form of {@link #nfa}, if {@link #dfa} is null. */
+    private final LazyDfa lazy;
+    /** The recognizer for a rule that isn't regular. */
+    private final Earley earley;
+
+    private RuleMatcher(String _name, Nfa _nfa, Dfa _dfa, LazyDfa _lazy, Earley _earley)
+    {
+        this.name = _name;
+        this.nfa = _nfa;
+        this.dfa = _dfa;
+        this.lazy = _lazy;
+        this.earley = _earley;
+    }
+
+    /**
+     * Compile a rule. The rule, and every rule it references, must already be
+     * resolved.
+     *
+     * @param rule the rule to compile
+     * @return a matcher for the rule
+     * @throws RuleResolutionException if the rule references rules that aren't
+     *             resolved
+     * @see RuleDictionary#matcher(String)
+     */
+    public static RuleMatcher compile(Rule rule) throws RuleResolutionException
+    {
+        if (!rule.isRegular())
+        {
+            return new RuleMatcher(rule.getName(), null, null, null, Earley.compile(rule));
+        }
+        Nfa nfa = Nfa.compile(rule);
+        Dfa.CharClasses classes = new Dfa.CharClasses(nfa);
+        Dfa dfa = Dfa.build(nfa, classes, RuleMatcher.MAX_DFA_STATES);
+        if (dfa != null)
+        {
+            return new RuleMatcher(rule.getName(), nfa, dfa, null, null);
+        }
+        LazyDfa lazy = new LazyDfa(nfa, classes, RuleMatcher.LAZY_CACHE_STATES);
+        return new RuleMatcher(rule.getName(), nfa, null, lazy, null);
+    }
+
+    /**
+     * Get the name of the rule.
+     *
+     * @return the rule name
+     */
+    public String getRuleName()
+    {
+        return this.name;
+    }
+
+    /**
+     * Find out whether this matcher accepts exactly what the rule describes.
+     * Unlike a generated regular expression, a matcher never needs to treat a
+     * recursive reference as a wildcard.
+     *
+     * @return false if a recursive reference was replaced with a wildcard
+     */
+    public boolean isExact()
+    {
+        return this.nfa == null || !this.nfa.approximate;
+    }
+
+    /**
+     * Determine whether the entire input matches the rule.
+     *
+     * @param input the input to test
+     * @return true if the input matches
+     */
+    public boolean matches(CharSequence input)
+    {
+        OperationListener listener = OperationListener.get();
+        Object op = OperationListener.begin(listener, OperationListener.MATCH);
+        boolean matched;
+        if (this.dfa != null)
+        {
+            matched = this.dfa.matches(input);
+        }
+        else if (this.lazy != null)
+        {
+            matched = this.lazy.matches(input);
+        }
+        else
+        {
+            matched = this.earley.matches(input);
+        }
+        if (op != null)
+        {
+            listener.end(op, this.name, null, input.length(), matched ? 1 : 0);
+        }
+        return matched;
+    }
+
+    /**
+     * Find out whether the rule was compiled to a deterministic automaton.
+     *
+     * @return false if matching has to simulate a nondeterministic automaton
+     */
+    /* package private */boolean isDeterministic()
+    {
+        return this.dfa != null;
+    }
+
+    /**
+     * Determine whether a range of bytes matches the rule. Each byte is taken
+     * as a code point from 0 to 255, the way that ABNF treats octets, so
+     * protocol data can be checked without decoding it first.
+     *
+     * @param input the bytes
+     * @param offset the index of the first byte to test
+     * @param length the number of bytes to test
+     * @return true if the bytes match
+     * @throws IndexOutOfBoundsException if the range isn't within the array
+     */
+    public boolean matches(byte[] input, int offset, int length)
+    {
+        return this.matches(ByteBuffer.wrap(input, offset, length));
+    }
+
+    /**
+     * Determine whether the bytes between the position and the limit of a
+     * buffer match the rule. Each byte is taken as a code point from 0 to 255,
+     * the way that ABNF treats octets. The buffer may be direct, and its
+     * position is not changed.
+     *
+     * @param input the bytes to test
+     * @return true if the bytes match
+     */
+    public boolean matches(ByteBuffer input)
+    {
+        OperationListener listener = OperationListener.get();
+        Object op = OperationListener.begin(listener, OperationListener.MATCH);
+        boolean matched;
+        if (this.dfa != null)
+        {
+            matched = this.dfa.matches(input);
+        }
+        else if (this.lazy != null)
+        {
+            matched = this.lazy.matches(input);
+        }
+        else
+        {
+            matched = this.earley.matches(input);
+        }
+        if (op != null)
+        {
+            listener.end(op, this.name, null, input.remaining(), matched ? 1 : 0);
+        }
+        return matched;
+    }
+
+    /**
+     * Create a state for matching input that arrives a piece at a time.
+     *
+     * @return a new state, at the start of the input
+     */
+    public MatchState newState()
+    {
+        if (this.dfa != null)
+        {
+            return new MatchState(this.dfa.newCursor());
+        }
+        if (this.lazy != null)
+        {
+            return new MatchState(this.lazy.newCursor());
+        }
+        return new MatchState(this.earley.newCursor());
+    }
+
+    @Override
+    public String toString()
+    {
+        return "RuleMatcher[" + this.name + "]"; //$NON-NLS-1$ //$NON-NLS-2$
+    }
+}
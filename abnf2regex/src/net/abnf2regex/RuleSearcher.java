@@ -0,0 +1,551 @@
+package net.abnf2regex;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Finds every occurrence of a rule in a large input, such as a memory-mapped
+ * file, and reports where each one starts and ends. Input is taken as octets,
+ * the way that ABNF treats it, and offsets count bytes.
+ * <p>
+ * Occurrences don't overlap, and aren't empty. Each one is the leftmost match
+ * after the end of the one before, and the longest match that starts there.
+ * A single forward pass over the input finds where each occurrence ends: its
+ * automaton keeps the rule's states grouped by where they started, so once a
+ * match is found, states that started later can be dropped. A deterministic
+ * automaton for the reversed rule then runs back from the end to find the
+ * start, so the input is only read again for the length of each occurrence.
+ * <p>
+ * The forward automaton is built as input needs it, and kept in a cache of
+ * limited size for each thread, so instances can be used from any number of
+ * threads at once. Only regular rules can be searched for.
+ *
+ * @see RuleDictionary#searcher(String)
+ */
+public final class RuleSearcher
+{
+    /** The most forward states for each thread to cache. */
+    private static final int CACHE_STATES = 1024;
+    /** The most NFA states to hold in all cached states together. */
+    private static final int MAX_CACHE_TOTAL = 1 << 18;
+    /** The most states to allow in the reverse automaton. */
+    private static final int MAX_REVERSE_STATES = 2048;
+    /** The size of each part of a file that is mapped. */
+    private static final int SEGMENT_SHIFT = 30;
+    /** A transition that hasn't been built yet. */
+    private static final int UNKNOWN = -1;
+    /** A state where a match ends. */
+    private static final byte ACCEPT = 1;
+    /** A state where no more matches can end. */
+    private static final byte DONE = 2;
+
+    /** Reports occurrences. */
+    public interface Handler
+    {
+        /**
+         * Called for each occurrence, in order.
+         *
+         * @param start the offset of the first byte
+         * @param end the offset just after the last byte
+         * @return true to carry on searching, false to stop
+         */
+        boolean found(long start, long end);
+    }
+
+    /** The name of the rule. */
+    private final String name;
+    /** The compiled rule. */
+    final Nfa nfa;
+    /** The classes of code points for {@link #nfa}. */
+    final Dfa.CharClasses classes;
+    /** The states of the forward automaton are this far apart in the table. */
+    final int stride;
+    /** The shift that turns the offset of a state into its number. */
+    final int shift;
+    /** The reversed rule, or null if it was too big. */
+    private final Dfa reverse;
+    /** The lazily built reversed rule, if {@link #reverse} is null. */
+    private final LazyDfa reverseLazy;
+    /** The cache for each thread. */
+    private final ThreadLocal<Scan> scans = new ThreadLocal<Scan>()
+    {
+        @Override
+        protected Scan initialValue()
+        {
+            return new Scan();
+        }
+    };
+
+    private RuleSearcher(String _name, Nfa _nfa)
+    {
+        this.name = _name;
+        this.nfa = _nfa;
+        this.classes = new Dfa.CharClasses(_nfa);
+        int bits = 32 - Integer.numberOfLeadingZeros(this.classes.size() - 1);
+        this.shift = bits;
+        this.stride = 1 << bits;
+        Nfa rev = _nfa.reverse();
+        Dfa.CharClasses revClasses = new Dfa.CharClasses(rev);
+        this.reverse = Dfa.build(rev, revClasses, RuleSearcher.MAX_REVERSE_STATES);
+        this.reverseLazy = (this.reverse == null) ? new LazyDfa(rev, revClasses, RuleSearcher.CACHE_STATES) : null;
+    }
+
+    /**
+     * Compile a rule for searching. The rule, and every rule it references,
+     * must already be resolved.
+     *
+     * @param rule the rule to compile
+     * @return a searcher for the rule
+     * @throws RuleResolutionException if the rule references rules that aren't
+     *             resolved
+     * @throws IllegalArgumentException if the rule reaches a recursive rule
+     * @see RuleDictionary#searcher(String)
+     */
+    public static RuleSearcher compile(Rule rule) throws RuleResolutionException
+    {
+        if (!rule.isRegular())
+        {
+            throw new IllegalArgumentException("Can't search for recursive rule '" //$NON-NLS-1$
+                    + rule.getName() + "'"); //$NON-NLS-1$
+        }
+        return new RuleSearcher(rule.getName(), Nfa.compile(rule));
+    }
+
+    /**
+     * Get the name of the rule.
+     *
+     * @return the rule name
+     */
+    public String getRuleName()
+    {
+        return this.name;
+    }
+
+    /**
+     * Find the first occurrence at or after an offset, before the limit of a
+     * buffer.
+     *
+     * @param input the bytes; the position isn't used or changed
+     * @param from the index to start searching at
+     * @param span receives the index of the start and of the end of the
+     *            occurrence, and is left unchanged if there is none
+     * @return true if there was an occurrence
+     * @throws IndexOutOfBoundsException if from is outside the buffer
+     */
+    public boolean find(ByteBuffer input, int from, int[] span)
+    {
+        if (from < 0 || from > input.limit())
+        {
+            throw new IndexOutOfBoundsException();
+        }
+        Scan scan = this.scans.get();
+        Segments in = new Segments(new ByteBuffer[] { input }, 31, input.limit());
+        if (!scan.find(in, from))
+        {
+            return false;
+        }
+        span[0] = (int) scan.start;
+        span[1] = (int) scan.end;
+        return true;
+    }
+
+    /**
+     * Find every occurrence between the position and the limit of a buffer.
+     *
+     * @param input the bytes; the position isn't changed
+     * @param handler told about each occurrence, with offsets that are indexes
+     *            into the buffer
+     * @return the number of occurrences reported
+     */
+    public long search(ByteBuffer input, Handler handler)
+    {
+        return this.search(new Segments(new ByteBuffer[] { input }, 31, input.limit()), input.position(), handler);
+    }
+
+    /**
+     * Find every occurrence in a file. The file is mapped into memory in parts
+     * of a gigabyte, rather than being read, so it can be bigger than a single
+     * buffer.
+     *
+     * @param file the file
+     * @param handler told about each occurrence, with offsets from the start of
+     *            the file
+     * @return the number of occurrences reported
+     * @throws IOException if the file can't be mapped
+     */
+    public long search(File file, Handler handler) throws IOException
+    {
+        RandomAccessFile raf = new RandomAccessFile(file, "r"); //$NON-NLS-1$
+        try
+        {
+            FileChannel channel = raf.getChannel();
+            long size = channel.size();
+            long segment = 1L << RuleSearcher.SEGMENT_SHIFT;
+            ByteBuffer[] parts = new ByteBuffer[(int) ((size + segment - 1) / segment)];
+            for (int j = 0; j < parts.length; ++j)
+            {
+                long base = j * segment;
+                parts[j] = channel.map(FileChannel.MapMode.READ_ONLY, base, Math.min(segment, size - base));
+            }
+            return this.search(new Segments(parts, RuleSearcher.SEGMENT_SHIFT, size), 0, handler);
+        }
+        finally
+        {
+            raf.close();
+        }
+    }
+
+    private long search(Segments in, long from, Handler handler)
+    {
+        OperationListener listener = OperationListener.get();
+        Object op = OperationListener.begin(listener, OperationListener.SEARCH);
+        Scan scan = this.scans.get();
+        long found = 0;
+        long pos = from;
+        while (scan.find(in, pos))
+        {
+            ++found;
+            pos = scan.end;
+            if (!handler.found(scan.start, scan.end))
+            {
+                break;
+            }
+        }
+        if (op != null)
+        {
+            listener.end(op, this.name, null, in.end - from, found);
+        }
+        return found;
+    }
+
+    @Override
+    public String toString()
+    {
+        return "RuleSearcher[" + this.name + "]"; //$NON-NLS-1$ //$NON-NLS-2$
+    }
+
+    /**
+     * Input that is split into buffers of the same size, except for the last.
+     */
+    private static final class Segments
+    {
+        /** The buffers. */
+        final ByteBuffer[] parts;
+        /** The shift that turns an offset into the index of its buffer. */
+        final int shift;
+        /** The mask that turns an offset into an index within its buffer. */
+        final long mask;
+        /** The offset of the end of the input. */
+        final long end;
+
+        Segments(ByteBuffer[] _parts, int _shift, long _end)
+        {
+            this.parts = _parts;
+            this.shift = _shift;
+            this.mask = (1L << _shift) - 1;
+            this.end = _end;
+        }
+
+        int get(long offset)
+        {
+            return this.parts[(int) (offset >>> this.shift)].get((int) (offset & this.mask)) & 0xFF;
+        }
+    }
+
+    /**
+     * The forward states that one thread has built, and its cursor for the
+     * reverse automaton.
+     * <p>
+     * Each forward state is identified by a flag, which is 1 once a match has
+     * been found and no more states can start, followed by groups of NFA
+     * states that started at the same offset, earliest first, each ending with
+     * -1. An NFA state that is in an earlier group is left out of the later
+     * ones, since whatever it matches, the earlier group matches first.
+     */
+    private final class Scan
+    {
+        /** The transitions, or {@link RuleSearcher#UNKNOWN}. */
+        final int[] table;
+        /** The kind of each state: 0, {@link RuleSearcher#ACCEPT} or {@link RuleSearcher#DONE}. */
+        final byte[] kind;
+        /** The identity of each state. */
+        private final int[][] sets;
+        /** The number of each state. */
+        private final Map<Dfa.IntArrayKey, Integer> numbers = new HashMap<Dfa.IntArrayKey, Integer>();
+        /** The number of states. */
+        private int count;
+        /** The total length of the identities of the cached states. */
+        private int total;
+        /** The offset of the start state. */
+        int initial;
+        /** The cursor for the reverse automaton. */
+        private final Cursor back;
+
+        /** Where the last occurrence that was found starts. */
+        long start;
+        /** Where the last occurrence that was found ends. */
+        long end;
+
+        private final Nfa.StateSet scratch;
+        private final int[] stack;
+        /** The identity of the state being built. */
+        private int[] buf = new int[64];
+        private int len;
+
+        Scan()
+        {
+            int n = RuleSearcher.CACHE_STATES;
+            this.table = new int[n * RuleSearcher.this.stride];
+            this.kind = new byte[n];
+            this.sets = new int[n][];
+            Nfa nfa = RuleSearcher.this.nfa;
+            this.scratch = new Nfa.StateSet(nfa.size);
+            this.stack = new int[nfa.size * 2 + 1];
+            this.back = (RuleSearcher.this.reverse != null) ? RuleSearcher.this.reverse.newCursor()
+                    : RuleSearcher.this.reverseLazy.newCursor();
+            this.flush();
+        }
+
+        /**
+         * Empty the cache, leaving just the start state.
+         */
+        private void flush()
+        {
+            this.numbers.clear();
+            this.count = 0;
+            this.total = 0;
+            this.scratch.clear();
+            this.len = 0;
+            this.push(0);
+            this.addGroup(0, true);
+            this.initial = this.add(Arrays.copyOf(this.buf, this.len));
+        }
+
+        private void push(int value)
+        {
+            if (this.len == this.buf.length)
+            {
+                this.buf = Arrays.copyOf(this.buf, this.len * 2);
+            }
+            this.buf[this.len++] = value;
+        }
+
+        /**
+         * Add a group for the states at the end of the scratch set.
+         *
+         * @param before the size of the scratch set before the states were
+         *            added to it
+         * @param fresh true if the group hasn't consumed anything yet, so
+         *            that a match would be empty
+         * @return true if the group matches
+         */
+        private boolean addGroup(int before, boolean fresh)
+        {
+            Nfa n = RuleSearcher.this.nfa;
+            if (fresh)
+            {
+                n.addClosure(this.scratch, n.start, this.stack);
+            }
+            int first = this.len;
+            boolean matched = false;
+            for (int j = before; j < this.scratch.size; ++j)
+            {
+                int s = this.scratch.dense[j];
+                if (n.op[s] == Nfa.CHAR || (n.op[s] == Nfa.MATCH && !fresh))
+                {
+                    this.push(s);
+                    matched |= n.op[s] == Nfa.MATCH;
+                }
+            }
+            if (this.len > first)
+            {
+                Arrays.sort(this.buf, first, this.len);
+                this.push(-1);
+            }
+            return matched;
+        }
+
+        /**
+         * Add a state, which mustn't already be cached, and which must fit.
+         *
+         * @return the offset of the new state
+         */
+        private int add(int[] set)
+        {
+            int id = this.count++;
+            int k = RuleSearcher.this.stride;
+            this.numbers.put(new Dfa.IntArrayKey(set), Integer.valueOf(id));
+            this.sets[id] = set;
+            this.total += set.length;
+            byte kd = 0;
+            if (set[0] != 0 && set.length == 1)
+            {
+                kd = RuleSearcher.DONE;
+            }
+            for (int j = 1; j < set.length && kd == 0; ++j)
+            {
+                if (set[j] >= 0 && RuleSearcher.this.nfa.op[set[j]] == Nfa.MATCH)
+                {
+                    kd = RuleSearcher.ACCEPT;
+                }
+            }
+            this.kind[id] = kd;
+            Arrays.fill(this.table, id * k, (id + 1) * k, RuleSearcher.UNKNOWN);
+            return id * k;
+        }
+
+        /**
+         * Build the transition from a state on a class.
+         *
+         * @param s the offset of the state
+         * @param cls the class
+         * @return the offset of the next state
+         */
+        int build(int s, int cls)
+        {
+            Nfa n = RuleSearcher.this.nfa;
+            Dfa.CharClasses classes = RuleSearcher.this.classes;
+            int[] set = this.sets[s >>> RuleSearcher.this.shift];
+            this.scratch.clear();
+            this.len = 0;
+            this.push(set[0]);
+            boolean hit = false;
+            int j = 1;
+            while (j < set.length && !hit)
+            {
+                int before = this.scratch.size;
+                for (; set[j] >= 0; ++j)
+                {
+                    int state = set[j];
+                    if (n.op[state] == Nfa.CHAR && classes.accepts(state, cls))
+                    {
+                        n.addClosure(this.scratch, n.next[state], this.stack);
+                    }
+                }
+                ++j;
+                // a match drops every group that started later
+                hit = this.addGroup(before, false);
+            }
+            if (hit)
+            {
+                this.buf[0] = 1;
+            }
+            else if (this.buf[0] == 0)
+            {
+                this.addGroup(this.scratch.size, true);
+            }
+            int[] next = Arrays.copyOf(this.buf, this.len);
+            Integer existing = this.numbers.get(new Dfa.IntArrayKey(next));
+            if (existing != null)
+            {
+                int offset = existing.intValue() * RuleSearcher.this.stride;
+                this.table[s + cls] = offset;
+                return offset;
+            }
+            if (this.count == RuleSearcher.CACHE_STATES || this.total + next.length > RuleSearcher.MAX_CACHE_TOTAL)
+            {
+                // s is gone after this, but only the next state is needed
+                this.flush();
+                existing = this.numbers.get(new Dfa.IntArrayKey(next));
+                if (existing != null)
+                {
+                    return existing.intValue() * RuleSearcher.this.stride;
+                }
+                return this.add(next);
+            }
+            int offset = this.add(next);
+            this.table[s + cls] = offset;
+            return offset;
+        }
+
+        /**
+         * Find the first occurrence at or after an offset, and set
+         * {@link #start} and {@link #end} to it.
+         *
+         * @param in the input
+         * @param from the offset to start at
+         * @return true if there was an occurrence
+         */
+        boolean find(Segments in, long from)
+        {
+            int[] latin = RuleSearcher.this.classes.latin;
+            int sh = RuleSearcher.this.shift;
+            int s = this.initial;
+            long last = -1;
+            long i = from;
+            boolean done = false;
+            while (i < in.end && !done)
+            {
+                ByteBuffer part = in.parts[(int) (i >>> in.shift)];
+                long base = i & ~in.mask;
+                int j = (int) (i - base);
+                int stop = (int) Math.min(part.limit(), in.end - base);
+                for (; j < stop; ++j)
+                {
+                    int cls = latin[part.get(j) & 0xFF];
+                    int next = this.table[s + cls];
+                    if (next == RuleSearcher.UNKNOWN)
+                    {
+                        next = this.build(s, cls);
+                    }
+                    s = next;
+                    byte kd = this.kind[s >>> sh];
+                    if (kd != 0)
+                    {
+                        if (kd == RuleSearcher.DONE)
+                        {
+                            done = true;
+                            break;
+                        }
+                        last = base + j + 1;
+                    }
+                }
+                i = base + stop;
+            }
+            if (last < 0)
+            {
+                return false;
+            }
+            this.end = last;
+            this.start = this.back(in, from, last);
+            return true;
+        }
+
+        /**
+         * Run the reverse automaton back from the end of an occurrence to find
+         * where it starts, which is the furthest back that it accepts.
+         */
+        private long back(Segments in, long from, long last)
+        {
+            Cursor c = this.back;
+            c.reset();
+            c.begin();
+            long first = -1;
+            try
+            {
+                for (long p = last - 1; p >= from && c.step(in.get(p)); --p)
+                {
+                    if (c.isAccepting())
+                    {
+                        first = p;
+                    }
+                }
+            }
+            finally
+            {
+                c.end();
+            }
+            if (first < 0)
+            {
+                throw new IllegalStateException("No start for the match ending at " + last); //$NON-NLS-1$
+            }
+            return first;
+        }
+    }
+}
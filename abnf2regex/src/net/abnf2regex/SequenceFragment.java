@@ -84,11 +84,12 @@ public class SequenceFragment extends GroupFragment
     }
 
     @Override
-    protected void buildRegex(PrintWriter pw, Set<String> usedNames) throws RuleResolutionException
+    protected void buildRegex(PrintWriter pw, RegexSyntax syntax, Set<String> usedNames)
+            throws RuleResolutionException
     {
         for (RuleFragment frag : this.fragments)
         {
-            frag.writeRegex(pw, usedNames);
+            frag.writeRegex(pw, syntax, usedNames);
         }
     }
 
@@ -32,14 +32,10 @@ public class StringFragment extends RuleFragment
      */
     public static StringFragment parse(AbnfReader abnf) throws IOException
     {
-        StringBuilder bld = new StringBuilder();
         abnf.read(); // skip leading '"'
-        while (abnf.peek() != '"')
-        {
-            bld.append((char) abnf.read());
-        }
+        String str = abnf.parseString('"');
         abnf.read(); // skip trailing '"'
-        return new StringFragment(bld.toString());
+        return new StringFragment(str);
     }
 
     @Override
@@ -56,7 +52,7 @@ public class StringFragment extends RuleFragment
     }
 
     @Override
-    protected void buildRegex(PrintWriter pw, Set<String> usedNames)
+    protected void buildRegex(PrintWriter pw, RegexSyntax syntax, Set<String> usedNames)
     {
         for (char ch : this.str.toCharArray())
         {
@@ -69,7 +65,7 @@ public class StringFragment extends RuleFragment
             }
             else
             {
-                pw.print(RegexSyntax.getCurrent().character(ch));
+                pw.print(syntax.character(ch));
             }
         }
     }
@@ -102,6 +98,16 @@ public class StringFragment extends RuleFragment
         return this.str.codePointCount(0, this.str.length()) != 1 && super.needsRegexParens();
     }
 
+    /**
+     * Get the contents of the string.
+     *
+     * @return the string, without quotes
+     */
+    /* package private */String getText()
+    {
+        return this.str;
+    }
+
     /**
      * Extract a single character if this is a single character rule.
      *
@@ -124,6 +130,7 @@ public class StringFragment extends RuleFragment
     @Override
     public Object clone()
     {
+        CompilationStats.count(CompilationStats.CLONES);
         StringFragment copy = new StringFragment(this.str);
         copy.setOccurences(this.getOccurences());
         return copy;
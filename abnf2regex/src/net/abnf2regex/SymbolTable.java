@@ -0,0 +1,94 @@
+package net.abnf2regex;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Gives each rule name a number. Rule names are case-insensitive, so all the
+ * spellings of a name share a number. Numbers are small and dense, so they can
+ * be used to index arrays. Names are never forgotten, so only the names of
+ * rules and references that have been parsed are given numbers; looking up a
+ * name with {@link #lookup(String)} doesn't add it.
+ */
+final class SymbolTable
+{
+    /** The number for each spelling of a name that has been seen. */
+    private static final ConcurrentMap<String, Integer> spellings = new ConcurrentHashMap<String, Integer>();
+    /** The number for each lower case name. */
+    private static final ConcurrentMap<String, Integer> symbols = new ConcurrentHashMap<String, Integer>();
+    /** The lower case names, by number. */
+    private static final List<String> names = new ArrayList<String>();
+
+    private SymbolTable()
+    {
+        // static methods only
+    }
+
+    /**
+     * Get the number for a rule name.
+     *
+     * @param name the rule name, in any case
+     * @return the number for the name
+     */
+    static int intern(String name)
+    {
+        Integer id = SymbolTable.spellings.get(name);
+        if (id == null)
+        {
+            String folded = name.toLowerCase();
+            id = SymbolTable.symbols.get(folded);
+            if (id == null)
+            {
+                synchronized (SymbolTable.names)
+                {
+                    id = SymbolTable.symbols.get(folded);
+                    if (id == null)
+                    {
+                        id = Integer.valueOf(SymbolTable.names.size());
+                        SymbolTable.names.add(folded);
+                        SymbolTable.symbols.put(folded, id);
+                    }
+                }
+            }
+            SymbolTable.spellings.putIfAbsent(name, id);
+        }
+        return id.intValue();
+    }
+
+    /**
+     * Get the number for a rule name, without giving it one if it doesn't
+     * have one yet.
+     *
+     * @param name the rule name, in any case
+     * @return the number for the name, or -1 if it has none
+     */
+    static int lookup(String name)
+    {
+        Integer id = SymbolTable.spellings.get(name);
+        if (id == null)
+        {
+            id = SymbolTable.symbols.get(name.toLowerCase());
+            if (id == null)
+            {
+                return -1;
+            }
+        }
+        return id.intValue();
+    }
+
+    /**
+     * Get the lower case name for a number.
+     *
+     * @param symbol a number returned by {@link #intern(String)}
+     * @return the lower case name
+     */
+    static String getName(int symbol)
+    {
+        synchronized (SymbolTable.names)
+        {
+            return SymbolTable.names.get(symbol);
+        }
+    }
+}
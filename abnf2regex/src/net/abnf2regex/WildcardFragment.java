@@ -63,6 +63,16 @@ public class WildcardFragment extends RuleFragment
         return false;
     }
 
+    /**
+     * Get the advisory text.
+     *
+     * @return the text between the angle brackets
+     */
+    /* package private */String getText()
+    {
+        return this.text;
+    }
+
     @Override
     public boolean append(RuleFragment frag)
     {
@@ -76,9 +86,8 @@ public class WildcardFragment extends RuleFragment
     }
 
     @Override
-    protected void buildRegex(PrintWriter pw, Set<String> usedNames)
+    protected void buildRegex(PrintWriter pw, RegexSyntax syntax, Set<String> usedNames)
     {
-        RegexSyntax syntax = RegexSyntax.getCurrent();
         pw.print(syntax.getWildcard() + syntax.getOccurenceAny());
     }
 
@@ -104,6 +113,7 @@ public class WildcardFragment extends RuleFragment
     @Override
     public Object clone()
     {
+        CompilationStats.count(CompilationStats.CLONES);
         return new WildcardFragment(this.text);
     }
 }
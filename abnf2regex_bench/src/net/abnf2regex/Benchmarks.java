@@ -0,0 +1,70 @@
+package net.abnf2regex;
+
+import java.io.File;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the benchmarks in this package with the allocation profiler, so that
+ * every result is reported as both throughput and allocation rate. Arguments
+ * are the same as for the JMH runner; without a pattern, every benchmark
+ * runs.
+ * <p>
+ * Grammars are read from the directory named by the
+ * <code>abnf2regex.grammars</code> system property, or else from the
+ * <code>abnf</code> directory at the top of the source tree, found from the
+ * current directory or its parent.
+ */
+public final class Benchmarks
+{
+    /** The system property that names the directory of grammars. */
+    private static final String GRAMMARS_PROPERTY = "abnf2regex.grammars"; //$NON-NLS-1$
+    /** The name of the directory of grammars in the source tree. */
+    private static final String GRAMMARS_DIR = "abnf"; //$NON-NLS-1$
+
+    private Benchmarks()
+    {
+        // no instances
+    }
+
+    /**
+     * Find a grammar file.
+     *
+     * @param name the name of the file, without a directory
+     * @return the file
+     */
+    static File grammar(String name)
+    {
+        String dir = System.getProperty(Benchmarks.GRAMMARS_PROPERTY);
+        if (dir == null)
+        {
+            File here = new File(Benchmarks.GRAMMARS_DIR);
+            dir = here.isDirectory() ? here.getPath() : new File("..", Benchmarks.GRAMMARS_DIR).getPath(); //$NON-NLS-1$
+        }
+        return new File(dir, name);
+    }
+
+    /**
+     * Run the benchmarks.
+     *
+     * @param args JMH runner options
+     * @throws CommandLineOptionException if the options are bad
+     * @throws RunnerException if a benchmark fails
+     */
+    public static void main(String[] args) throws CommandLineOptionException, RunnerException
+    {
+        CommandLineOptions cmd = new CommandLineOptions(args);
+        ChainedOptionsBuilder options = new OptionsBuilder().parent(cmd).addProfiler(GCProfiler.class);
+        if (cmd.getIncludes().isEmpty())
+        {
+            options.include(Benchmarks.class.getPackage().getName() + "\\..*Benchmark"); //$NON-NLS-1$
+        }
+        new Runner(options.build()).run();
+    }
+}
@@ -0,0 +1,207 @@
+package net.abnf2regex;
+
+import java.io.CharArrayWriter;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Measures each phase of turning a grammar into regular expressions: parsing,
+ * resolving references, expanding rules and writing a regular expression in
+ * each syntax. Every phase works on all the rules in a grammar, so results are
+ * in grammars per second.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@SuppressWarnings("nls")
+public class GrammarBenchmark
+{
+    /**
+     * The grammar, one of the files in the <code>abnf</code> directory.
+     * <code>ldap-dn.abnf</code> is left out because it doesn't parse: it has a
+     * line of whitespace that looks like a continuation before the first rule.
+     */
+    @Param({ "abnf.abnf", "ip.abnf", "ldap-common.abnf", "ldap-search.abnf", "nai-fixed.abnf", "rfc3986.abnf",
+            "rfc4661.abnf", "rfc5322-short-output.abnf", "rfc5322-short.abnf", "rfc5322.abnf", "simple.abnf" })
+    public String grammar;
+
+    /** The text of the grammar. */
+    private char[] text;
+    /** The grammar, parsed and resolved. */
+    RuleDictionary dictionary;
+    /** Every rule that the grammar uses, in dependency order. */
+    private List<Rule> rules;
+    /** The names of the rules that can be written as a regular expression. */
+    private List<String> names;
+
+    /**
+     * Read and parse the grammar.
+     *
+     * @throws IOException if the grammar can't be read
+     * @throws AbnfParseException if the grammar is bad
+     */
+    @Setup
+    public void setUp() throws IOException, AbnfParseException
+    {
+        Reader r = new InputStreamReader(new FileInputStream(Benchmarks.grammar(this.grammar)),
+                StandardCharsets.UTF_8);
+        try
+        {
+            CharArrayWriter w = new CharArrayWriter();
+            char[] buf = new char[8192];
+            int n;
+            while ((n = r.read(buf)) >= 0)
+            {
+                w.write(buf, 0, n);
+            }
+            this.text = w.toCharArray();
+        }
+        finally
+        {
+            r.close();
+        }
+        this.dictionary = this.parse();
+        this.dictionary.resolve();
+        this.rules = this.dictionary.getDependencyOrder();
+        this.names = new ArrayList<String>();
+        for (Rule rule : this.rules)
+        {
+            try
+            {
+                this.dictionary.ruleToRegex(rule.getName(), RegexSyntax.getCurrent());
+                this.names.add(rule.getName());
+            }
+            catch (RuleResolutionException e)
+            {
+                // a reference to a rule that isn't in the grammar
+            }
+        }
+    }
+
+    /**
+     * Parse the grammar into a new dictionary.
+     *
+     * @return the dictionary
+     * @throws IOException never, really
+     * @throws AbnfParseException if the grammar is bad
+     */
+    @Benchmark
+    public RuleDictionary parse() throws IOException, AbnfParseException
+    {
+        RuleDictionary rd = new RuleDictionary();
+        rd.parse(new AbnfReader(this.text, this.text.length, this.grammar));
+        return rd;
+    }
+
+    /**
+     * Resolve the references between rules again, which rebuilds the graph of
+     * rules and discards any expanded rules.
+     *
+     * @return whether every reference was resolved
+     */
+    @Benchmark
+    public boolean resolve()
+    {
+        return this.dictionary.resolve();
+    }
+
+    /**
+     * Expand every rule, starting with nothing expanded.
+     *
+     * @param unexpanded ensures that no expansions are cached
+     * @param bh takes the expanded rules
+     */
+    @Benchmark
+    public void expandRule(Unexpanded unexpanded, Blackhole bh)
+    {
+        for (Rule rule : this.rules)
+        {
+            bh.consume(this.dictionary.expandRule(rule));
+        }
+    }
+
+    /**
+     * Write every rule as a regular expression. Rules are expanded during
+     * setup and the expansions are cached, so this measures only the writing.
+     *
+     * @param syntax the syntax to write
+     * @param bh takes the regular expressions
+     * @throws RuleResolutionException never, really
+     */
+    @Benchmark
+    public void ruleToRegex(Syntax syntax, Blackhole bh) throws RuleResolutionException
+    {
+        for (String name : this.names)
+        {
+            bh.consume(this.dictionary.ruleToRegex(name, syntax.syntax));
+        }
+    }
+
+    /**
+     * Discards the expanded rules before each call, which is done by
+     * resolving the dictionary again.
+     */
+    @State(Scope.Thread)
+    public static class Unexpanded
+    {
+        /**
+         * Discard the expanded rules.
+         *
+         * @param g the benchmark
+         */
+        @Setup(Level.Invocation)
+        public void setUp(GrammarBenchmark g)
+        {
+            g.dictionary.resolve();
+        }
+    }
+
+    /**
+     * A regular expression syntax. Aliases for other syntaxes are left out.
+     */
+    @State(Scope.Benchmark)
+    public static class Syntax
+    {
+        /** The name of the syntax. */
+        @Param({ RegexSyntax.SYNTAX_JAVA, RegexSyntax.SYNTAX_JAVASCRIPT, RegexSyntax.SYNTAX_XMLSCHEMA,
+                RegexSyntax.SYNTAX_XMLSCHEMA_ASCII, RegexSyntax.SYNTAX_POSIX, RegexSyntax.SYNTAX_PERL })
+        public String name;
+
+        /** The syntax. */
+        RegexSyntax syntax;
+
+        /**
+         * Find the syntax.
+         *
+         * @throws RegexSyntaxNotFoundException if the syntax doesn't exist
+         */
+        @Setup
+        public void setUp() throws RegexSyntaxNotFoundException
+        {
+            this.syntax = RegexSyntax.getSyntax(this.name);
+        }
+    }
+}
@@ -0,0 +1,290 @@
+package net.abnf2regex;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Generates synthetic ABNF for scaling tests. Rules are named
+ * <code>rule-0</code>, <code>rule-1</code> and so on, and form a tree: each
+ * rule refers to as many of the following rules as the fan-out allows, so
+ * <code>rule-0</code> leads to every other rule and the expansion of each rule
+ * is no bigger than its part of the tree. Some references are sent back to
+ * the rule itself or to a rule above it in the tree instead, which leaves the
+ * child that would have been referenced out of the tree. A reference to the
+ * rule itself always makes a cycle, but one to a rule above it only does if
+ * none of the references on the way down from that rule were sent back too.
+ * <p>
+ * The body of each rule is a sequence of groups that are nested to a fixed
+ * depth, alternating between choices and sequences. References and terminals,
+ * which are strings, ranges of values and core rules, are scattered over the
+ * places at the bottom. Any element might be repeated or optional.
+ * <p>
+ * The same settings and seed always give the same grammar.
+ */
+@SuppressWarnings("nls")
+final class GrammarGenerator
+{
+    /** The names of the core rules that terminals can use. */
+    private static final String[] CORE_RULES = { "ALPHA", "DIGIT", "HEXDIG", "SP", "VCHAR" };
+
+    /** The number of rules. */
+    private int ruleCount = 100;
+    /** The number of other rules that each rule refers to. */
+    private int fanOut = 3;
+    /** The depth that groups nest to within each rule. */
+    private int depth = 2;
+    /** The number of alternatives in each choice. */
+    private int choiceWidth = 3;
+    /** The largest bound on a repetition, or 0 for no repetition. */
+    private int maxRepeat = 4;
+    /** The chance that a reference goes back up the tree. */
+    private double recursion;
+    /** The seed for choices that are made at random. */
+    private long seed = 1;
+
+    /**
+     * Set the number of rules.
+     *
+     * @param _ruleCount at least 1
+     */
+    void setRuleCount(int _ruleCount)
+    {
+        this.ruleCount = GrammarGenerator.atLeast(_ruleCount, 1, "rule count");
+    }
+
+    /**
+     * Set the number of other rules that each rule refers to. Rules near the
+     * bottom of the tree refer to fewer, or none.
+     *
+     * @param _fanOut at least 1
+     */
+    void setFanOut(int _fanOut)
+    {
+        this.fanOut = GrammarGenerator.atLeast(_fanOut, 1, "fan-out");
+    }
+
+    /**
+     * Set how deeply groups nest within each rule.
+     *
+     * @param _depth 0 for rules that are a flat sequence
+     */
+    void setDepth(int _depth)
+    {
+        this.depth = GrammarGenerator.atLeast(_depth, 0, "depth");
+    }
+
+    /**
+     * Set the number of alternatives in each choice.
+     *
+     * @param _choiceWidth at least 2
+     */
+    void setChoiceWidth(int _choiceWidth)
+    {
+        this.choiceWidth = GrammarGenerator.atLeast(_choiceWidth, 2, "choice width");
+    }
+
+    /**
+     * Set the largest bound on a repetition.
+     *
+     * @param _maxRepeat 0 for no repetition or optional elements
+     */
+    void setMaxRepeat(int _maxRepeat)
+    {
+        this.maxRepeat = GrammarGenerator.atLeast(_maxRepeat, 0, "repetition bound");
+    }
+
+    /**
+     * Set the chance that a reference goes back to the rule or one of the
+     * rules above it, rather than down the tree.
+     *
+     * @param _recursion from 0 to 1
+     */
+    void setRecursion(double _recursion)
+    {
+        if (!(_recursion >= 0 && _recursion <= 1))
+        {
+            throw new IllegalArgumentException("Recursion must be from 0 to 1: " + _recursion);
+        }
+        this.recursion = _recursion;
+    }
+
+    /**
+     * Set the seed.
+     *
+     * @param _seed the seed for choices made at random
+     */
+    void setSeed(long _seed)
+    {
+        this.seed = _seed;
+    }
+
+    private static int atLeast(int value, int min, String what)
+    {
+        if (value < min)
+        {
+            throw new IllegalArgumentException("The " + what + " must be at least " + min + ": " + value);
+        }
+        return value;
+    }
+
+    /**
+     * Generate a grammar.
+     *
+     * @return the ABNF, with CRLF line ends
+     */
+    String generate()
+    {
+        Random random = new Random(this.seed);
+        StringBuilder b = new StringBuilder();
+        for (int i = 0; i < this.ruleCount; ++i)
+        {
+            b.append("rule-").append(i).append(" = ");
+            this.appendBody(b, i, random);
+            b.append("\r\n");
+        }
+        return b.toString();
+    }
+
+    /**
+     * Write the body of a rule. The places at the bottom of the groups are
+     * worked out first, so that references can be scattered over them.
+     */
+    private void appendBody(StringBuilder b, int rule, Random random)
+    {
+        int top = this.fanOut + 1;
+        int places = top * this.placesBelow(this.depth);
+        List<String> leaves = new ArrayList<String>(places);
+        int first = rule * this.fanOut + 1;
+        for (int i = 0; i < this.fanOut && first + i < this.ruleCount && i < places; ++i)
+        {
+            leaves.add(this.reference(rule, first + i, random));
+        }
+        while (leaves.size() < places)
+        {
+            leaves.add(GrammarGenerator.terminal(random));
+        }
+        Collections.shuffle(leaves, random);
+
+        int[] next = { 0 };
+        for (int i = 0; i < top; ++i)
+        {
+            if (i > 0)
+            {
+                b.append(' ');
+            }
+            this.appendElement(b, this.depth, true, leaves, next, random);
+        }
+    }
+
+    /**
+     * Count the places at the bottom of an element.
+     */
+    private int placesBelow(int levels)
+    {
+        int count = 1;
+        boolean choice = true;
+        for (int d = levels; d > 0; --d)
+        {
+            count *= choice ? this.choiceWidth : 2;
+            choice = !choice;
+        }
+        return count;
+    }
+
+    private void appendElement(StringBuilder b, int levels, boolean choice, List<String> leaves, int[] next,
+            Random random)
+    {
+        String close = this.appendRepetition(b, random);
+        if (levels == 0)
+        {
+            b.append(leaves.get(next[0]++));
+        }
+        else
+        {
+            b.append('(');
+            int width = choice ? this.choiceWidth : 2;
+            for (int i = 0; i < width; ++i)
+            {
+                if (i > 0)
+                {
+                    b.append(choice ? " / " : " ");
+                }
+                this.appendElement(b, levels - 1, !choice, leaves, next, random);
+            }
+            b.append(')');
+        }
+        b.append(close);
+    }
+
+    /**
+     * Maybe start a repetition.
+     *
+     * @return what closes the repetition
+     */
+    private String appendRepetition(StringBuilder b, Random random)
+    {
+        if (this.maxRepeat == 0 || random.nextInt(3) != 0)
+        {
+            return "";
+        }
+        int min = random.nextInt(this.maxRepeat + 1);
+        int max = min + random.nextInt(this.maxRepeat + 1 - min);
+        switch (random.nextInt(4))
+        {
+            case 0:
+                b.append("[ ");
+                return " ]";
+            case 1:
+                b.append(min).append('*');
+                break;
+            case 2:
+                b.append(min).append('*').append(Math.max(max, 1));
+                break;
+            default:
+                b.append(Math.max(max, 1));
+                break;
+        }
+        return "";
+    }
+
+    /**
+     * Refer to a rule further down the tree, or else to this rule or one of
+     * the rules above it.
+     */
+    private String reference(int rule, int child, Random random)
+    {
+        if (random.nextDouble() >= this.recursion)
+        {
+            return "rule-" + child;
+        }
+        List<Integer> ancestors = new ArrayList<Integer>();
+        for (int r = rule; r > 0; r = (r - 1) / this.fanOut)
+        {
+            ancestors.add(Integer.valueOf(r));
+        }
+        ancestors.add(Integer.valueOf(0));
+        return "rule-" + ancestors.get(random.nextInt(ancestors.size()));
+    }
+
+    private static String terminal(Random random)
+    {
+        switch (random.nextInt(3))
+        {
+            case 0:
+                StringBuilder s = new StringBuilder("\"");
+                int length = 1 + random.nextInt(3);
+                for (int i = 0; i < length; ++i)
+                {
+                    s.append((char) ('a' + random.nextInt(26)));
+                }
+                return s.append('"').toString();
+            case 1:
+                int low = 0x21 + random.nextInt(0x50);
+                return "%x" + Integer.toHexString(low) + '-' + Integer.toHexString(low + random.nextInt(0x0e));
+            default:
+                return GrammarGenerator.CORE_RULES[random.nextInt(GrammarGenerator.CORE_RULES.length)];
+        }
+    }
+}
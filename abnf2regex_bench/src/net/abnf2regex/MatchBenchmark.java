@@ -0,0 +1,303 @@
+package net.abnf2regex;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures how long it takes to match one input against a rule, using either
+ * a {@link Pattern} compiled from the regular expression that
+ * {@link RuleDictionary#ruleToRegex(String, RegexSyntax)} generates, or the
+ * {@link RuleMatcher} for the rule. Each operation matches the next input from
+ * a {@link MatchCorpus}, so sampled times show the spread across inputs, and
+ * the slowest input is printed at the end of each run.
+ * <p>
+ * The regular expression is written in the JavaScript syntax, because the
+ * Java syntax uses PCRE named groups, which {@link Pattern} doesn't accept.
+ * Where a rule is recursive, the regular expression stops short of the rule
+ * and doesn't always agree with it; the number of inputs that it gets wrong is
+ * printed during setup.
+ * <p>
+ * Before a run, each input is tried once with a time limit. Inputs that take
+ * longer, or that overflow the stack, are printed and left out, so that one
+ * input can't stop the other results from being reported.
+ */
+@State(Scope.Thread)
+@BenchmarkMode({ Mode.AverageTime, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@SuppressWarnings("nls")
+public class MatchBenchmark
+{
+    /** The engine that runs the regular expression. */
+    static final String REGEX = "regex";
+    /** The engine that is built from the rule. */
+    static final String MATCHER = "matcher";
+    /** How long an input can take to match before it is left out. */
+    private static final long TIME_LIMIT = TimeUnit.SECONDS.toNanos(1);
+    /** How many times each input is matched when looking for the slowest. */
+    private static final int SLOWEST_REPEATS = 200;
+
+    /** The name of the rule. */
+    @Param({ "URI", "IPv6address", "addr-spec", "filter" })
+    public String rule;
+
+    /** The engine, {@link #REGEX} or {@link #MATCHER}. */
+    @Param({ MatchBenchmark.REGEX, MatchBenchmark.MATCHER })
+    public String engine;
+
+    /** The inputs, as named in {@link MatchCorpus}. */
+    @Param({ MatchCorpus.VALID, MatchCorpus.INVALID, MatchCorpus.WORST })
+    public String corpus;
+
+    /** Matches the rule. */
+    private Engine matcher;
+    /** The inputs that haven't been left out. */
+    private String[] inputs;
+    /** The index of the next input. */
+    private int next;
+
+    /**
+     * Build the engine and check the inputs.
+     *
+     * @throws IOException if a grammar can't be read
+     * @throws AbnfParseException if a grammar is bad
+     * @throws RuleResolutionException if the rule can't be resolved
+     * @throws RegexSyntaxNotFoundException never, really
+     */
+    @Setup
+    public void setUp() throws IOException, AbnfParseException, RuleResolutionException, RegexSyntaxNotFoundException
+    {
+        MatchCorpus c = MatchCorpus.get(this.rule);
+        RuleDictionary rd = new RuleDictionary();
+        for (String grammar : c.grammars)
+        {
+            rd.parse(Benchmarks.grammar(grammar), StandardCharsets.UTF_8);
+        }
+        rd.resolve();
+        Engine reference = MatchBenchmark.ruleEngine(rd.matcher(this.rule));
+        if (MatchBenchmark.REGEX.equals(this.engine))
+        {
+            this.matcher = MatchBenchmark.regexEngine(Pattern.compile(
+                    rd.ruleToRegex(this.rule, RegexSyntax.getSyntax(RegexSyntax.SYNTAX_JAVASCRIPT))));
+        }
+        else if (MatchBenchmark.MATCHER.equals(this.engine))
+        {
+            this.matcher = reference;
+        }
+        else
+        {
+            throw new IllegalArgumentException("No engine named '" + this.engine + "'");
+        }
+
+        String[] all = c.getInputs(this.corpus);
+        List<String> kept = new ArrayList<String>();
+        int wrong = 0;
+        for (int i = 0; i < all.length; ++i)
+        {
+            boolean expected = reference.matches(all[i]);
+            if (!MatchCorpus.WORST.equals(this.corpus) && expected != MatchCorpus.VALID.equals(this.corpus))
+            {
+                throw new IllegalStateException("Input " + i + " is in the wrong corpus: "
+                        + MatchBenchmark.abbreviate(all[i]));
+            }
+            try
+            {
+                long deadline = System.nanoTime() + MatchBenchmark.TIME_LIMIT;
+                if (this.matcher.matches(new Limited(all[i], deadline)) != expected)
+                {
+                    ++wrong;
+                }
+                kept.add(all[i]);
+            }
+            catch (Limited.Expired e)
+            {
+                System.out.println(this.engine + ": left out input " + i + ", which took more than "
+                        + TimeUnit.NANOSECONDS.toSeconds(MatchBenchmark.TIME_LIMIT) + " s: "
+                        + MatchBenchmark.abbreviate(all[i]));
+            }
+            catch (StackOverflowError e)
+            {
+                System.out.println(this.engine + ": left out input " + i + ", which overflowed the stack: "
+                        + MatchBenchmark.abbreviate(all[i]));
+            }
+        }
+        if (wrong > 0)
+        {
+            System.out.println(this.engine + ": wrong about " + wrong + " of " + kept.size() + " inputs");
+        }
+        if (kept.isEmpty())
+        {
+            throw new IllegalStateException("Every input was left out");
+        }
+        this.inputs = kept.toArray(new String[kept.size()]);
+    }
+
+    /**
+     * Match the next input.
+     *
+     * @return whether it matched
+     */
+    @Benchmark
+    public boolean match()
+    {
+        String input = this.inputs[this.next];
+        this.next = (this.next + 1 == this.inputs.length) ? 0 : this.next + 1;
+        return this.matcher.matches(input);
+    }
+
+    /**
+     * Print the input that takes the longest to match.
+     */
+    @TearDown
+    public void printSlowest()
+    {
+        int slowest = 0;
+        long most = -1;
+        for (int i = 0; i < this.inputs.length; ++i)
+        {
+            long before = System.nanoTime();
+            for (int j = 0; j < MatchBenchmark.SLOWEST_REPEATS; ++j)
+            {
+                this.matcher.matches(this.inputs[i]);
+            }
+            long nanos = (System.nanoTime() - before) / MatchBenchmark.SLOWEST_REPEATS;
+            if (nanos > most)
+            {
+                most = nanos;
+                slowest = i;
+            }
+        }
+        System.out.println(String.format(Locale.ROOT, "%s: slowest input takes %d ns, length %d: %s", this.engine,
+                Long.valueOf(most), Integer.valueOf(this.inputs[slowest].length()),
+                MatchBenchmark.abbreviate(this.inputs[slowest])));
+    }
+
+    private static String abbreviate(String input)
+    {
+        String s = (input.length() > 60) ? input.substring(0, 57) + "..." : input;
+        return "<" + s + ">";
+    }
+
+    private static Engine regexEngine(final Pattern pattern)
+    {
+        return new Engine()
+        {
+            @Override
+            public boolean matches(CharSequence input)
+            {
+                return pattern.matcher(input).matches();
+            }
+        };
+    }
+
+    private static Engine ruleEngine(final RuleMatcher rm)
+    {
+        return new Engine()
+        {
+            @Override
+            public boolean matches(CharSequence input)
+            {
+                return rm.matches(input);
+            }
+        };
+    }
+
+    /**
+     * Something that decides whether an input matches a rule.
+     */
+    private interface Engine
+    {
+        /**
+         * Match an input.
+         *
+         * @param input the input
+         * @return whether all of the input matches
+         */
+        boolean matches(CharSequence input);
+    }
+
+    /**
+     * An input that can only be read until a deadline passes, so that a
+     * matcher that takes too long can be stopped.
+     */
+    private static final class Limited implements CharSequence
+    {
+        /** The characters. */
+        private final CharSequence chars;
+        /** The time, from {@link System#nanoTime()}, to stop at. */
+        private final long deadline;
+        /** The number of reads before the clock is checked again. */
+        private int countdown;
+
+        Limited(CharSequence _chars, long _deadline)
+        {
+            this.chars = _chars;
+            this.deadline = _deadline;
+        }
+
+        @Override
+        public int length()
+        {
+            return this.chars.length();
+        }
+
+        @Override
+        public char charAt(int index)
+        {
+            if (--this.countdown < 0)
+            {
+                this.countdown = 1 << 12;
+                if (System.nanoTime() - this.deadline > 0)
+                {
+                    throw new Expired();
+                }
+            }
+            return this.chars.charAt(index);
+        }
+
+        @Override
+        public CharSequence subSequence(int start, int end)
+        {
+            return new Limited(this.chars.subSequence(start, end), this.deadline);
+        }
+
+        @Override
+        public String toString()
+        {
+            return this.chars.toString();
+        }
+
+        /**
+         * Thrown when an input is read after its deadline.
+         */
+        static final class Expired extends RuntimeException
+        {
+            private static final long serialVersionUID = 1L;
+
+            Expired()
+            {
+                super(null, null, false, false);
+            }
+        }
+    }
+}
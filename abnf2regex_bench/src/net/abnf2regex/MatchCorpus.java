@@ -0,0 +1,149 @@
+package net.abnf2regex;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Inputs for a rule that is used in matching benchmarks: some that the rule
+ * matches, some that it doesn't, and some that are built to be slow to match,
+ * which are long inputs that only fail near the end, or that nest deeply.
+ */
+@SuppressWarnings("nls")
+final class MatchCorpus
+{
+    /** The name of the corpus of inputs that match. */
+    static final String VALID = "valid";
+    /** The name of the corpus of inputs that don't match. */
+    static final String INVALID = "invalid";
+    /** The name of the corpus of inputs that are slow to match. */
+    static final String WORST = "worst";
+
+    /** The corpora, by rule name. */
+    private static final Map<String, MatchCorpus> corpora = new HashMap<String, MatchCorpus>();
+
+    static
+    {
+        // path-empty, "0<pchar>", is read as a wildcard, so anything after the
+        // scheme matches and the invalid inputs all fail in the scheme
+        MatchCorpus.register(new MatchCorpus("URI", new String[] { "rfc3986.abnf" },
+                new String[] { "http://example.com/", "https://user:pw@www.example.org:8443/a/b/c?x=1&y=2#frag",
+                        "ftp://ftp.is.co.za/rfc/rfc1808.txt", "mailto:John.Doe@example.com",
+                        "urn:oasis:names:specification:docbook:dtd:xml:4.1.2",
+                        "ldap://[2001:db8::7]/c=GB?objectClass?one", "tel:+1-816-555-1212", "telnet://192.0.2.16:80/",
+                        "news:comp.infosystems.www.servers.unix", "http://a/b/c/d;p?q", "file:///etc/hosts",
+                        "http://%E2%82%AC.example/%7Euser" },
+                new String[] { "", "example.com", "://no-scheme", "1http://x", "-x:y", "ht tp://x", "http", "+:x",
+                        "http//x", "\u00e9:x", "a_b:c", "a%20:b" },
+                new String[] { "http://example.com/" + MatchCorpus.repeat("a/", 2000) + " ",
+                        MatchCorpus.repeat("a", 4000) + "~", "http://" + MatchCorpus.repeat("%41", 1300) + "%4",
+                        "http://[" + MatchCorpus.repeat("1:", 1000) + "]/",
+                        "http://x/?" + MatchCorpus.repeat("%2", 2000) }));
+        MatchCorpus.register(new MatchCorpus("IPv6address", new String[] { "rfc3986.abnf" },
+                new String[] { "::", "::1", "1::", "2001:db8::1", "fe80::1:2:3:4", "1:2:3:4:5:6:7:8",
+                        "::ffff:192.0.2.128", "2001:db8:85a3::8a2e:370:7334", "1:2:3:4:5:6:1.2.3.4",
+                        "abcd:ef01:2345:6789:abcd:ef01:2345:6789", "::2:3:4:5:6:7:8", "1:2:3:4:5:6:7::" },
+                new String[] { "", ":", ":::", "1::2::3", "1:2:3:4:5:6:7:8:9", "12345::", "g::1", "::1.2.3.256",
+                        "1:2:3:4:5:6:7", "::ffff:1.2.3", "1:2:3:4:5:6:7:8::", " ::1" },
+                new String[] { "1111:2222:3333:4444:5555:6666:7777:8888:",
+                        "ffff:ffff:ffff:ffff:ffff:ffff:255.255.255.256", "::ffff:ffff:ffff:ffff:ffff:ffff:ffff:ffff",
+                        "1:2:3:4:5:6:7::8", MatchCorpus.repeat("1:", 1000) + "1" }));
+        MatchCorpus.register(new MatchCorpus("addr-spec", new String[] { "rfc5322.abnf" },
+                new String[] { "a@b.c", "john.doe@example.com", "\"quoted name\"@example.com",
+                        "user+tag@sub.example.org", "x@[192.0.2.1]", "a.b.c.d@e.f.g.h",
+                        "!#$%&'*+-/=?^_`{|}~@example.com", "user@localhost", "(comment)user@example.com",
+                        "user@example.com(comment)", "\"a\\\"b\"@example.com", "first.last@[IPv6:2001:db8::1]" },
+                new String[] { "", "@", "a@", "@b", "a@@b", "a b@c", "a@b c", ".a@b", "a@b.", "\"unterminated@b",
+                        "a@[1.2.3.4", "a(b@c" },
+                new String[] { "a" + MatchCorpus.repeat(".a", 1000) + "@",
+                        "\"" + MatchCorpus.repeat("x", 3000) + "@b", MatchCorpus.repeat("(", 500) + "a@b",
+                        MatchCorpus.repeat(" ", 2000) + "a@b@", "a@" + MatchCorpus.repeat("b.", 1500) }));
+        MatchCorpus.register(new MatchCorpus("filter", new String[] { "ldap-common.abnf", "ldap-search.abnf" },
+                new String[] { "(cn=Babs Jensen)", "(!(cn=Tim Howes))",
+                        "(&(objectClass=Person)(|(sn=Jensen)(cn=Babs J*)))", "(o=univ*of*mich*)", "(seeAlso=)",
+                        "(cn:caseExactMatch:=Fred Flintstone)", "(cn:=Betty Rubble)",
+                        "(sn:dn:2.4.6.8.10:=Barney Rubble)", "(o:dn:=Ace Industry)", "(:1.2.3:=Wilma Flintstone)",
+                        "(o=Parens R Us \\28for all your parenthetical needs\\29)", "(cn=*\\2A*)",
+                        "(filename=C:\\5cMyFile)", "(cn~=Jensen)", "(age>=21)" },
+                new String[] { "", "()", "cn=x", "(cn=x", "(cn=x))", "(=x)", "(&)", "(cn=a(b)", "(cn=\\2)",
+                        "(1cn=x)", "(cn=x)(sn=y)", "(!(cn=x)(sn=y))" },
+                new String[] { MatchCorpus.repeat("(&", 500) + "(cn=x)" + MatchCorpus.repeat(")", 499),
+                        "(|" + MatchCorpus.repeat("(cn=x)", 1000), "(cn=" + MatchCorpus.repeat("a*", 1000) + "\\",
+                        "(&" + MatchCorpus.repeat("(cn=" + MatchCorpus.repeat("x", 20) + ")", 200) + "(" }));
+    }
+
+    /** The name of the rule. */
+    final String rule;
+    /** The files that the rule and the rules it uses are in. */
+    final String[] grammars;
+    /** The inputs that match. */
+    private final String[] valid;
+    /** The inputs that don't match. */
+    private final String[] invalid;
+    /** The inputs that are slow to match, whether they match or not. */
+    private final String[] worst;
+
+    private MatchCorpus(String _rule, String[] _grammars, String[] _valid, String[] _invalid, String[] _worst)
+    {
+        this.rule = _rule;
+        this.grammars = _grammars;
+        this.valid = _valid;
+        this.invalid = _invalid;
+        this.worst = _worst;
+    }
+
+    private static void register(MatchCorpus corpus)
+    {
+        MatchCorpus.corpora.put(corpus.rule, corpus);
+    }
+
+    private static String repeat(String s, int count)
+    {
+        StringBuilder b = new StringBuilder(s.length() * count);
+        for (int i = 0; i < count; ++i)
+        {
+            b.append(s);
+        }
+        return b.toString();
+    }
+
+    /**
+     * Find the corpora for a rule.
+     *
+     * @param rule the name of the rule
+     * @return the corpora
+     * @throws IllegalArgumentException if there are none for the rule
+     */
+    static MatchCorpus get(String rule)
+    {
+        MatchCorpus corpus = MatchCorpus.corpora.get(rule);
+        if (corpus == null)
+        {
+            throw new IllegalArgumentException("No inputs for rule '" + rule + "'");
+        }
+        return corpus;
+    }
+
+    /**
+     * Get some inputs.
+     *
+     * @param name {@link #VALID}, {@link #INVALID} or {@link #WORST}
+     * @return a copy of the inputs
+     * @throws IllegalArgumentException if the name isn't one of those
+     */
+    String[] getInputs(String name)
+    {
+        if (MatchCorpus.VALID.equals(name))
+        {
+            return this.valid.clone();
+        }
+        if (MatchCorpus.INVALID.equals(name))
+        {
+            return this.invalid.clone();
+        }
+        if (MatchCorpus.WORST.equals(name))
+        {
+            return this.worst.clone();
+        }
+        throw new IllegalArgumentException("No corpus named '" + name + "'");
+    }
+}
@@ -0,0 +1,264 @@
+package net.abnf2regex;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.StringReader;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Reports how the time and memory taken by each phase grow with the size of
+ * a grammar, using grammars from {@link GrammarGenerator}. Once the smallest
+ * grammar has warmed the compiler up, each grammar is parsed, resolved,
+ * expanded and written as regular expressions a few times, and the best time
+ * for each phase is kept, along with the bytes that the phase allocated.
+ * Simplifying groups is done while parsing and expanding, so its time, which
+ * comes from {@link CompilationStats}, is also part of theirs; the memory it
+ * allocates can't be told apart from theirs. The report ends
+ * with the growth of each phase, as the power of the number of rules that
+ * fits the first and last sizes; anything well above 1 is worth a look.
+ * <p>
+ * Arguments are settings of the form <code>name=value</code>:
+ * <code>rules</code> takes a comma-separated list of sizes, and
+ * <code>fanout</code>, <code>depth</code>, <code>choices</code>,
+ * <code>repeat</code>, <code>recursion</code> and <code>seed</code> are
+ * passed to the generator.
+ */
+@SuppressWarnings("nls")
+public final class ScalingReport
+{
+    /** The names of the phases. */
+    private static final String[] PHASES = { "parse", "resolve", "expand", "regex", "simplify" };
+    /** The phase that happens within others, so it has no memory of its own. */
+    private static final int SIMPLIFY = 4;
+    /** The number of runs of the smallest grammar before anything is measured. */
+    private static final int FIRST_WARMUP = 20;
+    /** The number of runs for each size that aren't measured. */
+    private static final int WARMUP = 2;
+    /** The number of runs for each size that are measured. */
+    private static final int RUNS = 5;
+
+    private ScalingReport()
+    {
+        // no instances
+    }
+
+    /**
+     * Write the report.
+     *
+     * @param args settings
+     * @throws IOException never, really
+     * @throws AbnfParseException if a generated grammar is bad
+     * @throws RuleResolutionException if a generated rule can't be resolved
+     */
+    public static void main(String[] args) throws IOException, AbnfParseException, RuleResolutionException
+    {
+        GrammarGenerator gen = new GrammarGenerator();
+        gen.setRecursion(0.02);
+        int[] sizes = { 250, 500, 1000, 2000, 4000 };
+        for (String arg : args)
+        {
+            int eq = arg.indexOf('=');
+            String name = (eq < 0) ? arg : arg.substring(0, eq);
+            String value = arg.substring(eq + 1);
+            if ("rules".equals(name))
+            {
+                String[] parts = value.split(",");
+                sizes = new int[parts.length];
+                for (int i = 0; i < parts.length; ++i)
+                {
+                    sizes[i] = Integer.parseInt(parts[i].trim());
+                }
+            }
+            else if ("fanout".equals(name))
+            {
+                gen.setFanOut(Integer.parseInt(value));
+            }
+            else if ("depth".equals(name))
+            {
+                gen.setDepth(Integer.parseInt(value));
+            }
+            else if ("choices".equals(name))
+            {
+                gen.setChoiceWidth(Integer.parseInt(value));
+            }
+            else if ("repeat".equals(name))
+            {
+                gen.setMaxRepeat(Integer.parseInt(value));
+            }
+            else if ("recursion".equals(name))
+            {
+                gen.setRecursion(Double.parseDouble(value));
+            }
+            else if ("seed".equals(name))
+            {
+                gen.setSeed(Long.parseLong(value));
+            }
+            else
+            {
+                throw new IllegalArgumentException("Unknown setting: " + arg);
+            }
+        }
+
+        PrintStream out = System.out;
+        StringBuilder header = new StringBuilder(String.format(Locale.ROOT, "%8s %10s", "rules", "chars"));
+        for (String phase : ScalingReport.PHASES)
+        {
+            header.append(String.format(Locale.ROOT, " %11s %11s", phase + " ms", phase + " MB"));
+        }
+        out.println(header);
+        out.println("Parse and expand include simplify.");
+
+        gen.setRuleCount(sizes[0]);
+        String smallest = gen.generate();
+        for (int run = 0; run < ScalingReport.FIRST_WARMUP; ++run)
+        {
+            ScalingReport.measure(smallest);
+        }
+
+        List<Sample> samples = new ArrayList<Sample>();
+        for (int size : sizes)
+        {
+            gen.setRuleCount(size);
+            String text = gen.generate();
+            Sample best = null;
+            for (int run = 0; run < ScalingReport.WARMUP + ScalingReport.RUNS; ++run)
+            {
+                Sample s = ScalingReport.measure(text);
+                if (run >= ScalingReport.WARMUP)
+                {
+                    best = (best == null) ? s : best.best(s);
+                }
+            }
+            samples.add(best);
+            StringBuilder row = new StringBuilder(String.format(Locale.ROOT, "%8d %10d", Integer.valueOf(size),
+                    Integer.valueOf(text.length())));
+            for (int p = 0; p < ScalingReport.PHASES.length; ++p)
+            {
+                row.append(String.format(Locale.ROOT, " %11.2f", Double.valueOf(best.nanos[p] / 1e6)));
+                row.append((best.bytes[p] < 0) ? String.format(Locale.ROOT, " %11s", "-")
+                        : String.format(Locale.ROOT, " %11.2f", Double.valueOf(best.bytes[p] / 1e6)));
+            }
+            out.println(row);
+        }
+
+        if (sizes.length > 1)
+        {
+            double n = Math.log((double) sizes[sizes.length - 1] / sizes[0]);
+            Sample first = samples.get(0);
+            Sample last = samples.get(samples.size() - 1);
+            StringBuilder growth = new StringBuilder("Growth:");
+            for (int p = 0; p < ScalingReport.PHASES.length; ++p)
+            {
+                growth.append(String.format(Locale.ROOT, " %s n^%.2f", ScalingReport.PHASES[p],
+                        Double.valueOf(Math.log((double) last.nanos[p] / Math.max(first.nanos[p], 1)) / n)));
+                if (first.bytes[p] >= 0)
+                {
+                    growth.append(String.format(Locale.ROOT, " (memory n^%.2f)",
+                            Double.valueOf(Math.log((double) last.bytes[p] / Math.max(first.bytes[p], 1)) / n)));
+                }
+            }
+            out.println(growth);
+        }
+    }
+
+    /**
+     * Run each phase once on a grammar.
+     */
+    private static Sample measure(String text) throws IOException, AbnfParseException, RuleResolutionException
+    {
+        Sample s = new Sample();
+        CompilationStats stats = new CompilationStats();
+        s.start();
+        RuleDictionary rd = new RuleDictionary();
+        rd.setStats(stats);
+        rd.parse(new StringReader(text), "generated");
+        s.end(0);
+
+        rd.resolve();
+        s.end(1);
+
+        List<Rule> rules = rd.getDependencyOrder();
+        for (Rule rule : rules)
+        {
+            rd.expandRule(rule);
+        }
+        s.end(2);
+
+        long chars = 0;
+        for (Rule rule : rules)
+        {
+            chars += rd.ruleToRegex(rule.getName()).length();
+        }
+        s.end(3);
+        s.nanos[ScalingReport.SIMPLIFY] = stats.getNanos(CompilationStats.SIMPLIFY);
+        s.bytes[ScalingReport.SIMPLIFY] = -1;
+        if (chars == 0)
+        {
+            throw new IllegalStateException("No regular expressions were written");
+        }
+        return s;
+    }
+
+    /**
+     * The time and memory that each phase took in one run.
+     */
+    private static final class Sample
+    {
+        /** Counts the bytes allocated by this thread, if that is supported. */
+        private static final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+
+        /** The time each phase took, in nanoseconds. */
+        final long[] nanos = new long[ScalingReport.PHASES.length];
+        /** The bytes each phase allocated, or -1 if that can't be counted. */
+        final long[] bytes = new long[ScalingReport.PHASES.length];
+        /** When the current phase started. */
+        private long startNanos;
+        /** The bytes allocated before the current phase. */
+        private long startBytes;
+
+        void start()
+        {
+            this.startBytes = Sample.allocated();
+            this.startNanos = System.nanoTime();
+        }
+
+        /**
+         * Finish a phase and start the next.
+         */
+        void end(int phase)
+        {
+            long now = System.nanoTime();
+            long allocated = Sample.allocated();
+            this.nanos[phase] = now - this.startNanos;
+            this.bytes[phase] = (allocated < 0) ? -1 : allocated - this.startBytes;
+            this.start();
+        }
+
+        /**
+         * Combine with another run, keeping the best of each.
+         */
+        Sample best(Sample other)
+        {
+            for (int p = 0; p < this.nanos.length; ++p)
+            {
+                this.nanos[p] = Math.min(this.nanos[p], other.nanos[p]);
+                this.bytes[p] = Math.min(this.bytes[p], other.bytes[p]);
+            }
+            return this;
+        }
+
+        private static long allocated()
+        {
+            if (Sample.threads instanceof com.sun.management.ThreadMXBean)
+            {
+                return ((com.sun.management.ThreadMXBean) Sample.threads)
+                        .getThreadAllocatedBytes(Thread.currentThread().getId());
+            }
+            return -1;
+        }
+    }
+}
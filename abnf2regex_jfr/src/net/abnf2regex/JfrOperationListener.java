@@ -0,0 +1,160 @@
+package net.abnf2regex;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.EventType;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Threshold;
+
+/**
+ * Turns operations into Java Flight Recorder events, so that slow requests
+ * can be matched to the rules that they used in continuous recordings. This
+ * is registered as a service, so it is installed whenever this fragment is
+ * on the class path.
+ * <p>
+ * Each operation has its own event type, named after the operation, such as
+ * <code>net.abnf2regex.Parse</code>. Matching and searching are frequent, so
+ * their events are only recorded when they take at least a millisecond,
+ * unless the recording settings say otherwise. Nothing is allocated for an
+ * operation unless its event type is enabled.
+ */
+@SuppressWarnings("nls")
+public final class JfrOperationListener extends OperationListener
+{
+    /** The event type for each operation, by number. */
+    private static final EventType[] TYPES = { EventType.getEventType(ParseEvent.class),
+            EventType.getEventType(ResolveEvent.class), EventType.getEventType(ExpandEvent.class),
+            EventType.getEventType(RegexEvent.class), EventType.getEventType(MatchEvent.class),
+            EventType.getEventType(SearchEvent.class) };
+
+    @Override
+    public Object begin(int operation)
+    {
+        if (operation < 0 || operation >= JfrOperationListener.TYPES.length
+                || !JfrOperationListener.TYPES[operation].isEnabled())
+        {
+            return null;
+        }
+        OperationEvent event;
+        switch (operation)
+        {
+            case OperationListener.PARSE:
+                event = new ParseEvent();
+                break;
+            case OperationListener.RESOLVE:
+                event = new ResolveEvent();
+                break;
+            case OperationListener.EXPAND:
+                event = new ExpandEvent();
+                break;
+            case OperationListener.REGEX:
+                event = new RegexEvent();
+                break;
+            case OperationListener.MATCH:
+                event = new MatchEvent();
+                break;
+            default:
+                event = new SearchEvent();
+                break;
+        }
+        event.begin();
+        return event;
+    }
+
+    @Override
+    public void end(Object operation, String rule, String syntax, long input, long output)
+    {
+        OperationEvent event = (OperationEvent) operation;
+        event.end();
+        if (event.shouldCommit())
+        {
+            event.rule = rule;
+            event.syntax = syntax;
+            event.inputLength = input;
+            event.outputLength = output;
+            event.commit();
+        }
+    }
+
+    /**
+     * The fields that every operation records. The meaning of the lengths
+     * depends on the operation, as described for {@link OperationListener}.
+     */
+    @Category("ABNF to Regex")
+    abstract static class OperationEvent extends Event
+    {
+        /** The name of the rule, if the operation is about one rule. */
+        @Label("Rule")
+        String rule;
+
+        /** The name of the regular expression syntax, if one was used. */
+        @Label("Syntax")
+        String syntax;
+
+        /** The size of the input, or -1. */
+        @Label("Input Length")
+        long inputLength;
+
+        /** The size of the output, or -1. */
+        @Label("Output Length")
+        long outputLength;
+    }
+
+    /** Parsing ABNF. */
+    @Name("net.abnf2regex.Parse")
+    @Label("Parse ABNF")
+    @Description("Characters of ABNF parsed, and the number of rules added")
+    static final class ParseEvent extends OperationEvent
+    {
+        // fields are inherited
+    }
+
+    /** Resolving references between rules. */
+    @Name("net.abnf2regex.Resolve")
+    @Label("Resolve Rules")
+    @Description("Resolving the references between the rules of a dictionary, with the number of rules as output")
+    static final class ResolveEvent extends OperationEvent
+    {
+        // fields are inherited
+    }
+
+    /** Expanding a rule. */
+    @Name("net.abnf2regex.Expand")
+    @Label("Expand Rule")
+    @Description("Expanding a rule, or finding its expansion in the cache")
+    static final class ExpandEvent extends OperationEvent
+    {
+        // fields are inherited
+    }
+
+    /** Writing a regular expression. */
+    @Name("net.abnf2regex.Regex")
+    @Label("Rule to Regex")
+    @Description("Writing the regular expression for a rule, with its length in characters as output")
+    static final class RegexEvent extends OperationEvent
+    {
+        // fields are inherited
+    }
+
+    /** Matching input. */
+    @Name("net.abnf2regex.Match")
+    @Label("Match Rule")
+    @Description("Matching input against a rule; the output is 1 if it matched and 0 if not")
+    @Threshold("1 ms")
+    static final class MatchEvent extends OperationEvent
+    {
+        // fields are inherited
+    }
+
+    /** Searching input. */
+    @Name("net.abnf2regex.Search")
+    @Label("Search for Rule")
+    @Description("Searching bytes for a rule, with the number of occurrences as output")
+    @Threshold("1 ms")
+    static final class SearchEvent extends OperationEvent
+    {
+        // fields are inherited
+    }
+}
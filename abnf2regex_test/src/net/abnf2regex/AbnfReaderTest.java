@@ -1,7 +1,13 @@
 package net.abnf2regex;
 
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.io.Reader;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
 
 import org.easymock.EasyMock;
 import org.junit.Assert;
@@ -334,4 +340,140 @@ public class AbnfReaderTest
         EasyMock.reset(this.mockReader);
     }
 
+    /**
+     * Create a reader that works over an array.
+     *
+     * @param input the characters to read
+     * @return a new reader
+     * @throws IOException never, really
+     */
+    private static AbnfReader buffered(String input) throws IOException
+    {
+        return AbnfReader.readFully(new StringReader(input), FILE_NAME);
+    }
+
+    /**
+     * Test method for
+     * {@link net.abnf2regex.AbnfReader#readFully(java.io.Reader, String)}.
+     *
+     * @throws IOException never, really
+     */
+    @Test
+    public void testReadFully() throws IOException
+    {
+        StringBuilder bld = new StringBuilder();
+        for (int i = 0; i < 10000; ++i)
+        {
+            bld.append((char) ('a' + (i % 26)));
+        }
+        AbnfReader buf = AbnfReaderTest.buffered(bld.toString());
+        Assert.assertEquals(bld.toString(), buf.parseName());
+        Assert.assertTrue(buf.eof());
+        Assert.assertEquals(-1, buf.read());
+    }
+
+    /**
+     * Test that the array-backed reader scans input the same way as the
+     * wrapped reader, including line and column numbers.
+     *
+     * @throws IOException never, really
+     */
+    @Test
+    public void testBuffered() throws IOException
+    {
+        String input = "rule-1 \t= %x2F \"a\r\nb\" ; comment\r\n  12\r34"; //$NON-NLS-1$
+        AbnfReader[] readers = { new AbnfReader(new StringReader(input), FILE_NAME), AbnfReaderTest.buffered(input) };
+        for (AbnfReader r : readers)
+        {
+            Assert.assertEquals('r', r.peek());
+            Assert.assertEquals("rule-1", r.parseName()); //$NON-NLS-1$
+            Assert.assertEquals(7, r.getColumn());
+            Assert.assertEquals(2, r.gobbleWhitespace());
+            Assert.assertEquals('=', r.read());
+            r.gobbleWhitespace();
+            Assert.assertEquals('%', r.read());
+            Assert.assertEquals('x', r.read());
+            Assert.assertEquals(0x2f, r.parseNumber(16));
+            r.gobbleWhitespace();
+            Assert.assertEquals('"', r.read());
+            Assert.assertEquals("a\r\nb", r.parseString('"')); //$NON-NLS-1$
+            Assert.assertEquals(2, r.getLine());
+            Assert.assertEquals('"', r.read());
+            r.findNextLine();
+            Assert.assertEquals(3, r.getLine());
+            Assert.assertEquals(1, r.getColumn());
+            Assert.assertEquals(2, r.gobbleWhitespace());
+            Assert.assertEquals(12, r.parseNumber());
+            r.findNextLine();
+            Assert.assertEquals(4, r.getLine());
+            Assert.assertEquals(34, r.parseNumber());
+            Assert.assertEquals(3, r.getColumn());
+            Assert.assertTrue(r.eof());
+        }
+    }
+
+    /**
+     * Test that {@link net.abnf2regex.AbnfReader#parseString(char)} fails at
+     * the end of the file.
+     *
+     * @throws IOException never, really
+     */
+    @Test
+    public void testParseStringEof() throws IOException
+    {
+        AbnfReader[] readers = { new AbnfReader(new StringReader("abc"), FILE_NAME), //$NON-NLS-1$
+                AbnfReaderTest.buffered("abc") }; //$NON-NLS-1$
+        for (AbnfReader r : readers)
+        {
+            try
+            {
+                r.parseString('"');
+                Assert.fail("expected EOFException"); //$NON-NLS-1$
+            }
+            catch (EOFException ex)
+            {
+                // expected
+            }
+        }
+    }
+
+    /**
+     * Test method for
+     * {@link net.abnf2regex.AbnfReader#readFile(java.io.File, java.nio.charset.Charset)}.
+     *
+     * @throws IOException if the temporary file can't be used
+     */
+    @Test
+    public void testReadFile() throws IOException
+    {
+        File f = File.createTempFile("abnf", ".abnf"); //$NON-NLS-1$ //$NON-NLS-2$
+        try
+        {
+            OutputStream out = new FileOutputStream(f);
+            try
+            {
+                out.write("r\u00e9gle = \"\u00e9\"\r\n".getBytes(StandardCharsets.UTF_8)); //$NON-NLS-1$
+            }
+            finally
+            {
+                out.close();
+            }
+
+            AbnfReader r = AbnfReader.readFile(f, StandardCharsets.UTF_8);
+            Assert.assertEquals(f.toString(), r.getFilename());
+            Assert.assertEquals("r\u00e9gle", r.parseName()); //$NON-NLS-1$
+            r.gobbleWhitespace();
+            Assert.assertEquals('=', r.read());
+            r.gobbleWhitespace();
+            Assert.assertEquals('"', r.read());
+            Assert.assertEquals("\u00e9", r.parseString('"')); //$NON-NLS-1$
+            Assert.assertEquals('"', r.read());
+            r.findNextLine();
+            Assert.assertTrue(r.eof());
+        }
+        finally
+        {
+            Assert.assertTrue(f.delete());
+        }
+    }
 }
@@ -0,0 +1,137 @@
+package net.abnf2regex;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ForkJoinPool;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests for {@link BulkValidator}.
+ */
+@SuppressWarnings("nls")
+public class BulkValidatorTest
+{
+    private RuleMatcher matcher;
+
+    /**
+     * Compile a rule.
+     *
+     * @throws IOException never, really
+     * @throws AbnfParseException if the grammar is bad
+     * @throws RuleResolutionException if the rule can't be resolved
+     */
+    @Before
+    public void setUp() throws IOException, AbnfParseException, RuleResolutionException
+    {
+        RuleDictionary rd = new RuleDictionary();
+        rd.parse(new StringReader("number = *DIGIT\r\n"), "test");
+        this.matcher = rd.matcher("number");
+    }
+
+    private String validate(String input, ForkJoinPool pool, BulkValidator.Summary[] summary) throws IOException
+    {
+        StringWriter out = new StringWriter();
+        summary[0] = new BulkValidator(this.matcher, pool).validate(
+                new ByteArrayInputStream(input.getBytes(StandardCharsets.US_ASCII)), new PrintWriter(out));
+        return out.toString().replace(System.lineSeparator(), "\n");
+    }
+
+    /**
+     * Test the results for each line, with both kinds of line end and without
+     * a newline at the end.
+     *
+     * @throws IOException never, really
+     */
+    @Test
+    public void testLines() throws IOException
+    {
+        BulkValidator.Summary[] summary = new BulkValidator.Summary[1];
+        Assert.assertEquals("1\tmatch\n2\tno match\n3\tmatch\n4\tmatch\n5\tno match\n",
+                this.validate("123\nabc\r\n\n42\r\n4 2", null, summary));
+        Assert.assertEquals(5, summary[0].lines);
+        Assert.assertEquals(3, summary[0].matched);
+        Assert.assertEquals(17, summary[0].bytes);
+        Assert.assertEquals(5, summary[0].latency.getCount());
+
+        Assert.assertEquals("", this.validate("", null, summary));
+        Assert.assertEquals("1\tmatch\n", this.validate("\n", null, summary));
+
+        StringWriter stats = new StringWriter();
+        summary[0].print(new PrintWriter(stats));
+        Assert.assertTrue(stats.toString(), stats.toString().startsWith("Lines: 1, matched: 1, not matched: 0"));
+    }
+
+    /**
+     * Test that results come out in order when lines are matched on a pool,
+     * across batches and with a line longer than a batch.
+     *
+     * @throws IOException never, really
+     */
+    @Test
+    public void testPool() throws IOException
+    {
+        StringBuilder input = new StringBuilder();
+        StringBuilder expected = new StringBuilder();
+        int n = 0;
+        for (int i = 0; i < 300000; ++i)
+        {
+            input.append((i % 7 == 0) ? "x" : Integer.toString(i)).append('\n');
+            expected.append(++n).append((i % 7 == 0) ? "\tno match\n" : "\tmatch\n");
+        }
+        for (int i = 0; i < 3000000; ++i)
+        {
+            input.append('9');
+        }
+        expected.append(++n).append("\tmatch\n");
+
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try
+        {
+            BulkValidator.Summary[] summary = new BulkValidator.Summary[1];
+            Assert.assertEquals(expected.toString(), this.validate(input.toString(), pool, summary));
+            Assert.assertEquals(n, summary[0].lines);
+            Assert.assertEquals(input.length(), summary[0].bytes);
+            Assert.assertEquals(n, summary[0].latency.getCount());
+        }
+        finally
+        {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * Test the percentiles of a histogram.
+     */
+    @Test
+    public void testHistogram()
+    {
+        BulkValidator.Histogram h = new BulkValidator.Histogram();
+        Assert.assertEquals(0, h.percentile(50));
+        for (int i = 1; i <= 1000; ++i)
+        {
+            h.record(i);
+        }
+        h.record(-5);
+        Assert.assertEquals(1001, h.getCount());
+        Assert.assertEquals(1000, h.getMax());
+        Assert.assertEquals(1000, h.percentile(100));
+        Assert.assertEquals(0, h.percentile(0));
+        long median = h.percentile(50);
+        Assert.assertTrue(Long.toString(median), median >= 500 && median <= 500 * 17 / 16);
+        long p99 = h.percentile(99);
+        Assert.assertTrue(Long.toString(p99), p99 >= 990 && p99 <= 1000);
+
+        BulkValidator.Histogram other = new BulkValidator.Histogram();
+        other.record(1L << 40);
+        h.add(other);
+        Assert.assertEquals(1L << 40, h.percentile(100));
+        Assert.assertEquals(1002, h.getCount());
+    }
+}
@@ -0,0 +1,171 @@
+package net.abnf2regex;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests for {@link CaptureMatcher}.
+ */
+@SuppressWarnings("nls")
+public class CaptureMatcherTest
+{
+    /** An authority, much as in RFC 3986. */
+    private static final String GRAMMAR = "authority = [ userinfo \"@\" ] host [ \":\" port ]\r\n"
+            + "userinfo = *( ALPHA / DIGIT / \":\" )\r\n"
+            + "host = IPv4address / reg-name\r\n"
+            + "IPv4address = dec-octet \".\" dec-octet \".\" dec-octet \".\" dec-octet\r\n"
+            + "dec-octet = DIGIT / %x31-39 DIGIT / \"1\" 2DIGIT / \"2\" %x30-34 DIGIT / \"25\" %x30-35\r\n"
+            + "reg-name = *( ALPHA / DIGIT / \"-\" / \".\" / %x80-10FFFF )\r\n"
+            + "port = *DIGIT\r\n"
+            + "path = 1*( \"/\" segment )\r\n"
+            + "segment = 1*ALPHA\r\n"
+            + "nest = \"(\" [ nest ] \")\"\r\n";
+
+    private RuleDictionary rd;
+
+    /**
+     * Load the grammar.
+     *
+     * @throws IOException never, really
+     * @throws AbnfParseException if the grammar is bad
+     */
+    @Before
+    public void setUp() throws IOException, AbnfParseException
+    {
+        this.rd = new RuleDictionary();
+        this.rd.parse(new StringReader(CaptureMatcherTest.GRAMMAR), "test");
+        Assert.assertTrue(this.rd.resolve());
+    }
+
+    /**
+     * Test the spans of captured rules.
+     *
+     * @throws RuleResolutionException if the rules can't be resolved
+     */
+    @Test
+    public void testSpans() throws RuleResolutionException
+    {
+        CaptureMatcher m = this.rd.captureMatcher("authority", "host", "port", "userinfo", "IPv4address");
+        Assert.assertEquals(4, m.getCaptureCount());
+        Assert.assertEquals("port", m.getCaptureName(1));
+        int[] spans = m.newSpans();
+        Assert.assertEquals(8, spans.length);
+
+        Assert.assertTrue(m.match("example.com:8080", spans));
+        Assert.assertArrayEquals(new int[] { 0, 11, 12, 16, -1, -1, -1, -1 }, spans);
+
+        Assert.assertTrue(m.match("user:pw@10.0.0.1", spans));
+        Assert.assertArrayEquals(new int[] { 8, 16, -1, -1, 0, 7, 8, 16 }, spans);
+
+        // an IPv4 address is preferred, but 256 isn't one
+        Assert.assertTrue(m.match("10.0.0.256:", spans));
+        Assert.assertArrayEquals(new int[] { 0, 10, 11, 11, -1, -1, -1, -1 }, spans);
+
+        Assert.assertTrue(m.match("", spans));
+        Assert.assertArrayEquals(new int[] { 0, 0, -1, -1, -1, -1, -1, -1 }, spans);
+
+        // offsets count chars, including both halves of a pair
+        Assert.assertTrue(m.match("\ud83d\ude00.x:1", spans));
+        Assert.assertArrayEquals(new int[] { 0, 4, 5, 6, -1, -1, -1, -1 }, spans);
+
+        int[] before = spans.clone();
+        Assert.assertFalse(m.match("a b", spans));
+        Assert.assertFalse(m.match("a@b@c", spans));
+        Assert.assertArrayEquals(before, spans);
+    }
+
+    /**
+     * Test that the last of several matches of a rule is reported.
+     *
+     * @throws RuleResolutionException if the rules can't be resolved
+     */
+    @Test
+    public void testRepeated() throws RuleResolutionException
+    {
+        CaptureMatcher m = this.rd.captureMatcher("path", "segment", "path");
+        int[] spans = new int[6];
+        spans[4] = 42;
+        Assert.assertTrue(m.match("/usr/local/bin", spans));
+        Assert.assertArrayEquals(new int[] { 11, 14, 0, 14, 42, 0 }, spans);
+        Assert.assertFalse(m.match("/usr//bin", spans));
+    }
+
+    /**
+     * Test that capture matching agrees with matching.
+     *
+     * @throws RuleResolutionException if the rules can't be resolved
+     */
+    @Test
+    public void testAgrees() throws RuleResolutionException
+    {
+        CaptureMatcher m = this.rd.captureMatcher("authority", "host");
+        RuleMatcher plain = this.rd.matcher("authority");
+        int[] spans = m.newSpans();
+        for (String input : new String[] { "", "@", ":", "a@b:1", "a@b:x", "a:b:c@d", "1.2.3.4", "1.2.3.4:", "@@",
+                "-.-", "a b", "::@", "\ud83d" })
+        {
+            Assert.assertEquals(input, plain.matches(input), m.match(input, spans));
+        }
+    }
+
+    /**
+     * Test matching bytes, where the spans are indexes into the array.
+     *
+     * @throws RuleResolutionException if the rules can't be resolved
+     */
+    @Test
+    public void testBytes() throws RuleResolutionException
+    {
+        CaptureMatcher m = this.rd.captureMatcher("authority", "host", "port");
+        byte[] line = "GET localhost:80 x".getBytes(StandardCharsets.US_ASCII);
+        int[] spans = m.newSpans();
+        Assert.assertTrue(m.match(line, 4, 12, spans));
+        Assert.assertArrayEquals(new int[] { 4, 13, 14, 16 }, spans);
+        Assert.assertFalse(m.match(line, 4, 14, spans));
+        line[4] = (byte) 0xE9;
+        Assert.assertTrue(m.match(line, 4, 12, spans));
+    }
+
+    /**
+     * Test the errors.
+     *
+     * @throws RuleResolutionException if the rules can't be resolved
+     */
+    @Test
+    public void testErrors() throws RuleResolutionException
+    {
+        CaptureMatcher m = this.rd.captureMatcher("authority", "host", "port");
+        try
+        {
+            m.match("x", new int[3]);
+            Assert.fail("short spans");
+        }
+        catch (IllegalArgumentException e)
+        {
+            // expected
+        }
+        try
+        {
+            this.rd.captureMatcher("nest", "nest");
+            Assert.fail("recursive");
+        }
+        catch (IllegalArgumentException e)
+        {
+            // expected
+        }
+        try
+        {
+            this.rd.captureMatcher("authority", "nosuch");
+            Assert.fail("missing");
+        }
+        catch (RuleResolutionException e)
+        {
+            // expected
+        }
+    }
+}
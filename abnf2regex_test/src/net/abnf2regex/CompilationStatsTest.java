@@ -0,0 +1,141 @@
+package net.abnf2regex;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.concurrent.ForkJoinPool;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests for {@link CompilationStats}.
+ */
+@SuppressWarnings("nls")
+public class CompilationStatsTest
+{
+    /** A grammar with a shared rule, so that expansions are reused. */
+    private static final String GRAMMAR = "top = pair \"/\" pair\r\n"
+            + "pair = ( word / \"-\" ) \"=\" word\r\n"
+            + "word = 1*ALPHA\r\n";
+
+    private static RuleDictionary parse(CompilationStats stats) throws IOException, AbnfParseException
+    {
+        RuleDictionary rd = new RuleDictionary();
+        rd.setStats(stats);
+        rd.parse(new StringReader(CompilationStatsTest.GRAMMAR), "test");
+        Assert.assertTrue(rd.resolve());
+        return rd;
+    }
+
+    /**
+     * Test that each phase and counter is recorded.
+     *
+     * @throws Exception on failure
+     */
+    @Test
+    public void testRecord() throws Exception
+    {
+        CompilationStats stats = new CompilationStats();
+        RuleDictionary rd = CompilationStatsTest.parse(stats);
+        Assert.assertSame(stats, rd.getStats());
+        Assert.assertTrue(stats.getNanos(CompilationStats.PARSE) > 0);
+        Assert.assertTrue(stats.getNanos(CompilationStats.RESOLVE) > 0);
+        Assert.assertTrue(stats.getNanos(CompilationStats.SIMPLIFY) > 0);
+        Assert.assertEquals(0, stats.getNanos(CompilationStats.EXPAND));
+        Assert.assertEquals(0, stats.getCount(CompilationStats.EXPANSIONS));
+        long parsed = stats.getCount(CompilationStats.FRAGMENTS);
+        Assert.assertTrue(parsed > 0);
+
+        String regex = rd.ruleToRegex("top");
+        Assert.assertTrue(stats.getNanos(CompilationStats.EXPAND) > 0);
+        Assert.assertTrue(stats.getNanos(CompilationStats.EMIT) > 0);
+        Assert.assertTrue(stats.getCount(CompilationStats.FRAGMENTS) > parsed);
+        Assert.assertTrue(stats.getCount(CompilationStats.CLONES) > 0);
+        Assert.assertTrue(stats.getCount(CompilationStats.REFLECTIVE_INSTANCES) > 0);
+        // top, pair and word are expanded once each; the second pair and
+        // word come from the cache
+        Assert.assertEquals(3, stats.getCount(CompilationStats.EXPANSIONS));
+        Assert.assertEquals(2, stats.getCount(CompilationStats.CACHE_HITS));
+        Assert.assertEquals(regex.length(), stats.getCount(CompilationStats.OUTPUT_BYTES));
+
+        rd.ruleToRegex("top");
+        Assert.assertEquals(3, stats.getCount(CompilationStats.EXPANSIONS));
+        Assert.assertEquals(3, stats.getCount(CompilationStats.CACHE_HITS));
+        Assert.assertEquals(2 * regex.length(), stats.getCount(CompilationStats.OUTPUT_BYTES));
+
+        stats.reset();
+        for (int i = 0; i < CompilationStats.COUNTER_COUNT; ++i)
+        {
+            Assert.assertEquals(0, stats.getCount(i));
+        }
+    }
+
+    /**
+     * Test that nothing is recorded without statistics, or after they are
+     * detached.
+     *
+     * @throws Exception on failure
+     */
+    @Test
+    public void testDetached() throws Exception
+    {
+        CompilationStats stats = new CompilationStats();
+        RuleDictionary other = CompilationStatsTest.parse(null);
+        RuleDictionary rd = CompilationStatsTest.parse(stats);
+        long fragments = stats.getCount(CompilationStats.FRAGMENTS);
+        other.ruleToRegex("top");
+        Assert.assertEquals(fragments, stats.getCount(CompilationStats.FRAGMENTS));
+        Assert.assertNull(other.getStats());
+
+        rd.setStats(null);
+        rd.ruleToRegex("top");
+        Assert.assertEquals(fragments, stats.getCount(CompilationStats.FRAGMENTS));
+        Assert.assertEquals(0, stats.getNanos(CompilationStats.EMIT));
+    }
+
+    /**
+     * Test that work done on other threads is recorded.
+     *
+     * @throws Exception on failure
+     */
+    @Test
+    public void testThreads() throws Exception
+    {
+        CompilationStats stats = new CompilationStats();
+        RuleDictionary rd = CompilationStatsTest.parse(stats);
+        ForkJoinPool pool = new ForkJoinPool(2);
+        try
+        {
+            StringWriter sw = new StringWriter();
+            rd.write(new PrintWriter(sw), RegexSyntax.getCurrent(), pool);
+        }
+        finally
+        {
+            pool.shutdown();
+        }
+        Assert.assertEquals(3, stats.getCount(CompilationStats.EXPANSIONS));
+        Assert.assertTrue(stats.getCount(CompilationStats.OUTPUT_BYTES) > 0);
+        Assert.assertTrue(stats.getNanos(CompilationStats.EMIT) > 0);
+    }
+
+    /**
+     * Test the printed form.
+     *
+     * @throws Exception on failure
+     */
+    @Test
+    public void testPrint() throws Exception
+    {
+        CompilationStats stats = new CompilationStats();
+        CompilationStatsTest.parse(stats).ruleToRegex("word");
+        String text = stats.toString();
+        for (int i = 0; i < CompilationStats.PHASE_COUNT; ++i)
+        {
+            Assert.assertTrue(text, text.contains(" " + CompilationStats.getPhaseName(i) + "="));
+        }
+        Assert.assertTrue(text, text.contains("expansions=1,"));
+        Assert.assertTrue(text, text.contains("output bytes=" + stats.getCount(CompilationStats.OUTPUT_BYTES)));
+    }
+}
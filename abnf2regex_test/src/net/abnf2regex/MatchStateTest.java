@@ -0,0 +1,166 @@
+package net.abnf2regex;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests for {@link MatchState}.
+ */
+@SuppressWarnings("nls")
+public class MatchStateTest
+{
+    /** Rules covering each kind of matcher. */
+    private static final String GRAMMAR = "IPv4address = dec-octet \".\" dec-octet \".\" dec-octet \".\" dec-octet\r\n"
+            + "dec-octet = DIGIT / %x31-39 DIGIT / \"1\" 2DIGIT / \"2\" %x30-34 DIGIT / \"25\" %x30-35\r\n"
+            + "word = \"abc\" [ \"-\" 2*3\"x\" ]\r\n"
+            + "emoji = 1*%x1F600-1F64F\r\n"
+            + "lone = %xD83D / %xD83D %xDE00\r\n"
+            + "nest = \"(\" [ nest ] \")\"\r\n";
+
+    /** Inputs to try against every rule. */
+    private static final String[] INPUTS = { "", "1", "255", "256", "1.2.3.4", "255.255.255.255", "1.2.3", "abc",
+            "ABC-xx", "abc-xxxx", "\ud83d\ude00", "\ud83d\ude00\ud83d\ude4f", "\ud83d", "\ud83d\ud83d", "\ud83d\ude50",
+            "()", "(())", "(()", "())", "x" };
+
+    private RuleDictionary rd;
+
+    /**
+     * Load the grammar.
+     *
+     * @throws IOException never, really
+     * @throws AbnfParseException if the grammar is bad
+     */
+    @Before
+    public void setUp() throws IOException, AbnfParseException
+    {
+        this.rd = new RuleDictionary();
+        this.rd.parse(new StringReader(MatchStateTest.GRAMMAR), "test");
+        Assert.assertTrue(this.rd.resolve());
+    }
+
+    /**
+     * Test that feeding input in two pieces, split anywhere, gives the same
+     * answer as matching it all at once, including where a surrogate pair is
+     * split.
+     *
+     * @throws RuleResolutionException if the rules can't be resolved
+     */
+    @Test
+    public void testChunks() throws RuleResolutionException
+    {
+        for (String name : new String[] { "IPv4address", "word", "emoji", "lone", "nest" })
+        {
+            RuleMatcher m = this.rd.matcher(name);
+            for (String input : MatchStateTest.INPUTS)
+            {
+                boolean expected = m.matches(input);
+                for (int split = 0; split <= input.length(); ++split)
+                {
+                    MatchState state = m.newState();
+                    String head = input.substring(0, split);
+                    state.feed(head);
+                    Assert.assertEquals(name + " <" + head + ">", m.matches(head), state.isAccepting());
+                    state.feed(input.substring(split));
+                    Assert.assertEquals(name + " <" + input + "> " + split, expected, state.isAccepting());
+                }
+            }
+        }
+    }
+
+    /**
+     * Test that a dead state is reported as soon as the input can't match.
+     *
+     * @throws RuleResolutionException if the rules can't be resolved
+     */
+    @Test
+    public void testDead() throws RuleResolutionException
+    {
+        MatchState ip = this.rd.matcher("IPv4address").newState();
+        Assert.assertTrue(ip.feed("1.2"));
+        Assert.assertTrue(ip.feed(".25"));
+        Assert.assertFalse(ip.isDead());
+        Assert.assertFalse(ip.feed("6"));
+        Assert.assertTrue(ip.isDead());
+        Assert.assertFalse(ip.feed(".4"));
+        Assert.assertFalse(ip.isAccepting());
+
+        ip.reset();
+        Assert.assertFalse(ip.isDead());
+        Assert.assertTrue(ip.feed("10.0.0."));
+        Assert.assertFalse(ip.isAccepting());
+        Assert.assertTrue(ip.feed("1"));
+        Assert.assertTrue(ip.isAccepting());
+
+        MatchState nest = this.rd.matcher("nest").newState();
+        Assert.assertTrue(nest.feed("(("));
+        Assert.assertTrue(nest.feed("))"));
+        Assert.assertTrue(nest.isAccepting());
+        Assert.assertFalse(nest.feed(")"));
+        nest.reset();
+        Assert.assertFalse(nest.feed("x"));
+    }
+
+    /**
+     * Test feeding bytes.
+     *
+     * @throws RuleResolutionException if the rules can't be resolved
+     */
+    @Test
+    public void testBytes() throws RuleResolutionException
+    {
+        byte[] ip = "xx192.168.0.1xx".getBytes(StandardCharsets.US_ASCII);
+        for (String name : new String[] { "IPv4address", "nest" })
+        {
+            MatchState state = this.rd.matcher(name).newState();
+            for (int i = 2; i < ip.length - 2; ++i)
+            {
+                state.feed(ip, i, 1);
+            }
+            Assert.assertEquals(name, "IPv4address".equals(name), state.isAccepting());
+        }
+
+        MatchState state = this.rd.matcher("IPv4address").newState();
+        ByteBuffer direct = ByteBuffer.allocateDirect(ip.length);
+        direct.put(ip).position(2).limit(8);
+        Assert.assertTrue(state.feed(direct));
+        Assert.assertEquals(2, direct.position());
+        direct.position(8).limit(13);
+        Assert.assertTrue(state.feed(direct));
+        Assert.assertTrue(state.isAccepting());
+    }
+
+    /**
+     * Test streaming through a lazily built automaton, both when the cache is
+     * big enough and when it is so small that the NFA has to be used.
+     *
+     * @throws RuleResolutionException if the rules can't be resolved
+     */
+    @Test
+    public void testLazy() throws RuleResolutionException
+    {
+        Nfa nfa = Nfa.compile(this.rd.getRule("IPv4address"));
+        Dfa.CharClasses classes = new Dfa.CharClasses(nfa);
+        for (int capacity : new int[] { 1024, 3 })
+        {
+            LazyDfa lazy = new LazyDfa(nfa, classes, capacity);
+            for (String input : MatchStateTest.INPUTS)
+            {
+                for (int split = 0; split <= input.length(); ++split)
+                {
+                    MatchState state = new MatchState(lazy.newCursor());
+                    state.feed(input.substring(0, split));
+                    state.feed(input.substring(split));
+                    Assert.assertEquals(capacity + " <" + input + "> " + split, nfa.matches(input),
+                            state.isAccepting());
+                }
+            }
+            Assert.assertEquals(capacity == 3, lazy.getFallbacks() > 0);
+        }
+    }
+}
@@ -0,0 +1,136 @@
+package net.abnf2regex;
+
+import java.io.StringReader;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests for {@link OperationListener}.
+ */
+@SuppressWarnings("nls")
+public class OperationListenerTest
+{
+    /** A small grammar. */
+    private static final String GRAMMAR = "pair = word \"=\" word\r\n"
+            + "word = 1*ALPHA\r\n";
+
+    /** The operations that ended, described as strings. */
+    private final List<String> ended = Collections.synchronizedList(new ArrayList<String>());
+    /** Whether operations are wanted. */
+    private volatile boolean wanted = true;
+
+    /**
+     * Install a listener that describes each operation.
+     */
+    @Before
+    public void setUp()
+    {
+        OperationListener.setListener(new OperationListener()
+        {
+            @Override
+            public Object begin(int operation)
+            {
+                return OperationListenerTest.this.wanted ? Integer.valueOf(operation) : null;
+            }
+
+            @Override
+            public void end(Object operation, String rule, String syntax, long input, long output)
+            {
+                OperationListenerTest.this.ended.add(operation + ":" + rule + ":" + syntax + ":" + input + ":"
+                        + output);
+            }
+        });
+    }
+
+    /**
+     * Remove the listener.
+     */
+    @After
+    public void tearDown()
+    {
+        OperationListener.setListener(null);
+    }
+
+    private RuleDictionary parse() throws Exception
+    {
+        RuleDictionary rd = new RuleDictionary();
+        rd.parse(new StringReader(OperationListenerTest.GRAMMAR), "test");
+        Assert.assertTrue(rd.resolve());
+        return rd;
+    }
+
+    /**
+     * Test that compiling a grammar is reported.
+     *
+     * @throws Exception on failure
+     */
+    @Test
+    public void testCompile() throws Exception
+    {
+        RuleDictionary rd = this.parse();
+        Assert.assertEquals(Collections.singletonList(OperationListener.PARSE + ":null:null:"
+                + OperationListenerTest.GRAMMAR.length() + ":2"), this.ended.subList(0, 1));
+        Assert.assertEquals(OperationListener.RESOLVE + ":null:null:-1:2", this.ended.get(this.ended.size() - 1));
+
+        this.ended.clear();
+        RegexSyntax syntax = RegexSyntax.getSyntax(RegexSyntax.SYNTAX_JAVASCRIPT);
+        String regex = rd.ruleToRegex("pair", syntax);
+        Assert.assertEquals(2, this.ended.size());
+        Assert.assertEquals(OperationListener.EXPAND + ":pair:null:-1:-1", this.ended.get(0));
+        Assert.assertEquals(OperationListener.REGEX + ":pair:" + syntax.getName() + ":-1:" + regex.length(),
+                this.ended.get(1));
+    }
+
+    /**
+     * Test that matching and searching are reported.
+     *
+     * @throws Exception on failure
+     */
+    @Test
+    public void testMatch() throws Exception
+    {
+        RuleDictionary rd = this.parse();
+        RuleMatcher matcher = rd.matcher("pair");
+        this.ended.clear();
+        Assert.assertTrue(matcher.matches("a=b"));
+        Assert.assertFalse(matcher.matches(ByteBuffer.wrap("a=".getBytes(StandardCharsets.US_ASCII))));
+        Assert.assertEquals(OperationListener.MATCH + ":pair:null:3:1", this.ended.get(0));
+        Assert.assertEquals(OperationListener.MATCH + ":pair:null:2:0", this.ended.get(1));
+
+        this.ended.clear();
+        RuleSearcher searcher = rd.searcher("pair");
+        long found = searcher.search(ByteBuffer.wrap("x=y, ab=cd".getBytes(StandardCharsets.US_ASCII)),
+                new RuleSearcher.Handler()
+                {
+                    @Override
+                    public boolean found(long start, long end)
+                    {
+                        return true;
+                    }
+                });
+        Assert.assertEquals(2, found);
+        Assert.assertEquals(Collections.singletonList(OperationListener.SEARCH + ":pair:null:10:2"), this.ended);
+    }
+
+    /**
+     * Test that operations that aren't wanted aren't reported as ending.
+     *
+     * @throws Exception on failure
+     */
+    @Test
+    public void testNotWanted() throws Exception
+    {
+        this.wanted = false;
+        RuleDictionary rd = this.parse();
+        rd.matcher("pair").matches("a=b");
+        Assert.assertTrue(this.ended.isEmpty());
+    }
+}
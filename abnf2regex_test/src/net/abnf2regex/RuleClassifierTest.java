@@ -0,0 +1,143 @@
+package net.abnf2regex;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.Arrays;
+import java.util.BitSet;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests for {@link RuleClassifier}.
+ */
+@SuppressWarnings("nls")
+public class RuleClassifierTest
+{
+    /** Overlapping rules, some regular and some recursive. */
+    private static final String GRAMMAR = "IPv4address = dec-octet \".\" dec-octet \".\" dec-octet \".\" dec-octet\r\n"
+            + "dec-octet = DIGIT / %x31-39 DIGIT / \"1\" 2DIGIT / \"2\" %x30-34 DIGIT / \"25\" %x30-35\r\n"
+            + "h16 = 1*4HEXDIG\r\n"
+            + "number = 1*DIGIT\r\n"
+            + "reg-name = *( ALPHA / DIGIT / \"-\" / \".\" )\r\n"
+            + "nest = \"(\" [ nest ] \")\"\r\n"
+            + "list = \"(\" *( nest / DIGIT ) \")\"\r\n";
+
+    /** The rules to classify against, in bit order. */
+    private static final String[] NAMES = { "IPv4address", "h16", "nest", "number", "reg-name", "list" };
+
+    /** Inputs to try. */
+    private static final String[] INPUTS = { "", "1", "12", "255", "256", "beef", "BEEF0", "1.2.3.4", "1.2.3.400",
+            "example.com", "-", "()", "(())", "(()1)", "(()", "(1)", "x y", "\ud83d\ude00" };
+
+    private RuleDictionary rd;
+
+    /**
+     * Load the grammar.
+     *
+     * @throws IOException never, really
+     * @throws AbnfParseException if the grammar is bad
+     */
+    @Before
+    public void setUp() throws IOException, AbnfParseException
+    {
+        this.rd = new RuleDictionary();
+        this.rd.parse(new StringReader(RuleClassifierTest.GRAMMAR), "test");
+        Assert.assertTrue(this.rd.resolve());
+    }
+
+    /**
+     * Test that the classifier agrees with matching each rule on its own.
+     *
+     * @throws RuleResolutionException if the rules can't be resolved
+     */
+    @Test
+    public void testClassify() throws RuleResolutionException
+    {
+        RuleClassifier c = this.rd.classifier(RuleClassifierTest.NAMES);
+        Assert.assertEquals(RuleClassifierTest.NAMES.length, c.size());
+        BitSet reused = new BitSet();
+        for (String input : RuleClassifierTest.INPUTS)
+        {
+            BitSet expected = new BitSet();
+            for (int i = 0; i < RuleClassifierTest.NAMES.length; ++i)
+            {
+                Assert.assertEquals(RuleClassifierTest.NAMES[i], c.getRuleName(i));
+                if (this.rd.matcher(RuleClassifierTest.NAMES[i]).matches(input))
+                {
+                    expected.set(i);
+                }
+            }
+            Assert.assertEquals("<" + input + ">", expected, c.classify(input));
+            reused.set(63);
+            c.classify(input, reused);
+            Assert.assertEquals("<" + input + ">", expected, reused);
+        }
+
+        BitSet ip = c.classify("10.0.0.1");
+        Assert.assertTrue(ip.get(0));
+        Assert.assertTrue(ip.get(4));
+        Assert.assertEquals(2, ip.cardinality());
+    }
+
+    /**
+     * Test classifiers with only regular rules, only recursive rules, or no
+     * rules at all.
+     *
+     * @throws RuleResolutionException if the rules can't be resolved
+     */
+    @Test
+    public void testKinds() throws RuleResolutionException
+    {
+        RuleClassifier regular = this.rd.classifier("number", "h16");
+        Assert.assertEquals("{0, 1}", regular.classify("1234").toString());
+        Assert.assertEquals("{1}", regular.classify("ab").toString());
+        Assert.assertEquals("{0}", regular.classify("12345").toString());
+
+        RuleClassifier recursive = this.rd.classifier("list", "nest");
+        Assert.assertEquals("{0, 1}", recursive.classify("(())").toString());
+        Assert.assertEquals("{0}", recursive.classify("(1)").toString());
+        Assert.assertTrue(recursive.classify("((1))").isEmpty());
+
+        RuleClassifier empty = this.rd.classifier();
+        Assert.assertEquals(0, empty.size());
+        Assert.assertTrue(empty.classify("1").isEmpty());
+        Assert.assertEquals("RuleClassifier[]", empty.toString());
+    }
+
+    /**
+     * Test that states accepting different sets of rules are kept apart when
+     * the automaton is minimized.
+     *
+     * @throws RuleResolutionException if the rules can't be resolved
+     */
+    @Test
+    public void testMinimized() throws RuleResolutionException
+    {
+        Nfa nfa = Nfa.compile(Arrays.asList(this.rd.getRule("number"), this.rd.getRule("h16")));
+        Dfa dfa = Dfa.build(nfa, new Dfa.CharClasses(nfa), 100);
+        Assert.assertNotNull(dfa);
+        Assert.assertArrayEquals(new int[] { 0, 1 }, dfa.matchedRules("99"));
+        Assert.assertArrayEquals(new int[] { 1 }, dfa.matchedRules("f"));
+        Assert.assertArrayEquals(new int[] { 0 }, dfa.matchedRules("99999"));
+        Assert.assertArrayEquals(new int[0], dfa.matchedRules("g"));
+
+        LazyDfa lazy = new LazyDfa(nfa, new Dfa.CharClasses(nfa), 3);
+        for (String input : RuleClassifierTest.INPUTS)
+        {
+            Assert.assertArrayEquals(input, dfa.matchedRules(input), lazy.matchedRules(input));
+        }
+    }
+
+    /**
+     * Test that a missing rule is reported.
+     *
+     * @throws RuleResolutionException always
+     */
+    @Test(expected = RuleResolutionException.class)
+    public void testMissing() throws RuleResolutionException
+    {
+        this.rd.classifier("number", "nosuch");
+    }
+}
@@ -0,0 +1,493 @@
+package net.abnf2regex;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StreamCorruptedException;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests for {@link RuleDictionary}.
+ */
+@SuppressWarnings("nls")
+public class RuleDictionaryTest
+{
+    private RuleDictionary rd;
+
+    /**
+     * Load a small grammar with a shared rule and a recursive rule.
+     *
+     * @throws IOException never, really
+     * @throws AbnfParseException if the grammar is bad
+     */
+    @Before
+    public void setUp() throws IOException, AbnfParseException
+    {
+        this.rd = new RuleDictionary();
+        this.rd.parse(new StringReader("top = shared \"-\" shared\r\n" //
+                + "shared = 1*DIGIT\r\n" //
+                + "nest = \"(\" (nest / \"x\") \")\"\r\n"), "test");
+        Assert.assertTrue(this.rd.resolve());
+    }
+
+    /**
+     * Test that expansions are reused until the dictionary changes.
+     *
+     * @throws IOException never, really
+     * @throws AbnfParseException if the grammar is bad
+     */
+    @Test
+    public void testExpansionCache() throws IOException, AbnfParseException
+    {
+        Rule top = this.rd.getRule("top");
+        Rule expanded = this.rd.expandRule(top);
+        Assert.assertSame(expanded, this.rd.expandRule(top));
+
+        this.rd.parse(new StringReader("shared = 1*ALPHA\r\n"), "more");
+        Assert.assertTrue(this.rd.resolve());
+        Assert.assertNotSame(expanded, this.rd.expandRule(top));
+    }
+
+    /**
+     * Test that a rule from outside the dictionary expands as if it were part
+     * of it, reusing the cached expansions of the rules that it references.
+     *
+     * @throws IOException never, really
+     * @throws AbnfParseException if the grammar is bad
+     */
+    @Test
+    public void testExpandOtherRule() throws IOException, AbnfParseException
+    {
+        String other = "other = top \"+\" nest \"+\" ALPHA\r\n";
+        RuleDictionary outside = new RuleDictionary();
+        outside.parse(new StringReader(other), "other");
+        Rule rule = outside.getRule("other");
+
+        CompilationStats stats = new CompilationStats();
+        this.rd.setStats(stats);
+        Rule expanded = this.rd.expandRule(rule);
+        Assert.assertFalse(rule.isRecursive());
+        Assert.assertFalse(rule.isRegular());
+        long expansions = stats.getCount(CompilationStats.EXPANSIONS);
+        this.rd.expandRule(rule);
+        Assert.assertEquals(expansions + 1, stats.getCount(CompilationStats.EXPANSIONS));
+
+        this.rd.parse(new StringReader(other), "other");
+        Assert.assertTrue(this.rd.resolve());
+        Assert.assertEquals(this.rd.expandRule(this.rd.getRule("other")).toAbnf(new HashSet<String>()),
+                expanded.toAbnf(new HashSet<String>()));
+    }
+
+    /**
+     * Test that cached expansions don't change the regex that is produced.
+     *
+     * @throws RuleResolutionException if the rules can't be resolved
+     */
+    @Test
+    public void testCachedRegex() throws RuleResolutionException
+    {
+        String top = "(?P<top>(?P<shared>\\d+)\\-(?P=shared))";
+        Assert.assertEquals(top, this.rd.ruleToRegex("top"));
+        Assert.assertEquals(top, this.rd.ruleToRegex("top"));
+        String nest = "(?P<nest>\\((?:[Xx]|(?P=nest))\\))";
+        Assert.assertEquals(nest, this.rd.ruleToRegex("nest"));
+        Assert.assertEquals(nest, this.rd.ruleToRegex("nest"));
+    }
+
+    /**
+     * Test that resolving identifies recursive and regular rules.
+     */
+    @Test
+    public void testRecursionFlags()
+    {
+        Assert.assertFalse(this.rd.getRule("top").isRecursive());
+        Assert.assertTrue(this.rd.getRule("top").isRegular());
+        Assert.assertFalse(this.rd.getRule("shared").isRecursive());
+        Assert.assertTrue(this.rd.getRule("nest").isRecursive());
+        Assert.assertFalse(this.rd.getRule("nest").isRegular());
+    }
+
+    /**
+     * Test that rules are ordered so that references come first.
+     */
+    @Test
+    public void testDependencyOrder()
+    {
+        List<Rule> order = this.rd.getDependencyOrder();
+        int top = order.indexOf(this.rd.getRule("top"));
+        int shared = order.indexOf(this.rd.getRule("shared"));
+        int digit = order.indexOf(this.rd.getRule("DIGIT"));
+        Assert.assertTrue(top >= 0 && shared >= 0 && digit >= 0);
+        Assert.assertTrue(digit < shared);
+        Assert.assertTrue(shared < top);
+    }
+
+    /**
+     * Test that regexes for different syntaxes can be generated at the same
+     * time without interfering with each other.
+     *
+     * @throws Exception if generation fails
+     */
+    @Test
+    public void testConcurrentSyntaxes() throws Exception
+    {
+        final RegexSyntax java = RegexSyntax.getSyntax(RegexSyntax.SYNTAX_JAVA);
+        final RegexSyntax posix = RegexSyntax.getSyntax(RegexSyntax.SYNTAX_POSIX);
+        final String expectJava = this.rd.ruleToRegex("top", java);
+        final String expectPosix = this.rd.ruleToRegex("top", posix);
+        Assert.assertFalse(expectJava.equals(expectPosix));
+
+        ExecutorService pool = Executors.newFixedThreadPool(4);
+        try
+        {
+            List<Future<Boolean>> results = new ArrayList<Future<Boolean>>();
+            for (int i = 0; i < 16; ++i)
+            {
+                final boolean useJava = (i % 2) == 0;
+                results.add(pool.submit(new Callable<Boolean>()
+                {
+                    @Override
+                    public Boolean call() throws RuleResolutionException
+                    {
+                        for (int j = 0; j < 100; ++j)
+                        {
+                            String regex = RuleDictionaryTest.this.rd.ruleToRegex("top", useJava ? java : posix);
+                            if (!regex.equals(useJava ? expectJava : expectPosix))
+                            {
+                                return Boolean.FALSE;
+                            }
+                        }
+                        return Boolean.TRUE;
+                    }
+                }));
+            }
+            for (Future<Boolean> result : results)
+            {
+                Assert.assertTrue(result.get().booleanValue());
+            }
+        }
+        finally
+        {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * Test that writing the dictionary with several threads produces the same
+     * output as writing it from one thread.
+     *
+     * @throws RegexSyntaxNotFoundException if the syntax is missing
+     */
+    @Test
+    public void testParallelWrite() throws RegexSyntaxNotFoundException
+    {
+        RegexSyntax java = RegexSyntax.getSyntax(RegexSyntax.SYNTAX_JAVA);
+        StringWriter sequential = new StringWriter();
+        this.rd.write(new PrintWriter(sequential), java);
+
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try
+        {
+            StringWriter parallel = new StringWriter();
+            this.rd.write(new PrintWriter(parallel), java, pool);
+            Assert.assertEquals(sequential.toString(), parallel.toString());
+        }
+        finally
+        {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * Test that parsing files in parallel gives the same rules, in the same
+     * order, as parsing them one at a time.
+     *
+     * @throws IOException never, really
+     * @throws AbnfParseException if a grammar is bad
+     */
+    @Test
+    public void testParallelParse() throws IOException, AbnfParseException
+    {
+        String[] files = { "a = \"x\"\r\nb = a\r\n", //
+                "b = \"y\"\r\nc = 1*b\r\nc =/ \"w\"\r\n", //
+                "a =/ \"z\"\r\nd = a c\r\n", //
+                "e = d\r\n" };
+        RuleDictionary sequential = new RuleDictionary();
+        List<AbnfReader> readers = new ArrayList<AbnfReader>();
+        for (int i = 0; i < files.length; ++i)
+        {
+            sequential.parse(new StringReader(files[i]), "file" + i);
+            readers.add(AbnfReader.readFully(new StringReader(files[i]), "file" + i));
+        }
+
+        RuleDictionary parallel = new RuleDictionary();
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try
+        {
+            parallel.parse(readers, pool);
+        }
+        finally
+        {
+            pool.shutdown();
+        }
+        Assert.assertEquals(sequential.toString(), parallel.toString());
+        Assert.assertEquals("a = (\"x\" / \"z\")\n", parallel.getRule("a").toString());
+    }
+
+    /**
+     * Test that a bad file leaves the same rules behind, and fails the same
+     * way, whether files are parsed in parallel or one at a time.
+     *
+     * @throws IOException never, really
+     */
+    @Test
+    public void testParallelParseError() throws IOException
+    {
+        String[] files = { "a = \"x\"\r\n", //
+                "b = \"y\"\r\nc = 1*b\r\nd = %q12\r\ne = \"z\"\r\n", //
+                "f = \"w\"\r\n" };
+        RuleDictionary sequential = new RuleDictionary();
+        List<AbnfReader> readers = new ArrayList<AbnfReader>();
+        String expected = null;
+        for (int i = 0; i < files.length; ++i)
+        {
+            readers.add(AbnfReader.readFully(new StringReader(files[i]), "file" + i));
+            if (expected == null)
+            {
+                try
+                {
+                    sequential.parse(new StringReader(files[i]), "file" + i);
+                }
+                catch (AbnfParseException ex)
+                {
+                    expected = ex.getMessage();
+                }
+            }
+        }
+        Assert.assertNotNull(expected);
+        Assert.assertNotNull(sequential.getRule("c"));
+
+        RuleDictionary parallel = new RuleDictionary();
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try
+        {
+            parallel.parse(readers, pool);
+            Assert.fail("The bad file was parsed");
+        }
+        catch (AbnfParseException ex)
+        {
+            Assert.assertEquals(expected, ex.getMessage());
+        }
+        finally
+        {
+            pool.shutdown();
+        }
+        Assert.assertEquals(sequential.toString(), parallel.toString());
+    }
+
+    /**
+     * Test that a saved dictionary loads with the same rules and produces the
+     * same regular expressions.
+     *
+     * @throws Exception if saving, loading or generation fails
+     */
+    @Test
+    public void testSaveLoad() throws Exception
+    {
+        this.rd.parse(new StringReader("lit = %x41-5A / %d48.49 / 2*4%b1\r\n" //
+                + "opt = [\"a\" lit] <any text> *(top / nest)\r\n"), "more");
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        this.rd.save(out);
+        RuleDictionary loaded = RuleDictionary.load(new ByteArrayInputStream(out.toByteArray()));
+        Assert.assertTrue(loaded.resolve());
+
+        Assert.assertEquals(this.rd.toString(), loaded.toString());
+        RegexSyntax posix = RegexSyntax.getSyntax(RegexSyntax.SYNTAX_POSIX);
+        for (String name : new String[] { "top", "nest", "lit", "opt" })
+        {
+            Assert.assertEquals(this.rd.ruleToRegex(name), loaded.ruleToRegex(name));
+            Assert.assertEquals(this.rd.ruleToRegex(name, posix), loaded.ruleToRegex(name, posix));
+        }
+    }
+
+    /**
+     * Test that strings longer than 64KB of UTF-8 can be saved.
+     *
+     * @throws Exception if saving, loading or generation fails
+     */
+    @Test
+    public void testSaveLoadLongString() throws Exception
+    {
+        char[] text = new char[70000];
+        Arrays.fill(text, 'a');
+        this.rd.parse(new StringReader("long = \"" + new String(text) + "\"\r\n"), "long");
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        this.rd.save(out);
+        RuleDictionary loaded = RuleDictionary.load(new ByteArrayInputStream(out.toByteArray()));
+        Assert.assertTrue(loaded.resolve());
+        Assert.assertEquals(this.rd.ruleToRegex("long"), loaded.ruleToRegex("long"));
+    }
+
+    /**
+     * Test that the core rules are saved with the other rules, so that they
+     * don't need to be parsed after loading.
+     *
+     * @throws Exception if saving or loading fails
+     */
+    @Test
+    public void testSaveCoreRules() throws Exception
+    {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        this.rd.save(out);
+        List<Rule> rules = new ArrayList<Rule>();
+        List<Rule> core = new ArrayList<Rule>();
+        DictionarySnapshot.read(new DataInputStream(new ByteArrayInputStream(out.toByteArray())), rules, core);
+        Assert.assertEquals(3, rules.size());
+        Set<String> names = new HashSet<String>();
+        for (Rule r : core)
+        {
+            Assert.assertTrue(r.getName(), r.isInlineRule());
+            names.add(r.getName());
+        }
+        Assert.assertTrue(names.toString(), names.containsAll(Arrays.asList("ALPHA", "DIGIT", "CRLF")));
+    }
+
+    /**
+     * Test that loading something that isn't a saved dictionary fails.
+     *
+     * @throws IOException always
+     */
+    @Test(expected = StreamCorruptedException.class)
+    public void testLoadBadSnapshot() throws IOException
+    {
+        RuleDictionary.load(new ByteArrayInputStream("abnf = junk\r\n".getBytes("US-ASCII")));
+    }
+
+    /**
+     * Write a snapshot of one rule that is a literal, with the given values.
+     *
+     * @param nameLength the length of the rule name, which is one byte
+     * @param min the least occurrences
+     * @param max the most occurrences
+     * @param start the start of the character range
+     * @param end the end of the character range
+     * @return the snapshot
+     * @throws IOException never, really
+     */
+    private byte[] literalSnapshot(int nameLength, int min, int max, int start, int end) throws IOException
+    {
+        ByteArrayOutputStream good = new ByteArrayOutputStream();
+        this.rd.save(good);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        // the header
+        out.write(good.toByteArray(), 0, 8);
+        out.writeInt(1);
+        out.writeInt(nameLength);
+        out.writeByte('r');
+        out.writeBoolean(false);
+        out.writeByte('S');
+        out.writeInt(1);
+        out.writeInt(1);
+        out.writeInt(1);
+        out.writeByte('L');
+        out.writeInt(min);
+        out.writeInt(max);
+        out.writeInt(1);
+        out.writeInt(start);
+        out.writeInt(end);
+        // no core rules
+        out.writeInt(0);
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Test that corrupt values in a snapshot are found when it is loaded.
+     *
+     * @throws Exception if the snapshot can't be written
+     */
+    @Test
+    public void testLoadCorruptSnapshot() throws Exception
+    {
+        RuleDictionary good = RuleDictionary.load(new ByteArrayInputStream(this.literalSnapshot(1, 2, -1, 'a', 'z')));
+        RuleDictionary parsed = new RuleDictionary();
+        parsed.parse(new StringReader("r = 2*%x61-7A\r\n"), "r");
+        Assert.assertEquals(parsed.ruleToRegex("r"), good.ruleToRegex("r"));
+
+        int[][] bad = { { -1, 1, 'a', 'z' }, { 3, 2, 'a', 'z' }, { 1, -2, 'a', 'z' }, { 1, 1, -1, 'z' },
+                { 1, 1, 'z', 'a' }, { 1, 1, 'a', 0x18000039 }, { 1, 1, 0x110000, 0x110000 } };
+        for (int[] values : bad)
+        {
+            try
+            {
+                RuleDictionary.load(new ByteArrayInputStream(this.literalSnapshot(1, values[0], values[1], values[2],
+                        values[3])));
+                Assert.fail(Arrays.toString(values));
+            }
+            catch (StreamCorruptedException ex)
+            {
+                // expected
+            }
+        }
+
+        // a huge string length runs out of input rather than memory
+        try
+        {
+            RuleDictionary.load(new ByteArrayInputStream(this.literalSnapshot(Integer.MAX_VALUE, 1, 1, 'a', 'z')));
+            Assert.fail();
+        }
+        catch (EOFException ex)
+        {
+            // expected
+        }
+    }
+
+    /**
+     * Test that core rules are found from any dictionary, and are inline.
+     */
+    @Test
+    public void testCoreRules()
+    {
+        Rule alpha = new RuleDictionary().getRule("alpha");
+        Assert.assertNotNull(alpha);
+        Assert.assertTrue(alpha.isInlineRule());
+        Assert.assertSame(alpha, this.rd.getRule("ALPHA"));
+        Assert.assertNull(this.rd.getRule("no-such-rule"));
+    }
+
+    /**
+     * Test that a stream is read as UTF-8, whatever the platform default.
+     *
+     * @throws Exception on failure
+     */
+    @Test
+    public void testStreamIsUtf8() throws Exception
+    {
+        String abnf = "summer = \"\u00e9t\u00e9\"\r\n";
+        RuleDictionary dict = new RuleDictionary();
+        dict.parse(new ByteArrayInputStream(abnf.getBytes(StandardCharsets.UTF_8)), "utf8");
+        Assert.assertTrue(dict.resolve());
+        Assert.assertTrue(dict.matcher("summer").matches("\u00e9t\u00e9"));
+    }
+}
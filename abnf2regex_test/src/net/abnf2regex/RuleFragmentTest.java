@@ -54,7 +54,8 @@ public class RuleFragmentTest
             }
 
             @Override
-            protected void buildRegex(PrintWriter pw, Set<String> usedNames) throws RuleResolutionException
+            protected void buildRegex(PrintWriter pw, RegexSyntax syntax, Set<String> usedNames)
+                    throws RuleResolutionException
             {
                 // NOP
             }
@@ -150,9 +151,10 @@ public class RuleFragmentTest
             PrintWriter pw = EasyMock.createMock(PrintWriter.class);
             String regOccurs = "{n}"; //$NON-NLS-1$
 
+            RegexSyntax syntax = RegexSyntax.getCurrent();
             EasyMock.expect(Boolean.valueOf(this.or.isOnce())).andReturn(Boolean.TRUE).times(1, 2);
-            EasyMock.expect(this.or.getRegexOccurences()).andReturn(regOccurs);
-            this.rf.buildRegex(pw, new HashSet<String>());
+            EasyMock.expect(this.or.getRegexOccurences(syntax)).andReturn(regOccurs);
+            this.rf.buildRegex(pw, syntax, new HashSet<String>());
             pw.print(regOccurs);
 
             EasyMock.replay(this.rf, this.or, pw);
@@ -178,11 +180,12 @@ public class RuleFragmentTest
             PrintWriter pw = EasyMock.createMock(PrintWriter.class);
             String regOccurs = "{n}"; //$NON-NLS-1$
 
+            RegexSyntax syntax = RegexSyntax.getCurrent();
             EasyMock.expect(Boolean.valueOf(this.or.isOnce())).andReturn(Boolean.FALSE).times(1, 2);
             pw.print("(?:"); //$NON-NLS-1$
-            this.rf.buildRegex(pw, new HashSet<String>());
+            this.rf.buildRegex(pw, syntax, new HashSet<String>());
             pw.print(")"); //$NON-NLS-1$
-            EasyMock.expect(this.or.getRegexOccurences()).andReturn(regOccurs);
+            EasyMock.expect(this.or.getRegexOccurences(syntax)).andReturn(regOccurs);
             pw.print(regOccurs);
 
             EasyMock.replay(this.rf, this.or, pw);
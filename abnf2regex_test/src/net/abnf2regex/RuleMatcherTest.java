@@ -0,0 +1,321 @@
+package net.abnf2regex;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.ByteBuffer;
+import java.util.regex.Pattern;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests for {@link RuleMatcher}.
+ */
+@SuppressWarnings("nls")
+public class RuleMatcherTest
+{
+    /** Some rules from RFC 3986, plus a few odd ones. */
+    private static final String GRAMMAR = "IPv4address = dec-octet \".\" dec-octet \".\" dec-octet \".\" dec-octet\r\n"
+            + "dec-octet = DIGIT / %x31-39 DIGIT / \"1\" 2DIGIT / \"2\" %x30-34 DIGIT / \"25\" %x30-35\r\n"
+            + "h16 = 1*4HEXDIG\r\n"
+            + "ls32 = ( h16 \":\" h16 ) / IPv4address\r\n"
+            + "port = *DIGIT\r\n"
+            + "scheme = ALPHA *( ALPHA / DIGIT / \"+\" / \"-\" / \".\" )\r\n"
+            + "word = \"abc\" [ \"-\" 2*3\"x\" ]\r\n"
+            + "emoji = %x1F600-1F64F\r\n"
+            + "nothing = \"\"\r\n"
+            + "nest = \"(\" [ nest ] \")\"\r\n"
+            + "as = ( %x61 / %x61 %x61 ) *%x61\r\n"
+            + "list = *( IPv4address \",\" )\r\n"
+            + "octets = %x00 1*%x80-FF\r\n";
+
+    /** Inputs to try against every rule. */
+    private static final String[] INPUTS = { "", "0", "1", "9", "10", "99", "100", "199", "200", "249", "250", "255",
+            "256", "300", "1.2.3.4", "255.255.255.255", "256.1.1.1", "1.2.3", "01.2.3.4", "a", "ab12", "abcde",
+            "fFfF", "ffff:1.2.3.4", "ffff:ffff", "http", "h+t-t.p", "1http", "abc", "ABC", "abc-", "abc-xx", "aBc-XXX",
+            "abc-xxxx", "\ud83d\ude00", "\ud83d\ude4f", "\ud83d\ude50", "()", "(())", "(()", "x" };
+
+    private RuleDictionary rd;
+
+    /**
+     * Load the grammar.
+     *
+     * @throws IOException never, really
+     * @throws AbnfParseException if the grammar is bad
+     */
+    @Before
+    public void setUp() throws IOException, AbnfParseException
+    {
+        this.rd = new RuleDictionary();
+        this.rd.parse(new StringReader(RuleMatcherTest.GRAMMAR), "test");
+        Assert.assertTrue(this.rd.resolve());
+    }
+
+    /**
+     * Test some simple matches.
+     *
+     * @throws RuleResolutionException if the rules can't be resolved
+     */
+    @Test
+    public void testMatches() throws RuleResolutionException
+    {
+        RuleMatcher ip = this.rd.matcher("IPv4address");
+        Assert.assertEquals("IPv4address", ip.getRuleName());
+        Assert.assertTrue(ip.isExact());
+        Assert.assertTrue(ip.matches("192.168.0.1"));
+        Assert.assertFalse(ip.matches("192.168.0.256"));
+        Assert.assertFalse(ip.matches("192.168.0.1 "));
+
+        RuleMatcher word = this.rd.matcher("word");
+        Assert.assertTrue(word.matches("AbC-xXx"));
+        Assert.assertFalse(word.matches("abc-x"));
+
+        Assert.assertTrue(this.rd.matcher("emoji").matches("\ud83d\ude00"));
+        Assert.assertFalse(this.rd.matcher("emoji").matches("\ud83d"));
+        Assert.assertTrue(this.rd.matcher("nothing").matches(""));
+
+        // big enough that the automaton grows while the loop is compiled
+        RuleMatcher list = this.rd.matcher("list");
+        Assert.assertTrue(list.matches("1.2.3.4,5.6.7.8,"));
+        Assert.assertFalse(list.matches("1.2.3.4,5.6.7.8"));
+    }
+
+    /**
+     * Test that recursive rules are matched exactly, not approximated the way
+     * that regular expressions are.
+     *
+     * @throws RuleResolutionException if the rules can't be resolved
+     */
+    @Test
+    public void testRecursive() throws RuleResolutionException
+    {
+        RuleMatcher nest = this.rd.matcher("nest");
+        Assert.assertTrue(nest.isExact());
+        Assert.assertTrue(nest.matches("()"));
+        Assert.assertTrue(nest.matches("((((()))))"));
+        Assert.assertFalse(nest.matches("(x)"));
+        Assert.assertFalse(nest.matches("(()"));
+        Assert.assertFalse(nest.matches("(()))"));
+        Assert.assertFalse(nest.matches(""));
+
+        // still approximated by the automaton
+        Assert.assertTrue(Nfa.compile(this.rd.getRule("nest")).approximate);
+    }
+
+    /**
+     * Test the recognizer on regular rules, where it has to agree with the
+     * automaton, and on a few recursive ones.
+     *
+     * @throws Exception if anything goes wrong
+     */
+    @Test
+    public void testEarley() throws Exception
+    {
+        for (String name : new String[] { "IPv4address", "dec-octet", "h16", "ls32", "port", "scheme", "word",
+                "emoji", "nothing", "as", "list" })
+        {
+            Nfa nfa = Nfa.compile(this.rd.getRule(name));
+            Earley earley = Earley.compile(this.rd.getRule(name));
+            for (String input : RuleMatcherTest.INPUTS)
+            {
+                Assert.assertEquals(name + " <" + input + ">", nfa.matches(input), earley.matches(input));
+            }
+        }
+
+        RuleDictionary dict = new RuleDictionary();
+        dict.parse(new StringReader("expr = term *( \"+\" term )\r\n" + "term = DIGIT / \"(\" expr \")\"\r\n"
+                + "left = [ left \"a\" ] \"b\"\r\n" + "empty = [ empty ]\r\n"
+                + "pal = \"x\" / \"y\" / \"x\" [ pal ] \"x\" / \"y\" [ pal ] \"y\"\r\n"), "test");
+        Assert.assertTrue(dict.resolve());
+        RuleMatcher expr = dict.matcher("expr");
+        Assert.assertTrue(expr.matches("1+(2+(3+4))+5"));
+        Assert.assertFalse(expr.matches("1+(2+3"));
+        Assert.assertFalse(expr.matches("1+"));
+        RuleMatcher left = dict.matcher("left");
+        Assert.assertTrue(left.matches("b"));
+        Assert.assertTrue(left.matches("babab"));
+        Assert.assertFalse(left.matches("ba"));
+        RuleMatcher empty = dict.matcher("empty");
+        Assert.assertTrue(empty.matches(""));
+        Assert.assertFalse(empty.matches("x"));
+        RuleMatcher pal = dict.matcher("pal");
+        Assert.assertTrue(pal.matches("xyyyx"));
+        Assert.assertTrue(pal.matches("xyyx"));
+        Assert.assertFalse(pal.matches("xyxy"));
+    }
+
+    /**
+     * Test that the matcher agrees with the generated regular expression.
+     *
+     * @throws Exception if anything goes wrong
+     */
+    @Test
+    public void testAgreesWithRegex() throws Exception
+    {
+        RegexSyntax js = RegexSyntax.getSyntax(RegexSyntax.SYNTAX_JAVASCRIPT);
+        for (String name : new String[] { "IPv4address", "dec-octet", "h16", "ls32", "port", "scheme", "word",
+                "emoji", "nothing" })
+        {
+            Pattern p = Pattern.compile(this.rd.ruleToRegex(name, js));
+            RuleMatcher m = this.rd.matcher(name);
+            for (String input : RuleMatcherTest.INPUTS)
+            {
+                Assert.assertEquals(name + " <" + input + ">", p.matcher(input).matches(), m.matches(input));
+            }
+        }
+    }
+
+    /**
+     * Test that the deterministic automaton agrees with the nondeterministic
+     * one it was built from.
+     *
+     * @throws RuleResolutionException if the rules can't be resolved
+     */
+    @Test
+    public void testDeterministic() throws RuleResolutionException
+    {
+        for (String name : new String[] { "IPv4address", "dec-octet", "h16", "ls32", "port", "scheme", "word",
+                "emoji", "nothing", "nest", "as", "list" })
+        {
+            Nfa nfa = Nfa.compile(this.rd.getRule(name));
+            Dfa dfa = Dfa.build(nfa, 10000);
+            Assert.assertNotNull(name, dfa);
+            Assert.assertEquals(name, this.rd.getRule(name).isRegular(), this.rd.matcher(name).isDeterministic());
+            for (String input : RuleMatcherTest.INPUTS)
+            {
+                Assert.assertEquals(name + " <" + input + ">", nfa.matches(input), dfa.matches(input));
+            }
+        }
+    }
+
+    /**
+     * Test that equivalent states are merged.
+     *
+     * @throws RuleResolutionException if the rules can't be resolved
+     */
+    @Test
+    public void testMinimized() throws RuleResolutionException
+    {
+        // one or more "a": start, accept and dead
+        Dfa dfa = Dfa.build(Nfa.compile(this.rd.getRule("as")), 10000);
+        Assert.assertEquals(3, dfa.getStateCount());
+        Assert.assertTrue(dfa.matches("aaaa"));
+        Assert.assertFalse(dfa.matches(""));
+        Assert.assertFalse(dfa.matches("aab"));
+
+        // too many states to build
+        Assert.assertNull(Dfa.build(Nfa.compile(this.rd.getRule("IPv4address")), 5));
+    }
+
+    /**
+     * Test that building states lazily gives the same answers, whether the
+     * cache is big enough or not.
+     *
+     * @throws RuleResolutionException if the rules can't be resolved
+     */
+    @Test
+    public void testLazy() throws RuleResolutionException
+    {
+        for (String name : new String[] { "IPv4address", "ls32", "scheme", "word", "emoji", "nothing", "nest", "list" })
+        {
+            Nfa nfa = Nfa.compile(this.rd.getRule(name));
+            Dfa.CharClasses classes = new Dfa.CharClasses(nfa);
+            LazyDfa big = new LazyDfa(nfa, classes, 1024);
+            LazyDfa small = new LazyDfa(nfa, classes, 4);
+            for (String input : RuleMatcherTest.INPUTS)
+            {
+                Assert.assertEquals(name + " <" + input + ">", nfa.matches(input), big.matches(input));
+                Assert.assertEquals(name + " <" + input + ">", nfa.matches(input), small.matches(input));
+                Assert.assertTrue(small.getCachedStates() <= 4);
+            }
+            Assert.assertEquals(name, 0, big.getFallbacks());
+        }
+
+        // states are kept between matches
+        Nfa list = Nfa.compile(this.rd.getRule("list"));
+        LazyDfa lazy = new LazyDfa(list, new Dfa.CharClasses(list), 1024);
+        Assert.assertTrue(lazy.matches("1.2.3.4,"));
+        int states = lazy.getCachedStates();
+        Assert.assertTrue(lazy.matches("1.2.3.4,1.2.3.4,"));
+        Assert.assertEquals(states, lazy.getCachedStates());
+        Assert.assertEquals(0, lazy.getFlushes());
+
+        // too small to be any use, so the NFA is used instead
+        Nfa ip = Nfa.compile(this.rd.getRule("IPv4address"));
+        LazyDfa tiny = new LazyDfa(ip, new Dfa.CharClasses(ip), 3);
+        Assert.assertTrue(tiny.matches("1.2.3.4"));
+        Assert.assertTrue(tiny.getFallbacks() > 0);
+    }
+
+    /**
+     * Test matching bytes in arrays and in heap and direct buffers.
+     *
+     * @throws RuleResolutionException if the rules can't be resolved
+     */
+    @Test
+    public void testBytes() throws RuleResolutionException
+    {
+        for (String name : new String[] { "IPv4address", "h16", "ls32", "scheme", "word", "nothing", "nest", "list",
+                "octets" })
+        {
+            RuleMatcher m = this.rd.matcher(name);
+            Nfa nfa = Nfa.compile(this.rd.getRule(name));
+            LazyDfa lazy = new LazyDfa(nfa, new Dfa.CharClasses(nfa), 4);
+            for (String input : RuleMatcherTest.INPUTS)
+            {
+                byte[] bytes = RuleMatcherTest.latin1(input);
+                if (bytes == null)
+                {
+                    continue;
+                }
+                boolean expected = m.matches(input);
+                byte[] padded = new byte[bytes.length + 4];
+                System.arraycopy(bytes, 0, padded, 2, bytes.length);
+                Assert.assertEquals(name + " <" + input + ">", expected, m.matches(padded, 2, bytes.length));
+
+                ByteBuffer heap = ByteBuffer.wrap(padded, 2, bytes.length).slice();
+                Assert.assertEquals(name + " <" + input + ">", expected, m.matches(heap));
+                ByteBuffer direct = ByteBuffer.allocateDirect(padded.length);
+                direct.put(padded).position(2).limit(2 + bytes.length);
+                Assert.assertEquals(name + " <" + input + ">", expected, m.matches(direct));
+                Assert.assertEquals(2, direct.position());
+                Assert.assertEquals(name + " <" + input + ">", nfa.matches(input), lazy.matches(direct));
+                Assert.assertEquals(name + " <" + input + ">", nfa.matches(input), nfa.matches(direct));
+            }
+        }
+
+        // octets above 0x7F are code points, not UTF-8
+        RuleMatcher octets = this.rd.matcher("octets");
+        byte[] high = { 0x00, (byte) 0x80, (byte) 0xC3, (byte) 0xFF };
+        Assert.assertTrue(octets.matches(high, 0, high.length));
+        Assert.assertFalse(octets.matches(high, 1, 3));
+        Assert.assertTrue(octets.matches("\u0000\u00c3\u00a9"));
+    }
+
+    private static byte[] latin1(String input)
+    {
+        byte[] bytes = new byte[input.length()];
+        for (int i = 0; i < bytes.length; ++i)
+        {
+            char c = input.charAt(i);
+            if (c > 0xFF)
+            {
+                return null;
+            }
+            bytes[i] = (byte) c;
+        }
+        return bytes;
+    }
+
+    /**
+     * Test that a missing rule is reported.
+     *
+     * @throws RuleResolutionException always
+     */
+    @Test(expected = RuleResolutionException.class)
+    public void testMissingRule() throws RuleResolutionException
+    {
+        this.rd.matcher("no-such-rule");
+    }
+}
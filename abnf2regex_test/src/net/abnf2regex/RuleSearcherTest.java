@@ -0,0 +1,204 @@
+package net.abnf2regex;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.StringReader;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests for {@link RuleSearcher}.
+ */
+@SuppressWarnings("nls")
+public class RuleSearcherTest
+{
+    /** Rules with overlapping matches. */
+    private static final String GRAMMAR = "number = *DIGIT\r\n"
+            + "outer = \"abcd\" / \"c\"\r\n"
+            + "early = \"ab\" / \"bcde\"\r\n"
+            + "IPv4address = dec-octet \".\" dec-octet \".\" dec-octet \".\" dec-octet\r\n"
+            + "dec-octet = DIGIT / %x31-39 DIGIT / \"1\" 2DIGIT / \"2\" %x30-34 DIGIT / \"25\" %x30-35\r\n"
+            + "long = \"x\" 2500\"b\"\r\n"
+            + "nest = \"(\" [ nest ] \")\"\r\n";
+
+    private RuleDictionary rd;
+
+    /**
+     * Load the grammar.
+     *
+     * @throws IOException never, really
+     * @throws AbnfParseException if the grammar is bad
+     */
+    @Before
+    public void setUp() throws IOException, AbnfParseException
+    {
+        this.rd = new RuleDictionary();
+        this.rd.parse(new StringReader(RuleSearcherTest.GRAMMAR), "test");
+        Assert.assertTrue(this.rd.resolve());
+    }
+
+    private String search(String rule, String input) throws RuleResolutionException
+    {
+        final StringBuilder found = new StringBuilder();
+        ByteBuffer buf = ByteBuffer.wrap(input.getBytes(StandardCharsets.ISO_8859_1));
+        long count = this.rd.searcher(rule).search(buf, new RuleSearcher.Handler()
+        {
+            @Override
+            public boolean found(long start, long end)
+            {
+                found.append('[').append(start).append(',').append(end).append(']');
+                return true;
+            }
+        });
+        Assert.assertEquals(count, found.toString().split("\\[", -1).length - 1);
+        return found.toString();
+    }
+
+    /**
+     * Test that occurrences are leftmost, then longest, and never empty.
+     *
+     * @throws RuleResolutionException if the rules can't be resolved
+     */
+    @Test
+    public void testLeftmostLongest() throws RuleResolutionException
+    {
+        Assert.assertEquals("[1,3][4,7]", this.search("number", "a12b345"));
+        Assert.assertEquals("", this.search("number", "abc"));
+        Assert.assertEquals("[0,4][5,6]", this.search("outer", "abcdxc"));
+        Assert.assertEquals("[0,2][3,7]", this.search("early", "abcbcde"));
+        Assert.assertEquals("[2,9][10,18][18,29]", this.search("IPv4address", "a:1.2.3.4:1.2.3.256.255.255.3"));
+        Assert.assertEquals("[1,9]", this.search("IPv4address", "01.2.3.400"));
+    }
+
+    /**
+     * Test finding one occurrence at a time, and stopping early.
+     *
+     * @throws RuleResolutionException if the rules can't be resolved
+     */
+    @Test
+    public void testFind() throws RuleResolutionException
+    {
+        RuleSearcher s = this.rd.searcher("number");
+        ByteBuffer buf = ByteBuffer.wrap("12 34 56".getBytes(StandardCharsets.US_ASCII));
+        int[] span = { -1, -1 };
+        Assert.assertTrue(s.find(buf, 1, span));
+        Assert.assertArrayEquals(new int[] { 1, 2 }, span);
+        Assert.assertTrue(s.find(buf, 2, span));
+        Assert.assertArrayEquals(new int[] { 3, 5 }, span);
+        Assert.assertFalse(s.find(buf, 8, span));
+        Assert.assertArrayEquals(new int[] { 3, 5 }, span);
+
+        buf.position(4);
+        final List<Long> starts = new ArrayList<Long>();
+        long count = s.search(buf, new RuleSearcher.Handler()
+        {
+            @Override
+            public boolean found(long start, long end)
+            {
+                starts.add(Long.valueOf(start));
+                return false;
+            }
+        });
+        Assert.assertEquals(1, count);
+        Assert.assertEquals("[4]", starts.toString());
+        Assert.assertEquals(4, buf.position());
+    }
+
+    /**
+     * Test a rule whose reverse automaton is built lazily, with several
+     * occurrences in a row.
+     *
+     * @throws RuleResolutionException if the rules can't be resolved
+     */
+    @Test
+    public void testLazyReverse() throws RuleResolutionException
+    {
+        StringBuilder b = new StringBuilder("xx");
+        for (int i = 0; i < 2500; ++i)
+        {
+            b.append('b');
+        }
+        String one = b.toString();
+        Assert.assertEquals("[1,2502][2503,5004]", this.search("long", one + one + "b"));
+    }
+
+    /**
+     * Test that the reverse automaton accepts the reverse of each input.
+     *
+     * @throws RuleResolutionException if the rules can't be resolved
+     */
+    @Test
+    public void testReverse() throws RuleResolutionException
+    {
+        for (String name : new String[] { "number", "outer", "early", "IPv4address" })
+        {
+            Nfa nfa = Nfa.compile(this.rd.getRule(name));
+            Nfa rev = nfa.reverse();
+            for (String input : new String[] { "", "1", "12", "abcd", "dcba", "c", "ab", "edcb", "1.2.3.4",
+                    "4.3.2.1", "10.0.0.255", "552.0.0.01" })
+            {
+                String reversed = new StringBuilder(input).reverse().toString();
+                Assert.assertEquals(name + " <" + input + ">", nfa.matches(input), rev.matches(reversed));
+            }
+        }
+    }
+
+    /**
+     * Test searching a file.
+     *
+     * @throws IOException if the file can't be written
+     * @throws RuleResolutionException if the rules can't be resolved
+     */
+    @Test
+    public void testFile() throws IOException, RuleResolutionException
+    {
+        File f = File.createTempFile("search", ".log");
+        try
+        {
+            OutputStream out = new FileOutputStream(f);
+            try
+            {
+                out.write("from 10.0.0.1 to 192.168.1.20\n".getBytes(StandardCharsets.US_ASCII));
+            }
+            finally
+            {
+                out.close();
+            }
+            final StringBuilder found = new StringBuilder();
+            long count = this.rd.searcher("IPv4address").search(f, new RuleSearcher.Handler()
+            {
+                @Override
+                public boolean found(long start, long end)
+                {
+                    found.append('[').append(start).append(',').append(end).append(']');
+                    return true;
+                }
+            });
+            Assert.assertEquals(2, count);
+            Assert.assertEquals("[5,13][17,29]", found.toString());
+        }
+        finally
+        {
+            Assert.assertTrue(f.delete());
+        }
+    }
+
+    /**
+     * Test that recursive rules are refused.
+     *
+     * @throws RuleResolutionException if the rules can't be resolved
+     */
+    @Test(expected = IllegalArgumentException.class)
+    public void testRecursive() throws RuleResolutionException
+    {
+        this.rd.searcher("nest");
+    }
+}
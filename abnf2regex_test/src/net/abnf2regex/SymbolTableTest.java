@@ -0,0 +1,81 @@
+package net.abnf2regex;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests for {@link SymbolTable}.
+ */
+@SuppressWarnings("nls")
+public class SymbolTableTest
+{
+    /**
+     * Test that all spellings of a name get the same number.
+     */
+    @Test
+    public void testCaseFolding()
+    {
+        int lower = SymbolTable.intern("symbol-test");
+        Assert.assertEquals(lower, SymbolTable.intern("Symbol-Test"));
+        Assert.assertEquals(lower, SymbolTable.intern("SYMBOL-TEST"));
+        Assert.assertEquals("symbol-test", SymbolTable.getName(SymbolTable.intern("SYMBOL-TEST")));
+        Assert.assertFalse(lower == SymbolTable.intern("symbol-test2"));
+    }
+
+    /**
+     * Test that rules and references to them share numbers.
+     */
+    @Test
+    public void testRulesAndReferences()
+    {
+        Rule r = new Rule("Some-Rule");
+        NamedFragment nf = new NamedFragment("some-RULE");
+        Assert.assertEquals(r.getSymbol(), nf.getSymbol());
+
+        RuleDictionary rd = new RuleDictionary();
+        rd.addRule(r);
+        Assert.assertSame(r, rd.getRule(nf.getSymbol()));
+        Assert.assertSame(r, rd.getRule("SOME-rule"));
+        Assert.assertSame(rd.getRule("alpha"), rd.getRule(SymbolTable.intern("ALPHA")));
+    }
+
+    /**
+     * Test that looking up a name doesn't give it a number.
+     */
+    @Test
+    public void testLookup()
+    {
+        Assert.assertEquals(-1, SymbolTable.lookup("lookup-test"));
+        Assert.assertNull(new RuleDictionary().getRule("Lookup-Test"));
+        Assert.assertEquals(-1, SymbolTable.lookup("lookup-test"));
+
+        int symbol = SymbolTable.intern("Lookup-Test");
+        Assert.assertEquals(symbol, SymbolTable.lookup("lookup-test"));
+        Assert.assertEquals(symbol, SymbolTable.lookup("LOOKUP-TEST"));
+    }
+
+    /**
+     * Test that rules are found, and replaced, as a dictionary grows.
+     */
+    @Test
+    public void testManyRules()
+    {
+        RuleDictionary rd = new RuleDictionary();
+        Rule[] rules = new Rule[100];
+        for (int i = 0; i < rules.length; ++i)
+        {
+            rules[i] = new Rule("many-" + i);
+            rd.addRule(rules[i]);
+            Assert.assertSame(rules[0], rd.getRule("many-0"));
+        }
+        for (int i = 0; i < rules.length; ++i)
+        {
+            Assert.assertSame(rules[i], rd.getRule(rules[i].getSymbol()));
+        }
+        Rule replaced = new Rule("MANY-50");
+        rd.addRule(replaced);
+        Assert.assertSame(replaced, rd.getRule("many-50"));
+        Assert.assertSame(rules[51], rd.getRule("many-51"));
+        Assert.assertNull(rd.getRule(new Rule("many-100").getSymbol()));
+    }
+}
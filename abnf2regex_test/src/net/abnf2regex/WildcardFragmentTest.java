@@ -66,7 +66,7 @@ public class WildcardFragmentTest
 
     /**
      * Test method for
-     * {@link net.abnf2regex.WildcardFragment#buildRegex(java.io.PrintWriter, java.util.Set)}
+     * {@link net.abnf2regex.WildcardFragment#buildRegex(java.io.PrintWriter, RegexSyntax, java.util.Set)}
      * .
      */
     @Test
@@ -78,7 +78,7 @@ public class WildcardFragmentTest
 
         WildcardFragment wc = new WildcardFragment();
         HashSet<String> set = new HashSet<String>();
-        wc.buildRegex(mockPw, set);
+        wc.buildRegex(mockPw, RegexSyntax.getCurrent(), set);
         Assert.assertEquals(0, set.size());
         EasyMock.verify(mockPw);
     }